@@ -0,0 +1,326 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import uk.org.cowgill.james.jircd.util.CaseMappedMap;
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+
+/**
+ * A compiled list of nick!user@host masks which can be quickly matched against clients
+ *
+ * <p>Masks are indexed by the host part: masks with a literal host are stored in a hash map,
+ *  masks with hosts like *.example.com in a suffix trie and masks with hosts like 10.0.* in a
+ *  prefix trie. Everything else is kept in a list. Only masks found through the index (or in the
+ *  list) are compared with the full wildcard matcher.
+ *
+ * <p>Matchers are immutable and are rebuilt when the list changes.
+ *
+ * @author James
+ */
+final class BanMatcher
+{
+	/**
+	 * A node in a host trie
+	 */
+	private static final class TrieNode
+	{
+		private char[] keys = new char[0];
+		private TrieNode[] children = new TrieNode[0];
+
+		/**
+		 * Masks which end at this node (or null)
+		 */
+		private List<String> masks;
+
+		/**
+		 * Gets the child node for a character
+		 *
+		 * @param c character (must already be case folded)
+		 * @return the node or null
+		 */
+		TrieNode get(char c)
+		{
+			for(int i = 0; i < keys.length; i++)
+			{
+				if(keys[i] == c)
+				{
+					return children[i];
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Gets the child node for a character, creating it if it doesn't exist
+		 *
+		 * @param c character (must already be case folded)
+		 * @return the node
+		 */
+		TrieNode getOrCreate(char c)
+		{
+			TrieNode node = get(c);
+
+			if(node == null)
+			{
+				node = new TrieNode();
+
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = c;
+				children[children.length - 1] = node;
+			}
+
+			return node;
+		}
+	}
+
+	/**
+	 * Casemapping used for the index
+	 */
+	private final CaseMapping mapping;
+
+	/**
+	 * Masks with literal hosts (keyed by the host using the casemapping)
+	 */
+	private final CaseMappedMap<List<String>> exactHosts;
+
+	/**
+	 * Trie of reversed host suffixes
+	 */
+	private final TrieNode suffixRoot = new TrieNode();
+
+	/**
+	 * Trie of host prefixes
+	 */
+	private final TrieNode prefixRoot = new TrieNode();
+
+	/**
+	 * Masks which cannot be indexed
+	 */
+	private final List<String> residual = new ArrayList<String>();
+
+	/**
+	 * True if there are no masks in this matcher
+	 */
+	private final boolean empty;
+
+	/**
+	 * Compiles a collection of masks
+	 *
+	 * @param masks masks to compile
+	 * @param mapping casemapping used to compare hosts
+	 */
+	BanMatcher(Collection<String> masks, CaseMapping mapping)
+	{
+		this.mapping = mapping;
+		exactHosts = new CaseMappedMap<List<String>>(mapping);
+		empty = masks.isEmpty();
+
+		for(String mask : masks)
+		{
+			add(mask);
+		}
+	}
+
+	/**
+	 * Adds a mask to the correct index
+	 *
+	 * @param mask mask to add
+	 */
+	private void add(String mask)
+	{
+		int atPos = mask.lastIndexOf('@');
+
+		if(atPos != -1)
+		{
+			String host = mask.substring(atPos + 1);
+
+			//Find wildcards in the host
+			int firstWild = -1;
+			int lastWild = -1;
+
+			for(int i = 0; i < host.length(); i++)
+			{
+				char c = host.charAt(i);
+
+				if(c == '\\')
+				{
+					//Escapes are left to the residual list
+					firstWild = -2;
+					break;
+				}
+				else if(c == '*' || c == '?')
+				{
+					if(firstWild == -1)
+					{
+						firstWild = i;
+					}
+
+					lastWild = i;
+				}
+			}
+
+			if(firstWild == -1)
+			{
+				//Literal host
+				List<String> list = exactHosts.get(host);
+
+				if(list == null)
+				{
+					list = new ArrayList<String>(1);
+					exactHosts.put(host, list);
+				}
+
+				list.add(mask);
+				return;
+			}
+			else if(firstWild == 0 && isAllStars(host, 0, lastWild + 1) && lastWild + 1 < host.length())
+			{
+				//*.suffix
+				TrieNode node = suffixRoot;
+
+				for(int i = host.length() - 1; i > lastWild; i--)
+				{
+					node = node.getOrCreate(mapping.toLower(host.charAt(i)));
+				}
+
+				addToNode(node, mask);
+				return;
+			}
+			else if(firstWild > 0 && lastWild == host.length() - 1 && isAllStars(host, firstWild, host.length()))
+			{
+				//prefix.*
+				TrieNode node = prefixRoot;
+
+				for(int i = 0; i < firstWild; i++)
+				{
+					node = node.getOrCreate(mapping.toLower(host.charAt(i)));
+				}
+
+				addToNode(node, mask);
+				return;
+			}
+		}
+
+		residual.add(mask);
+	}
+
+	/**
+	 * Adds a mask to the list in a trie node
+	 */
+	private static void addToNode(TrieNode node, String mask)
+	{
+		if(node.masks == null)
+		{
+			node.masks = new ArrayList<String>(1);
+		}
+
+		node.masks.add(mask);
+	}
+
+	/**
+	 * Returns true if the given part of a string only contains *s
+	 */
+	private static boolean isAllStars(String str, int start, int end)
+	{
+		for(int i = start; i < end; i++)
+		{
+			if(str.charAt(i) != '*')
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Tests a list of masks against a client
+	 */
+	private boolean matchList(List<String> masks, String data)
+	{
+		if(masks != null)
+		{
+			for(int i = 0; i < masks.size(); i++)
+			{
+				if(IRCMask.wildcardCompare(data, masks.get(i), mapping))
+				{
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns true if the given mask matches any of the masks in this matcher
+	 *
+	 * @param id mask of the client to test
+	 * @return true if there is a match
+	 */
+	boolean matches(IRCMask id)
+	{
+		if(empty)
+		{
+			return false;
+		}
+
+		String data = id.toString();
+		String host = id.host;
+
+		//Exact hosts
+		if(!exactHosts.isEmpty() && matchList(exactHosts.get(host), data))
+		{
+			return true;
+		}
+
+		//Suffixes
+		TrieNode node = suffixRoot;
+
+		for(int i = host.length() - 1; i >= 0 && node != null; i--)
+		{
+			node = node.get(mapping.toLower(host.charAt(i)));
+
+			if(node != null && matchList(node.masks, data))
+			{
+				return true;
+			}
+		}
+
+		//Prefixes
+		node = prefixRoot;
+
+		for(int i = 0; i < host.length() && node != null; i++)
+		{
+			node = node.get(mapping.toLower(host.charAt(i)));
+
+			if(node != null && matchList(node.masks, data))
+			{
+				return true;
+			}
+		}
+
+		//Everything else
+		return matchList(residual, data);
+	}
+}
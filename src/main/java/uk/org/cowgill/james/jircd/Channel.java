@@ -15,15 +15,18 @@
 */
 package uk.org.cowgill.james.jircd;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import uk.org.cowgill.james.jircd.util.ArraySet;
+import uk.org.cowgill.james.jircd.util.CaseMapping;
 import uk.org.cowgill.james.jircd.util.ModeUtils;
-import uk.org.cowgill.james.jircd.util.NamesListBuilder;
 
 /**
  * Represents an IRC channel
@@ -32,6 +35,11 @@ import uk.org.cowgill.james.jircd.util.NamesListBuilder;
  */
 public final class Channel
 {
+	/**
+	 * UTF-8 character set
+	 */
+	private static final Charset utf8Charset = Charset.forName("UTF-8");
+
 	/**
 	 * Information about when something was last set
 	 *
@@ -97,8 +105,27 @@ public final class Channel
 	private int limit;
 	private Map<String, SetInfo> banList = new HashMap<String, SetInfo>();
 	private Map<String, SetInfo> banExceptList = new HashMap<String, SetInfo>();
+
+	/**
+	 * Compiled ban and ban exception lists (null when they need rebuilding)
+	 */
+	private BanMatcher banMatcher, banExceptMatcher;
+
+	/**
+	 * Cached NAMES reply bodies for each combination of NamesX and UhNames
+	 *
+	 * <p>Entries are null when they need rebuilding
+	 */
+	private final NamesCache[] namesCache = new NamesCache[4];
+
+	/**
+	 * Incremented whenever the ban or ban exception lists change
+	 *
+	 * <p>Members' cached ban results are only valid if their epoch is equal to this
+	 */
+	private int banEpoch = 1;
 	private Map<String, SetInfo> inviteExceptList = new HashMap<String, SetInfo>();
-	Set<Client> invited = new HashSet<Client>();		//Set of clients invited by ops
+	Set<Client> invited = new ArraySet<Client>();		//Set of clients invited by ops
 	private Map<Client, ChannelMemberMode> members = new HashMap<Client, ChannelMemberMode>();
 
 	//Field getters
@@ -401,26 +428,125 @@ public final class Channel
 		//Detect enhancements
 		final boolean hasNamesX = client.hasProtocolEnhancement(ProtocolEnhancements.NamesX);
 		final boolean hasUhNames = client.hasProtocolEnhancement(ProtocolEnhancements.UhNames);
+		final int variant = (hasNamesX ? 1 : 0) | (hasUhNames ? 2 : 0);
 
-		//Build list of names and send them
-		final NamesListBuilder builder = new NamesListBuilder(client, getNamesPrefix(client));
+		//Get cached list of names (rebuilding if the prefix is too long for it)
+		final String prefix = getNamesPrefix(client);
+		final int prefixLength = Message.encodedLength(prefix);
+		NamesCache cache = namesCache[variant];
 
-		for(Entry<Client, ChannelMemberMode> entry : members.entrySet())
+		if(cache == null || prefixLength > cache.prefixLength)
 		{
-			Client other = entry.getKey();
-			ChannelMemberMode mode = entry.getValue();
-			String name;
+			cache = new NamesCache(hasNamesX, hasUhNames, Math.max(prefixLength, getMaxNamesPrefixLength()));
+			namesCache[variant] = cache;
+		}
+
+		//Send each line with this client's prefix (the encoded bodies are shared)
+		for(int i = 0; i < cache.bodies.length; i++)
+		{
+			client.send(new EncodedMessage(prefix, cache.bodies[i], cache.encodedBodies[i]));
+		}
+	}
 
-			// Generate name from prefix and a nick
-			name  = mode.toPrefixString(!hasNamesX);
-			name += (hasUhNames ? other.id.toString() :other.id.nick);
+	/**
+	 * Returns the length in bytes of the longest prefix getNamesPrefix could return for this channel
+	 */
+	private int getMaxNamesPrefixLength()
+	{
+		// :<server> 353 <nick> = <channel> :
+		// (nicks can only contain ASCII characters)
+		return Message.encodedLength(Server.getServer().getConfig().serverName) +
+				Message.encodedLength(name) + ServerISupport.NICKLEN + 12;
+	}
 
-			// Send to client
-			builder.addName(name);
+	/**
+	 * Invalidates the cached NAMES replies
+	 *
+	 * <p>This must be called when members join, part, change nick or change prefix
+	 */
+	void invalidateNames()
+	{
+		for(int i = 0; i < namesCache.length; i++)
+		{
+			namesCache[i] = null;
 		}
+	}
+
+	/**
+	 * The bodies of the NAMES reply lines for one variant
+	 */
+	private final class NamesCache
+	{
+		/**
+		 * Length in bytes of the longest prefix which fits in front of the bodies
+		 */
+		final int prefixLength;
+
+		/**
+		 * Line bodies and their UTF-8 forms (read only buffers including the CRLF)
+		 */
+		final String[] bodies;
+		final ByteBuffer[] encodedBodies;
+
+		/**
+		 * Builds a list of names for this channel
+		 *
+		 * @param hasNamesX true to add all member prefixes
+		 * @param hasUhNames true to use full masks instead of nicks
+		 * @param prefixLength length in bytes of the longest prefix which must fit in front of each line
+		 */
+		NamesCache(boolean hasNamesX, boolean hasUhNames, int prefixLength)
+		{
+			this.prefixLength = prefixLength;
+
+			//Split names into lines (lengths are in UTF-8 bytes)
+			// 509 = 512 (max msg len) - 2 (crlf) - 1 (space before previous name)
+			ArrayList<String> lines = new ArrayList<String>();
+			StringBuilder builder = new StringBuilder();
+			int builderLength = 0;
+
+			for(Entry<Client, ChannelMemberMode> entry : members.entrySet())
+			{
+				Client other = entry.getKey();
+
+				// Generate name from prefix and a nick
+				String name = entry.getValue().toPrefixString(!hasNamesX);
+				name += (hasUhNames ? other.id.toString() : other.id.nick);
+				int nameLength = Message.encodedLength(name);
+
+				// Start new line if adding this would make the message too long
+				if(builder.length() > 0 && prefixLength + builderLength + nameLength >= 509)
+				{
+					lines.add(builder.toString());
+					builder.setLength(0);
+					builderLength = 0;
+				}
+
+				if(builder.length() > 0)
+				{
+					builder.append(' ');
+					builderLength++;
+				}
 
-		//Send last part
-		builder.flush();
+				builder.append(name);
+				builderLength += nameLength;
+			}
+
+			if(builder.length() > 0)
+			{
+				lines.add(builder.toString());
+			}
+
+			//Encode lines
+			bodies = lines.toArray(new String[lines.size()]);
+			encodedBodies = new ByteBuffer[bodies.length];
+
+			for(int i = 0; i < bodies.length; i++)
+			{
+				byte[] encoded = (bodies[i] + "\r\n").getBytes(utf8Charset);
+				encodedBodies[i] = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+			}
+		}
 	}
 
 	/**
@@ -514,7 +640,7 @@ public final class Channel
 		ChannelMemberMode chanMode = new ChannelMemberMode();
 		if(banChecked)
 		{
-			chanMode.setMode(ChannelMemberMode.BANCHECKED);
+			chanMode.setBanEpoch(banEpoch);
 		}
 
 		if(members.isEmpty())
@@ -524,6 +650,7 @@ public final class Channel
 
 		//Add member
 		members.put(client, chanMode);
+		invalidateNames();
 		client.channels.add(this);
 
 		if(invited.remove(client))
@@ -571,6 +698,7 @@ public final class Channel
 
 			//Update member list
 			members.remove(client);
+			invalidateNames();
 
 			//If channel is empty, delete
 			if(members.isEmpty())
@@ -638,6 +766,9 @@ public final class Channel
 		msg.appendParam(data);
 
 		send(msg, client);
+
+		//Larger channels cost more flood tokens
+		client.chargeFanOut(members.size() - 1);
 	}
 
 	/**
@@ -860,6 +991,7 @@ public final class Channel
 			if((mode.getMode() & modeVal) == 0)
 			{
 				mode.setMode(modeVal);
+				invalidateNames();
 			}
 			else
 			{
@@ -871,6 +1003,7 @@ public final class Channel
 			if((mode.getMode() & modeVal) != 0)
 			{
 				mode.clearMode(modeVal);
+				invalidateNames();
 			}
 			else
 			{
@@ -973,14 +1106,14 @@ public final class Channel
 			//Set lists
 			if((error = processList(setter, add, this.banList, param, msg)) == SetModeFailReason.OK)
 			{
-				invalidateBanCache(add);
+				invalidateBanCache();
 			}
 			break;
 
 		case 'e':
 			if((error = processList(setter, add, this.banExceptList, param, msg)) == SetModeFailReason.OK)
 			{
-				invalidateBanCache(!add);
+				invalidateBanCache();
 			}
 			break;
 
@@ -1110,18 +1243,13 @@ public final class Channel
 	/**
 	 * Invalidates the member ban cache when the ban list is changed
 	 *
-	 * @param addingBan true if MORE people could be banned by the mode change
+	 * <p>This only increments the ban epoch so it does not depend on the number of members
 	 */
-	private void invalidateBanCache(boolean addingBan)
+	private void invalidateBanCache()
 	{
-		//If adding a ban, invalidate the non banned members
-		for(ChannelMemberMode mode : members.values())
-		{
-			if(mode.isModeSet(ChannelMemberMode.BANNED) != addingBan)
-			{
-				mode.clearMode(ChannelMemberMode.BANCHECKED);
-			}
-		}
+		banEpoch++;
+		banMatcher = null;
+		banExceptMatcher = null;
 	}
 
 	/**
@@ -1149,16 +1277,24 @@ public final class Channel
 					return false;
 				}
 
-				if(mode.isModeSet(ChannelMemberMode.BANCHECKED))
+				if(mode.getBanEpoch() == banEpoch)
 				{
 					return mode.isModeSet(ChannelMemberMode.BANNED);
 				}
 			}
 		}
 
-		//Traverse ban lists
-		String mask = client.id.toString();
-		boolean banned = traverseList(banList, mask) && !traverseList(banExceptList, mask);
+		//Compile lists if needed
+		if(banMatcher == null)
+		{
+			CaseMapping mapping = Server.getServer().getCaseMapping();
+
+			banMatcher = new BanMatcher(banList.keySet(), mapping);
+			banExceptMatcher = new BanMatcher(banExceptList.keySet(), mapping);
+		}
+
+		//Match ban lists
+		boolean banned = banMatcher.matches(client.id) && !banExceptMatcher.matches(client.id);
 
 		//Cache result
 		if(mode != null)
@@ -1172,7 +1308,7 @@ public final class Channel
 				mode.clearMode(ChannelMemberMode.BANNED);
 			}
 
-			mode.setMode(ChannelMemberMode.BANCHECKED);
+			mode.setBanEpoch(banEpoch);
 		}
 
 		return banned;
@@ -25,12 +25,12 @@ public class ChannelMemberMode
 	private int mode = 0;
 
 	/**
-	 * Set if the ban lists have been checked for this member since they were last updated
+	 * Channel ban epoch the BANNED flag was calculated in (0 if never calculated)
 	 */
-	public static final int BANCHECKED = 1;
+	private int banEpoch = 0;
 
 	/**
-	 * Set if member is banned (do not believe if banChecked is clear)
+	 * Set if member is banned (do not believe if the ban epoch is out of date)
 	 */
 	public static final int BANNED = 2;
 
@@ -75,6 +75,26 @@ public class ChannelMemberMode
 		return currMode - (currMode >> 1);
 	}
 
+	/**
+	 * Gets the channel ban epoch the banned flag was last calculated in
+	 *
+	 * @return the ban epoch (0 if never calculated)
+	 */
+	int getBanEpoch()
+	{
+		return banEpoch;
+	}
+
+	/**
+	 * Sets the channel ban epoch the banned flag was calculated in
+	 *
+	 * @param banEpoch the ban epoch
+	 */
+	void setBanEpoch(int banEpoch)
+	{
+		this.banEpoch = banEpoch;
+	}
+
 	/**
 	 * Gets the channel mode
 	 * @return the channel mode
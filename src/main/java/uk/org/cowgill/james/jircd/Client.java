@@ -22,6 +22,7 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import uk.org.cowgill.james.jircd.util.ArraySet;
 import uk.org.cowgill.james.jircd.util.ModeUtils;
 
 /**
@@ -75,13 +76,15 @@ public abstract class Client
 
 	/**
 	 * Set of joined channels
+	 *
+	 * <p>Clients can only join a few channels so these are small array sets
 	 */
-	Set<Channel> channels = new HashSet<Channel>();
+	Set<Channel> channels = new ArraySet<Channel>();
 
 	/**
 	 * Set of channels you've been invited
 	 */
-	Set<Channel> invited = new HashSet<Channel>();
+	Set<Channel> invited = new ArraySet<Channel>();
 
 	/**
 	 * Flags used to see what parts of the registration process has been completed
@@ -267,12 +270,18 @@ public abstract class Client
 		}
 
 		// * Check accept lines
-		Config.Accept myAcceptLine = null;
+		//  The first ip match comes from the trie, then earlier lines are checked by host
+		Config.Accept myAcceptLine = config.acceptIPTrie.lookup(this.getIpAddress());
+		String userHost = id.user + "@" + id.host;
 
 		for(Config.Accept accept : config.accepts)
 		{
-			if(IRCMask.wildcardCompare(id.user + "@" + id.host, accept.hostMask) ||
-					IRCMask.wildcardCompare(this.getIpAddress(), accept.ipMask))
+			if(accept == myAcceptLine)
+			{
+				break;
+			}
+
+			if(IRCMask.wildcardCompare(userHost, accept.hostMask))
 			{
 				//Accept using this line
 				myAcceptLine = accept;
@@ -327,9 +336,7 @@ public abstract class Client
 
 		//Display welcome messages
 		send(this.newNickMessage("001").appendParam("Welcome to the Internet Relay Network " + id.toString()));
-		send(this.newNickMessage("002").appendParam("Your host is " + config.serverName +
-				" running version " + Server.VERSION_STR));
-		send(this.newNickMessage("003").appendParam("This server was created " + server.creationTimeStr));
+		server.getReplies().sendWelcome(this);				//Sends 002 and 003
 		server.getISupport().sendISupportMsgs(this);		//Sends 004 and 005
 
 		// * Display LUSERS, MOTD and MODE
@@ -457,13 +464,13 @@ public abstract class Client
 	public boolean setNick(String nick)
 	{
 		//Check for same nick
-		if(nick.equalsIgnoreCase(id.nick))
+		Server server = Server.getServer();
+		if(id.nick != null && server.getCaseMapping().equalsIgnoreCase(nick, id.nick))
 		{
 			return true;
 		}
 
 		//Check whether nick is in use
-		Server server = Server.getServer();
 		if(server.clientsByNick.containsKey(nick))
 		{
 			return false;
@@ -491,6 +498,12 @@ public abstract class Client
 			server.clientsByNick.remove(id.nick);
 			id.nick = nick;
 			server.clientsByNick.put(nick, this);
+
+			//Cached names lists contain the old nick
+			for(Channel channel : channels)
+			{
+				channel.invalidateNames();
+			}
 		}
 		else
 		{
@@ -650,6 +663,11 @@ public abstract class Client
 	 */
 	public Set<Channel> getChannels()
 	{
+		if(channels.isEmpty())
+		{
+			return Collections.emptySet();
+		}
+
 		return Collections.unmodifiableSet(channels);
 	}
 
@@ -752,8 +770,9 @@ public abstract class Client
 	 */
 	public static void sendTo(Iterable<? extends Client> clients, Object data, Client except)
 	{
-		//Send strings to remote clients
-		String remoteSend = data.toString();
+		//Send encoded data to remote clients
+		// This is only encoded once for everyone
+		EncodedMessage remoteSend = null;
 
 		for(Client client : clients)
 		{
@@ -761,6 +780,11 @@ public abstract class Client
 			{
 				if(client.isRemote())
 				{
+					if(remoteSend == null)
+					{
+						remoteSend = new EncodedMessage(data);
+					}
+
 					client.send(remoteSend);
 				}
 				else
@@ -803,4 +827,15 @@ public abstract class Client
 	 * @return idle time of this client in milliseconds
 	 */
 	public abstract long getIdleTime();
+
+	/**
+	 * Charges this client's flood limit for a message delivered to many recipients
+	 *
+	 * <p>By default this does nothing
+	 *
+	 * @param recipients number of clients the message was delivered to
+	 */
+	public void chargeFanOut(int recipients)
+	{
+	}
 }
@@ -16,6 +16,7 @@
 package uk.org.cowgill.james.jircd;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,6 +31,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -39,9 +41,13 @@ import java.util.Map.Entry;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.log4j.Logger;
 
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+import uk.org.cowgill.james.jircd.util.CidrTrie;
+
 /**
  * Contains all the configuration information for a server instance
  *
@@ -56,6 +62,21 @@ public final class Config
 {
 	private static final Logger logger = Logger.getLogger(Config.class);
 
+	/**
+	 * System property which enables or disables stateless session tickets
+	 */
+	private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+	/**
+	 * True once an SSL context has been created (so the session tickets option is fixed)
+	 */
+	private static boolean sslContextCreated;
+
+	/**
+	 * Value of the ssl.sessiontickets option when the first SSL context was created
+	 */
+	private static String sslSessionTickets;
+
 	/**
 	 * UTF-8 character set
 	 */
@@ -71,6 +92,13 @@ public final class Config
 	 */
 	public String serverName;
 
+	/**
+	 * Casemapping used to compare nicknames, channel names and masks
+	 *
+	 * <p>This is only read when the server starts
+	 */
+	public CaseMapping caseMapping = CaseMapping.RFC1459;
+
 	/**
 	 * The server description
 	 */
@@ -107,6 +135,11 @@ public final class Config
 	 */
 	public List<Accept> accepts = new ArrayList<Accept>();
 
+	/**
+	 * Trie built from the ip masks of the accept lines (in the same order as accepts)
+	 */
+	public CidrTrie<Accept> acceptIPTrie = new CidrTrie<Accept>();
+
 	/**
 	 * Map of operators
 	 */
@@ -122,6 +155,11 @@ public final class Config
 	 */
 	public Collection<Ban> banIP = new ArrayList<Ban>();
 
+	/**
+	 * Trie built from the ip ban masks (used to check bans)
+	 */
+	public CidrTrie<Ban> banIPTrie = new CidrTrie<Ban>();
+
 	/**
 	 * Collection of user and host bans - checked at end of registration
 	 */
@@ -150,6 +188,125 @@ public final class Config
 	 */
 	public SSLContext sslContext = null;
 
+	/**
+	 * Keystore file the SSL context was loaded from
+	 */
+	private String sslKeyStore;
+
+	/**
+	 * Modification time of the keystore file when it was loaded
+	 */
+	private long sslKeyStoreModified;
+
+	/**
+	 * Hash of the keystore password
+	 */
+	private byte[] sslPasswordHash;
+
+	/**
+	 * Maximum number of sessions in the SSL session cache (0 for no limit, -1 for the default)
+	 */
+	public int sslSessionCacheSize = -1;
+
+	/**
+	 * Number of seconds SSL sessions can be resumed for (0 for no limit, -1 for the default)
+	 */
+	public int sslSessionTimeout = -1;
+
+	/**
+	 * Session cache size and timeout the SSL context had when it was created
+	 *
+	 * <p>These are restored when the options are removed since the context is kept on rehash
+	 */
+	private int sslDefaultSessionCacheSize, sslDefaultSessionTimeout;
+
+	/**
+	 * Number of I/O reactor threads (0 to do all I/O in the main thread)
+	 *
+	 * <p>This is only read when the server starts
+	 */
+	public int reactorThreads = 0;
+
+	/**
+	 * True to use direct buffers for reading from clients
+	 *
+	 * <p>This is only read when the server starts
+	 */
+	public boolean directReadBuffers = false;
+
+	/**
+	 * True to use the blocking network engine (one thread per connection) instead of selectors
+	 *
+	 * <p>This is only read when the server starts
+	 */
+	public boolean blockingEngine = false;
+
+	/**
+	 * Number of threads used to resolve client hostnames
+	 *
+	 * <p>The resolver options are only read when the server starts
+	 */
+	public int resolverThreads = 4;
+
+	/**
+	 * Maximum number of hostname lookups waiting for a resolver thread
+	 */
+	public int resolverQueue = 1024;
+
+	/**
+	 * Maximum number of addresses in the resolver cache (0 disables the cache)
+	 */
+	public int resolverCacheSize = 4096;
+
+	/**
+	 * Number of seconds successful lookups are cached for
+	 */
+	public int resolverCacheTTL = 3600;
+
+	/**
+	 * Number of seconds failed lookups are cached for
+	 */
+	public int resolverNegativeTTL = 300;
+
+	/**
+	 * Number of seconds a client waits for its hostname before its ip address is used instead
+	 */
+	public int resolverTimeout = 5;
+
+	/**
+	 * True if resolved hostnames must resolve back to the client's address to be used
+	 */
+	public boolean resolverForwardConfirm = false;
+
+	/**
+	 * Port the metrics listener is bound to (0 to disable it)
+	 */
+	public int metricsPort = 0;
+
+	/**
+	 * Address the metrics listener is bound to
+	 */
+	public String metricsAddress = "127.0.0.1";
+
+	/**
+	 * True to measure the bytes allocated by each command (shown by STATS m)
+	 */
+	public boolean statsAllocations = false;
+
+	/**
+	 * Flood token cost of each command (commands not in the map cost 1 token)
+	 *
+	 * <p>Keys are upper case command names
+	 */
+	public Map<String, Integer> floodCosts = new HashMap<String, Integer>();
+
+	/**
+	 * Number of channel members a message must reach to cost 1 extra flood token
+	 *
+	 * <p>0 disables fan-out costs
+	 */
+	public int floodFanOut = 0;
+
 	/**
 	 * Represents an accept entry
 	 *
@@ -381,6 +538,33 @@ public final class Config
 		return mask & (~notMask);
 	}
 
+	/**
+	 * Parses an optional integer in the resolver block
+	 *
+	 * @param block resolver block
+	 * @param name name of the option
+	 * @param defValue value to return if the option is not given
+	 * @param min minimum allowed value
+	 * @return the value of the option
+	 */
+	private static int parseResolverOption(ConfigBlock block, String name, int defValue, int min)
+		throws ConfigException
+	{
+		String value = block.getSubBlockParamOptional(name);
+		if(value == null)
+		{
+			return defValue;
+		}
+
+		int intValue = Integer.parseInt(value);
+		if(intValue < min)
+		{
+			throw new ConfigException("resolver." + name + " must be at least " + min);
+		}
+
+		return intValue;
+	}
+
 	/**
 	 * Parses a new config file from the specified InputStream
 	 *
@@ -408,6 +592,23 @@ public final class Config
 
 		config.serverDescription = root.getSubBlockParam("description");
 
+		//Read casemapping
+		String caseMapping = root.getSubBlockParamOptional("casemapping");
+		if(caseMapping != null)
+		{
+			config.caseMapping = CaseMapping.fromName(caseMapping);
+			if(config.caseMapping == null)
+			{
+				throw new ConfigException("casemapping must be ascii, rfc1459 or strict-rfc1459");
+			}
+		}
+
+		if(mergeWith != null && config.caseMapping != mergeWith.caseMapping)
+		{
+			logger.warn("The casemapping cannot be changed until the server is restarted");
+			config.caseMapping = mergeWith.caseMapping;
+		}
+
 		//Read admin lines
 		final Collection<ConfigBlock> adminBlock = root.subBlocks.get("admin");
 		if(adminBlock == null)
@@ -507,6 +708,23 @@ public final class Config
 			clazz.maxLinks = Integer.parseInt(block.getSubBlockParam("maxlinks"));
 			clazz.pingFreq = Integer.parseInt(block.getSubBlockParam("pingfreq"));
 
+			String floodBurst = block.getSubBlockParamOptional("floodburst");
+			if(floodBurst != null)
+			{
+				clazz.floodBurst = Integer.parseInt(floodBurst);
+			}
+
+			String floodRefill = block.getSubBlockParamOptional("floodrefill");
+			if(floodRefill != null)
+			{
+				clazz.floodRefill = Integer.parseInt(floodRefill);
+			}
+
+			if(clazz.floodBurst < 1 || clazz.floodRefill < 0)
+			{
+				throw new ConfigException("Class " + block.param + " has an invalid flood limit");
+			}
+
 			//Read class name
 			String name = block.param.trim();
 			if(name.length() == 0)
@@ -559,6 +777,7 @@ public final class Config
 
 			//Add to config
 			config.accepts.add(acceptLine);
+			config.acceptIPTrie.add(acceptLine.ipMask, acceptLine);
 		}
 
 		//Operators
@@ -627,6 +846,7 @@ public final class Config
 			else if(block.param.equals("ip"))
 			{
 				config.banIP.add(ban);
+				config.banIPTrie.add(ban.mask, ban);
 			}
 			else
 			{
@@ -634,6 +854,120 @@ public final class Config
 			}
 		}
 
+		//Network options
+		Collection<ConfigBlock> networkBlocks = root.subBlocks.get("network");
+		if(networkBlocks != null)
+		{
+			ConfigBlock networkBlock = networkBlocks.iterator().next();
+
+			String reactors = networkBlock.getSubBlockParamOptional("reactors");
+			if(reactors != null)
+			{
+				config.reactorThreads = Integer.parseInt(reactors);
+
+				if(config.reactorThreads < 0)
+				{
+					throw new ConfigException("network.reactors cannot be negative");
+				}
+			}
+
+			config.directReadBuffers = networkBlock.subBlocks.containsKey("directbuffers");
+
+			String engine = networkBlock.getSubBlockParamOptional("engine");
+			if(engine != null)
+			{
+				if(engine.equalsIgnoreCase("blocking"))
+				{
+					config.blockingEngine = true;
+				}
+				else if(!engine.equalsIgnoreCase("nio"))
+				{
+					throw new ConfigException("network.engine must be nio or blocking");
+				}
+			}
+		}
+
+		if(mergeWith != null && config.blockingEngine != mergeWith.blockingEngine)
+		{
+			logger.warn("The network engine cannot be changed until the server is restarted");
+			config.blockingEngine = mergeWith.blockingEngine;
+		}
+
+		//The blocking engine has no SSL support
+		if(config.blockingEngine && config.ports.containsValue(PortType.SSL))
+		{
+			throw new ConfigException("SSL ports cannot be used with the blocking network engine");
+		}
+
+		//Resolver options
+		Collection<ConfigBlock> resolverBlocks = root.subBlocks.get("resolver");
+		if(resolverBlocks != null)
+		{
+			ConfigBlock resolverBlock = resolverBlocks.iterator().next();
+
+			config.resolverThreads = parseResolverOption(resolverBlock, "threads", config.resolverThreads, 1);
+			config.resolverQueue = parseResolverOption(resolverBlock, "queue", config.resolverQueue, 0);
+			config.resolverCacheSize = parseResolverOption(resolverBlock, "cachesize", config.resolverCacheSize, 0);
+			config.resolverCacheTTL = parseResolverOption(resolverBlock, "cachettl", config.resolverCacheTTL, 0);
+			config.resolverNegativeTTL =
+					parseResolverOption(resolverBlock, "negativettl", config.resolverNegativeTTL, 0);
+			config.resolverTimeout = parseResolverOption(resolverBlock, "timeout", config.resolverTimeout, 1);
+			config.resolverForwardConfirm = resolverBlock.subBlocks.containsKey("forwardconfirm");
+		}
+
+		//Metrics listener
+		Collection<ConfigBlock> metricsBlocks = root.subBlocks.get("metrics");
+		if(metricsBlocks != null)
+		{
+			ConfigBlock metricsBlock = metricsBlocks.iterator().next();
+
+			config.metricsPort = Integer.parseInt(metricsBlock.getSubBlockParam("listen"));
+			if(config.metricsPort <= 0 || config.metricsPort > 65535)
+			{
+				throw new ConfigException("metrics.listen must be a valid port number");
+			}
+
+			String bind = metricsBlock.getSubBlockParamOptional("bind");
+			if(bind != null)
+			{
+				config.metricsAddress = bind;
+			}
+		}
+
+		//Command statistics
+		Collection<ConfigBlock> statisticsBlocks = root.subBlocks.get("statistics");
+		if(statisticsBlocks != null)
+		{
+			ConfigBlock statisticsBlock = statisticsBlocks.iterator().next();
+			config.statsAllocations = statisticsBlock.subBlocks.containsKey("allocations");
+		}
+
+		//Flood costs (PING and PONG are free by default)
+		config.floodCosts.put("PING", 0);
+		config.floodCosts.put("PONG", 0);
+
+		Collection<ConfigBlock> floodBlocks = root.subBlocks.get("floodcost");
+		if(floodBlocks != null)
+		{
+			for(Entry<String, Collection<ConfigBlock>> costEntry : floodBlocks.iterator().next().subBlocks.entrySet())
+			{
+				int cost = costEntry.getValue().iterator().next().getParamAsInt();
+				if(cost < 0)
+				{
+					throw new ConfigException("floodcost." + costEntry.getKey() + " cannot be negative");
+				}
+
+				if(costEntry.getKey().equalsIgnoreCase("fanout"))
+				{
+					config.floodFanOut = cost;
+				}
+				else
+				{
+					config.floodCosts.put(costEntry.getKey().toUpperCase(), cost);
+				}
+			}
+		}
+
 		//Modules
 		config.modules = root.getSubBlockNonNull("module");
 
@@ -650,45 +984,137 @@ public final class Config
 		Collection<ConfigBlock> sslBlocks = root.subBlocks.get("ssl");
 		if(sslBlocks != null)
 		{
-			FileInputStream stream = null;
-
 			//Get first block
 			ConfigBlock sslBlock = sslBlocks.iterator().next();
 
 			//Get arguments
 			String keyStore = sslBlock.getSubBlockParam("keystore");
-			char[] password = sslBlock.getSubBlockParam("password").toCharArray();
+			String passwordStr = sslBlock.getSubBlockParam("password");
+			char[] password = passwordStr.toCharArray();
 
-			try
+			//Session options
+			String cacheSize = sslBlock.getSubBlockParamOptional("sessioncachesize");
+			if(cacheSize != null)
 			{
-				//Read into new keystore
-				KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-				stream = new FileInputStream(keyStore);
-				ks.load(stream, password);
+				config.sslSessionCacheSize = Integer.parseInt(cacheSize);
+				if(config.sslSessionCacheSize < 0)
+				{
+					throw new ConfigException("ssl.sessioncachesize cannot be negative");
+				}
+			}
 
-				//Create key manager
-				KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-				kmf.init(ks, password);
+			String timeout = sslBlock.getSubBlockParamOptional("sessiontimeout");
+			if(timeout != null)
+			{
+				config.sslSessionTimeout = Integer.parseInt(timeout);
+				if(config.sslSessionTimeout < 0)
+				{
+					throw new ConfigException("ssl.sessiontimeout cannot be negative");
+				}
+			}
 
-				//Create SSL Context
-				config.sslContext = SSLContext.getInstance("TLS");
-				config.sslContext.init(kmf.getKeyManagers(), null, null);
+			String tickets = sslBlock.getSubBlockParamOptional("sessiontickets");
+			String ticketsProperty = null;
+			if(tickets != null)
+			{
+				if(!tickets.equalsIgnoreCase("yes") && !tickets.equalsIgnoreCase("no"))
+				{
+					throw new ConfigException("ssl.sessiontickets must be yes or no");
+				}
+
+				ticketsProperty = Boolean.toString(tickets.equalsIgnoreCase("yes"));
 			}
-			catch (GeneralSecurityException e)
+
+			//This is read by the JSSE when the first SSL context is created
+			if(!sslContextCreated)
 			{
-				//Error loading keystore
-				throw new ConfigException("Error creating ssl context", e);
+				if(ticketsProperty != null)
+				{
+					System.setProperty(SESSION_TICKETS_PROPERTY, ticketsProperty);
+				}
+
+				sslSessionTickets = ticketsProperty;
+			}
+			else if(ticketsProperty == null ? sslSessionTickets != null :
+						!ticketsProperty.equals(sslSessionTickets))
+			{
+				logger.warn("ssl.sessiontickets cannot be changed until the server is restarted");
+			}
+
+			try
+			{
+				//Record what the context is loaded from
+				config.sslKeyStore = new File(keyStore).getCanonicalPath();
+				config.sslKeyStoreModified = new File(keyStore).lastModified();
+				config.sslPasswordHash = passwordHash(passwordStr);
 			}
-			catch (IOException e)
+			catch(GeneralSecurityException e)
+			{
+				throw new ConfigException("Error hashing ssl password", e);
+			}
+			catch(IOException e)
 			{
-				//Error reading keystore
 				throw new ConfigException("Error reading ssl keystore file", e);
 			}
-			finally
+
+			//Keep the old context (and its cached sessions) if the keystore hasn't changed
+			if(mergeWith != null && mergeWith.sslContext != null &&
+					config.sslKeyStore.equals(mergeWith.sslKeyStore) &&
+					config.sslKeyStoreModified == mergeWith.sslKeyStoreModified &&
+					Arrays.equals(config.sslPasswordHash, mergeWith.sslPasswordHash))
+			{
+				config.sslContext = mergeWith.sslContext;
+				config.sslDefaultSessionCacheSize = mergeWith.sslDefaultSessionCacheSize;
+				config.sslDefaultSessionTimeout = mergeWith.sslDefaultSessionTimeout;
+			}
+			else
 			{
-				if(stream != null)
-					stream.close();
+				FileInputStream stream = null;
+
+				try
+				{
+					//Read into new keystore
+					KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+					stream = new FileInputStream(keyStore);
+					ks.load(stream, password);
+
+					//Create key manager
+					KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+					kmf.init(ks, password);
+
+					//Create SSL Context
+					config.sslContext = SSLContext.getInstance("TLS");
+					config.sslContext.init(kmf.getKeyManagers(), null, null);
+					sslContextCreated = true;
+
+					SSLSessionContext sessions = config.sslContext.getServerSessionContext();
+					config.sslDefaultSessionCacheSize = sessions.getSessionCacheSize();
+					config.sslDefaultSessionTimeout = sessions.getSessionTimeout();
+				}
+				catch (GeneralSecurityException e)
+				{
+					//Error loading keystore
+					throw new ConfigException("Error creating ssl context", e);
+				}
+				catch (IOException e)
+				{
+					//Error reading keystore
+					throw new ConfigException("Error reading ssl keystore file", e);
+				}
+				finally
+				{
+					if(stream != null)
+						stream.close();
+				}
 			}
+
+			//Update session cache (options which have been removed go back to the defaults)
+			SSLSessionContext sessions = config.sslContext.getServerSessionContext();
+
+			sessions.setSessionCacheSize(config.sslSessionCacheSize >= 0 ?
+					config.sslSessionCacheSize : config.sslDefaultSessionCacheSize);
+			sessions.setSessionTimeout(config.sslSessionTimeout >= 0 ?
+					config.sslSessionTimeout : config.sslDefaultSessionTimeout);
 		}
 
 		//Merge classes with previous config
@@ -706,6 +1132,8 @@ public final class Config
 					otherClass.sendQueue = classEntry.getValue().sendQueue;
 					otherClass.maxLinks = classEntry.getValue().maxLinks;
 					otherClass.pingFreq = classEntry.getValue().pingFreq;
+					otherClass.floodBurst = classEntry.getValue().floodBurst;
+					otherClass.floodRefill = classEntry.getValue().floodRefill;
 
 					//Use other class
 					classEntry.setValue(otherClass);
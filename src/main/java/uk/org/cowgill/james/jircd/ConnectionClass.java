@@ -42,6 +42,16 @@ public class ConnectionClass
 	 */
 	public int readQueue;
 
+	/**
+	 * Number of flood tokens a connection on this class can save up (the burst size)
+	 */
+	public int floodBurst = 5;
+
+	/**
+	 * Milliseconds it takes for one flood token to be refilled
+	 */
+	public int floodRefill = 2000;
+
 	/**
 	 * Current number of connections using this class
 	 */
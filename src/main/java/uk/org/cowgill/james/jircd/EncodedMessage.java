@@ -0,0 +1,188 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * An outgoing message which has been encoded so it can be sent to many clients
+ *
+ * <p>The message is encoded in UTF-8 and terminated with CRLF when it is created.
+ * The encoded data cannot be modified so the same data can be given to every recipient.
+ *
+ * @author James
+ */
+public final class EncodedMessage
+{
+	/**
+	 * UTF-8 character set
+	 */
+	private static final Charset utf8Charset = Charset.forName("UTF-8");
+
+	/**
+	 * The message as a string (null until needed)
+	 */
+	private String message;
+
+	/**
+	 * Parts of a spliced message which has not been converted to a string yet
+	 */
+	private String splicePrefix, spliceBody;
+
+	/**
+	 * The encoded message or the part after the prefix for spliced messages (read only)
+	 */
+	private final ByteBuffer data;
+
+	/**
+	 * The encoded prefix of a spliced message (read only - null for other messages)
+	 */
+	private final ByteBuffer prefixData;
+
+	/**
+	 * Encodes a message
+	 *
+	 * <p>Messages are encoded directly into bytes (see {@link Message#encode(byte[])}), other
+	 *  objects are converted with toString first. The string form is only created if needed.
+	 *
+	 * @param data message to encode
+	 */
+	public EncodedMessage(Object data)
+	{
+		byte[] encoded = new byte[Message.MAX_LENGTH];
+		int length = Message.encode(data, encoded);
+
+		this.data = ByteBuffer.wrap(encoded, 0, length).asReadOnlyBuffer();
+		this.prefixData = null;
+	}
+
+	/**
+	 * Wraps a line which has already been encoded
+	 *
+	 * @param encoded the encoded line (including the CRLF) which must not be modified afterwards
+	 */
+	EncodedMessage(byte[] encoded)
+	{
+		this.data = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+		this.prefixData = null;
+	}
+
+	/**
+	 * Creates a message by joining a prefix onto a body which has already been encoded
+	 *
+	 * <p>This is used when the same body is sent to many clients with a different prefix.
+	 *  The encoded body is not copied, so one buffer can be shared by every message.
+	 *
+	 * @param prefix start of the message
+	 * @param body rest of the message
+	 * @param encodedBody read only buffer containing the body encoded in UTF-8 (with the CRLF)
+	 */
+	public EncodedMessage(String prefix, String body, ByteBuffer encodedBody)
+	{
+		this.splicePrefix = prefix;
+		this.spliceBody = body;
+
+		this.prefixData = ByteBuffer.wrap(prefix.getBytes(utf8Charset)).asReadOnlyBuffer();
+		this.data = encodedBody;
+	}
+
+	/**
+	 * Returns a new read only buffer containing the encoded message (including the CRLF)
+	 *
+	 * <p>The buffers returned share the same data but have their own positions.
+	 *  Spliced messages are joined into a new buffer, so these should be sent with
+	 *  {@link #getPrefixBuffer()} and {@link #getBodyBuffer()} instead.
+	 *
+	 * @return buffer containing the encoded message
+	 */
+	public ByteBuffer getBuffer()
+	{
+		if(prefixData == null)
+		{
+			return data.duplicate();
+		}
+		else
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(length());
+			buffer.put(prefixData.duplicate());
+			buffer.put(data.duplicate());
+			buffer.flip();
+
+			return buffer.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Returns a new read only buffer containing the prefix of a spliced message
+	 *
+	 * <p>Spliced messages are sent by writing this followed by {@link #getBodyBuffer()}
+	 *
+	 * @return buffer containing the encoded prefix or null if this message was not spliced
+	 */
+	public ByteBuffer getPrefixBuffer()
+	{
+		return prefixData == null ? null : prefixData.duplicate();
+	}
+
+	/**
+	 * Returns a new read only buffer containing the encoded message after the prefix
+	 *
+	 * <p>For messages which were not spliced, this is the whole message
+	 *
+	 * @return buffer containing the encoded body (including the CRLF)
+	 */
+	public ByteBuffer getBodyBuffer()
+	{
+		return data.duplicate();
+	}
+
+	/**
+	 * Returns the length of the encoded message in bytes (including the CRLF)
+	 *
+	 * @return the encoded length
+	 */
+	public int length()
+	{
+		return prefixData == null ? data.remaining() : prefixData.remaining() + data.remaining();
+	}
+
+	/**
+	 * Returns the message as a string (without the CRLF)
+	 */
+	@Override
+	public String toString()
+	{
+		if(message == null)
+		{
+			if(splicePrefix != null)
+			{
+				message = splicePrefix + spliceBody;
+				splicePrefix = null;
+				spliceBody = null;
+			}
+			else
+			{
+				//Decode without the CRLF
+				ByteBuffer line = getBuffer();
+				line.limit(line.limit() - 2);
+				message = utf8Charset.decode(line).toString();
+			}
+		}
+
+		return message;
+	}
+}
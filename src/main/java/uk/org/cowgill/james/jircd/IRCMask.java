@@ -15,6 +15,10 @@
 */
 package uk.org.cowgill.james.jircd;
 
+import java.nio.charset.Charset;
+
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+
 /**
  * Represents a Nick, User and Host tuple in the IRC server
  *
@@ -23,6 +27,9 @@ package uk.org.cowgill.james.jircd;
  *
  * IRCMasks are case-insensitive
  *
+ * <p>The full mask string, its hash code and its UTF-8 encoding are cached. The caches
+ *  remember which field values they were built from and are rebuilt when any field is changed.
+ *
  * @author James
  *
  */
@@ -49,6 +56,37 @@ public class IRCMask implements Comparable<IRCMask>
 	 */
 	public String host;
 
+	/**
+	 * UTF-8 character set
+	 */
+	private static final Charset utf8Charset = Charset.forName("UTF-8");
+
+	/**
+	 * Field values the caches were built from
+	 */
+	private String cachedNick, cachedUser, cachedHost;
+
+	/**
+	 * Cached result of toString (or null)
+	 */
+	private String cachedString;
+
+	/**
+	 * Cached UTF-8 encoding of toString (or null)
+	 */
+	private byte[] cachedBytes;
+
+	/**
+	 * Cached hash code and the casemapping it was calculated with (or null)
+	 */
+	private int cachedHash;
+	private CaseMapping cachedHashMapping;
+
+	/**
+	 * Casemapping used to compare masks (set by the server when it starts)
+	 */
+	private static volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+
 	/**
 	 * Creates a new blank IRC Mask
 	 */
@@ -74,12 +112,21 @@ public class IRCMask implements Comparable<IRCMask>
 	@Override
 	public int hashCode()
 	{
-		int hash = nick.toLowerCase().hashCode();
+		CaseMapping mapping = caseMapping;
+		validateCache();
+
+		if(cachedHashMapping != mapping)
+		{
+			int hash = hashField(mapping, nick);
+
+			hash = hash * 47 + hashField(mapping, user);
+			hash = hash * 37 + hashField(mapping, host);
 
-		hash = hash * 47 + user.toLowerCase().hashCode();
-		hash = hash * 37 + host.toLowerCase().hashCode();
+			cachedHash = hash;
+			cachedHashMapping = mapping;
+		}
 
-		return hash;
+		return cachedHash;
 	}
 
 	/**
@@ -98,27 +145,74 @@ public class IRCMask implements Comparable<IRCMask>
 			return false;
 
 		IRCMask mask = (IRCMask) object;
+		CaseMapping mapping = caseMapping;
+
+		return equalsField(mapping, nick, mask.nick) &&
+				equalsField(mapping, user, mask.user) &&
+				equalsField(mapping, host, mask.host);
+	}
 
-		return nick.equalsIgnoreCase(mask.nick) &&
-				user.equalsIgnoreCase(mask.user) &&
-				host.equalsIgnoreCase(mask.host);
+	/**
+	 * Hashes one field of a mask (which may be null)
+	 */
+	private static int hashField(CaseMapping mapping, String field)
+	{
+		return field == null ? 0 : mapping.hashIgnoreCase(field);
 	}
 
 	/**
-	 * Compares this mask with another mask
+	 * Compares one field of two masks (which may be null)
+	 */
+	private static boolean equalsField(CaseMapping mapping, String a, String b)
+	{
+		return a == null ? b == null : (b != null && mapping.equalsIgnoreCase(a, b));
+	}
+
+	/**
+	 * Sets the casemapping used to compare masks
+	 *
+	 * <p>This is called when the server starts (the casemapping cannot change on rehash)
+	 *
+	 * @param mapping the server's casemapping
+	 */
+	static void setCaseMapping(CaseMapping mapping)
+	{
+		caseMapping = mapping;
+	}
+
+	/**
+	 * Clears the caches if any field has changed since they were built
+	 */
+	private void validateCache()
+	{
+		if(nick != cachedNick || user != cachedUser || host != cachedHost)
+		{
+			cachedNick = nick;
+			cachedUser = user;
+			cachedHost = host;
+
+			cachedString = null;
+			cachedBytes = null;
+			cachedHashMapping = null;
+		}
+	}
+
+	/**
+	 * Compares this mask with another mask (ignoring case using the server's casemapping)
 	 */
 	@Override
 	public int compareTo(IRCMask mask)
 	{
-		int value = host.compareToIgnoreCase(mask.host);
+		CaseMapping mapping = caseMapping;
+		int value = mapping.compareIgnoreCase(host, mask.host);
 
 		if(value == 0)
 		{
-			value = user.compareToIgnoreCase(mask.user);
+			value = mapping.compareIgnoreCase(user, mask.user);
 
 			if(value == 0)
 			{
-				value = nick.compareToIgnoreCase(mask.nick);
+				value = mapping.compareIgnoreCase(nick, mask.nick);
 			}
 		}
 
@@ -137,111 +231,155 @@ public class IRCMask implements Comparable<IRCMask>
 	@Override
 	public String toString()
 	{
-		if(nick == null || nick.length() == 0)
-		{
-			//User + host
-			return user + "@" + host;
-		}
-		else
+		validateCache();
+
+		if(cachedString == null)
 		{
-			//Nick + user + host
-			return nick + "!" + user + "@" + host;
+			if(nick == null || nick.length() == 0)
+			{
+				//User + host
+				cachedString = user + "@" + host;
+			}
+			else
+			{
+				//Nick + user + host
+				cachedString = nick + "!" + user + "@" + host;
+			}
 		}
+
+		return cachedString;
 	}
 
-	//Wildcard comparison with starting indexes
-	private static boolean wildcardCompare(String data, String mask, int strPos, int wildPos)
+	/**
+	 * Returns the result of toString encoded in UTF-8
+	 *
+	 * <p>The returned array is shared and must not be modified
+	 *
+	 * @return the encoded mask
+	 */
+	public byte[] toBytes()
 	{
-		char c;
+		String str = toString();
 
-		for (; wildPos < mask.length(); )
+		if(cachedBytes == null)
 		{
-			c = mask.charAt(wildPos++);		//Increases wildPos as well
-
-			switch (c)
-			{
-				case '?':
-					if (strPos == data.length())
-					{
-						return false;
-					}
-
-					++strPos;
-					break;
+			cachedBytes = str.getBytes(utf8Charset);
+		}
 
-				case '*':
-					if (wildPos == mask.length())
-					{
-						//If * is the last character, accept rest of string
-						return true;
-					}
+		return cachedBytes;
+	}
 
-					//Collapse *s
-					while (mask.charAt(wildPos) == '*')
-					{
-						//Increase for next part of loop
-						++wildPos;
-
-						if (wildPos == mask.length())
-						{
-							//If * is the last character, accept rest of string
-							return true;
-						}
-					}
+	/**
+	 * Performs a wildcard comparison between data and a mask
+	 *
+	 * The comparison is case-insensitive using the server's casemapping
+	 *  (or RFC1459 if no server is running)
+	 *
+	 * @param data The data to be checked
+	 * @param mask The mask to check against
+	 * @return True if the data matches the mask
+	 */
+	public static boolean wildcardCompare(String data, String mask)
+	{
+		return wildcardCompare(data, mask, caseMapping);
+	}
 
-					//wildPos now points to the character after the *s
+	/**
+	 * Performs a wildcard comparison between data and a mask
+	 *
+	 * <p>* matches any number of characters, ? matches one character and \ causes the next
+	 *  character to be matched literally.
+	 *
+	 * <p>This does not allocate any memory. Only the last * seen is ever backtracked to, so the
+	 *  time taken is at most proportional to the product of the lengths (never exponential).
+	 *
+	 * @param data The data to be checked
+	 * @param mask The mask to check against
+	 * @param mapping The casemapping used to compare characters
+	 * @return True if the data matches the mask
+	 */
+	public static boolean wildcardCompare(String data, String mask, CaseMapping mapping)
+	{
+		final int dataLength = data.length();
+		final int maskLength = mask.length();
 
-					while (strPos < data.length())
-					{
-						if (wildcardCompare(data, mask, strPos, wildPos))
-						{
-							return true;
-						}
+		int strPos = 0;
+		int wildPos = 0;
 
-						++strPos;
-					}
+		//Position after the last * and the data position it is currently matched up to
+		int starWildPos = -1;
+		int starStrPos = 0;
 
-					//End of string
-					return false;
+		while(strPos < dataLength)
+		{
+			if(wildPos < maskLength)
+			{
+				char c = mask.charAt(wildPos);
 
-				case '\\':
-					if (wildPos != mask.length())
+				if(c == '*')
+				{
+					//Collapse *s
+					do
 					{
-						//Skip the \ character, fallthough to
-						// treating the next character as normal (whatever it is)
-						c = mask.charAt(wildPos);
-						++wildPos;
+						wildPos++;
 					}
+					while(wildPos < maskLength && mask.charAt(wildPos) == '*');
 
-					//Otherwise c = the \ character
-
-				default:
-					if (strPos == data.length() || c != data.charAt(strPos))
+					if(wildPos == maskLength)
 					{
-						return false;
+						//If * is the last character, accept rest of string
+						return true;
 					}
 
-					++strPos;
-					break;
+					//Initially match * with nothing
+					starWildPos = wildPos;
+					starStrPos = strPos;
+					continue;
+				}
+
+				//Find the end of this mask character
+				int wildNext = wildPos + 1;
+
+				if(c == '\\' && wildNext < maskLength)
+				{
+					//Treat the next character as normal (whatever it is)
+					c = mask.charAt(wildNext);
+					wildNext++;
+				}
+				else if(c == '?')
+				{
+					//Matches any character
+					strPos++;
+					wildPos = wildNext;
+					continue;
+				}
+
+				if(mapping.toLower(c) == mapping.toLower(data.charAt(strPos)))
+				{
+					strPos++;
+					wildPos = wildNext;
+					continue;
+				}
+			}
+
+			//Mismatch, backtrack to last * and let it consume one more character
+			if(starWildPos == -1)
+			{
+				return false;
 			}
+
+			starStrPos++;
+			strPos = starStrPos;
+			wildPos = starWildPos;
 		}
 
-		//End of wild string reached
-		return strPos == data.length();
-	}
+		//End of data reached, only *s may be left in the mask
+		while(wildPos < maskLength && mask.charAt(wildPos) == '*')
+		{
+			wildPos++;
+		}
 
-	/**
-	 * Performs a wildcard comparison between data and a mask
-	 *
-	 * The comparison is case-insensitive
-	 *
-	 * @param data The data to be checked
-	 * @param mask The mask to check against
-	 * @return True if the data matches the mask
-	 */
-	public static boolean wildcardCompare(String data, String mask)
-	{
-		return wildcardCompare(data.toLowerCase(), mask.toLowerCase(), 0, 0);
+		return wildPos == maskLength;
 	}
 
 	/**
@@ -17,6 +17,7 @@ package uk.org.cowgill.james.jircd;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -29,11 +30,26 @@ public class Message implements Serializable
 {
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Maximum length of an encoded message in bytes (including the CRLF)
+	 */
+	public static final int MAX_LENGTH = 512;
+
+	/**
+	 * Maximum length of an encoded message without the CRLF
+	 */
+	private static final int LINE_LIMIT = MAX_LENGTH - 2;
+
 	/**
 	 * The prefix (sender) of the message
 	 */
 	private String prefix;
 
+	/**
+	 * The prefix encoded in UTF-8 (or null if it has not been encoded)
+	 */
+	private transient byte[] encodedPrefix;
+
 	/**
 	 * Command of the message
 	 */
@@ -41,9 +57,38 @@ public class Message implements Serializable
 
 	/**
 	 * Message parameters
+	 *
+	 * <p>This is null until needed for parsed messages (see lazyParams)
 	 */
 	private ArrayList<String> parameters;
 
+	/**
+	 * Line a parsed message was created from
+	 */
+	private String source;
+
+	/**
+	 * Start and end indexes of each parameter in the source line
+	 */
+	private int[] paramBounds;
+
+	/**
+	 * Parameters extracted from the source line so far (null entries have not been extracted)
+	 */
+	private String[] lazyParams;
+
+	/**
+	 * Cache of upper case command names used by parse
+	 *
+	 * <p>Entries are immutable strings so races between threads are harmless
+	 */
+	private static final String[] commandCache = new String[256];
+
+	/**
+	 * Longest command which is stored in the command cache
+	 */
+	private static final int COMMAND_CACHE_MAXLEN = 16;
+
 	/**
 	 * Creates a new message as a copy of another message
 	 *
@@ -52,8 +97,9 @@ public class Message implements Serializable
 	public Message(Message msg)
 	{
 		this.prefix = msg.prefix;
+		this.encodedPrefix = msg.encodedPrefix;
 		this.command = msg.command;
-		this.parameters = new ArrayList<String>(msg.parameters);
+		this.parameters = new ArrayList<String>(msg.getParamList());
 	}
 
 	/**
@@ -75,6 +121,15 @@ public class Message implements Serializable
 	public Message(String command, Client client)
 	{
 		this(command, client == null ? Server.getServer().getConfig().serverName : client.id.toString());
+
+		if(client != null)
+		{
+			this.encodedPrefix = client.id.toBytes();
+		}
+		else
+		{
+			this.encodedPrefix = encodedServerName(this.prefix);
+		}
 	}
 
 	/**
@@ -86,6 +141,7 @@ public class Message implements Serializable
 	public Message(String command, IRCMask id)
 	{
 		this(command, id.toString());
+		this.encodedPrefix = id.toBytes();
 	}
 
 	/**
@@ -125,7 +181,21 @@ public class Message implements Serializable
 	 */
 	public static Message newMessageFromServer(String command)
 	{
-		return new Message(command, Server.getServer().getConfig().serverName);
+		Message msg = new Message(command, Server.getServer().getConfig().serverName);
+		msg.encodedPrefix = encodedServerName(msg.prefix);
+		return msg;
+	}
+
+	/**
+	 * Returns the server name encoded by the server's replies
+	 *
+	 * @param serverName the server name
+	 * @return the encoded name or null if the replies were created with a different name
+	 */
+	private static byte[] encodedServerName(String serverName)
+	{
+		ServerReplies replies = Server.getServer().getReplies();
+		return replies == null ? null : replies.getEncodedServerName(serverName);
 	}
 
 	/**
@@ -164,7 +234,46 @@ public class Message implements Serializable
 	 */
 	public String getParam(int index)
 	{
-		return parameters.get(index);
+		if(parameters != null)
+		{
+			return parameters.get(index);
+		}
+
+		//Extract parameter from source line
+		if(index < 0 || index >= lazyParams.length)
+		{
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + lazyParams.length);
+		}
+
+		String param = lazyParams[index];
+		if(param == null)
+		{
+			param = source.substring(paramBounds[index * 2], paramBounds[index * 2 + 1]);
+			lazyParams[index] = param;
+		}
+
+		return param;
+	}
+
+	/**
+	 * Extracts all the parameters of a parsed message into the parameters list
+	 */
+	private void materializeParams()
+	{
+		if(parameters == null)
+		{
+			ArrayList<String> list = new ArrayList<String>(lazyParams.length);
+
+			for(int i = 0; i < lazyParams.length; i++)
+			{
+				list.add(getParam(i));
+			}
+
+			parameters = list;
+			source = null;
+			paramBounds = null;
+			lazyParams = null;
+		}
 	}
 
 	/**
@@ -177,6 +286,7 @@ public class Message implements Serializable
 		//Ignore if empty
 		if(!str.isEmpty())
 		{
+			materializeParams();
 			parameters.add(str);
 		}
 
@@ -189,7 +299,7 @@ public class Message implements Serializable
 		int hash = prefix.hashCode();
 
 		hash = hash * 47 + command.hashCode();
-		hash = hash * 37 + parameters.hashCode();
+		hash = hash * 37 + getParamList().hashCode();
 
 		return hash;
 	}
@@ -217,7 +327,7 @@ public class Message implements Serializable
 	 */
 	public Iterator<String> paramIterator()
 	{
-		final Iterator<String> source = parameters.iterator();
+		final Iterator<String> source = getParamList().iterator();
 
 		return new Iterator<String>()
 			{
@@ -247,7 +357,12 @@ public class Message implements Serializable
 	 */
 	public int paramCount()
 	{
-		return parameters.size();
+		if(parameters != null)
+		{
+			return parameters.size();
+		}
+
+		return lazyParams.length;
 	}
 
 	/**
@@ -255,6 +370,7 @@ public class Message implements Serializable
 	 */
 	public List<String> getParamList()
 	{
+		materializeParams();
 		return parameters;
 	}
 
@@ -276,7 +392,7 @@ public class Message implements Serializable
 		builder.append(command);
 
 		//Add parameters
-		final Iterator<String> paramIter = parameters.iterator();
+		final Iterator<String> paramIter = getParamList().iterator();
 		String param;
 
 		while(paramIter.hasNext())
@@ -302,67 +418,362 @@ public class Message implements Serializable
 	}
 
 	/**
-	 * Creates a new message from the given string
+	 * Encodes this message in UTF-8 and terminates it with CRLF
 	 *
-	 * @param data message data
-	 * @return the new message
+	 * <p>The message is written straight into the array without converting it to a string first.
+	 * Messages longer than {@link #MAX_LENGTH} are truncated (without splitting a character)
+	 * so that the CRLF always fits.
+	 *
+	 * @param out array to write to (must be at least MAX_LENGTH bytes long)
+	 * @return number of bytes written (including the CRLF)
 	 */
-	public static Message parse(String data)
+	public int encode(byte[] out)
 	{
-		int pos = 0;	//Current position in string
-		int oldPos;
+		int pos = 0;
 
-		String prefix = "";
+		//Add prefix
+		if(prefix.length() != 0)
+		{
+			out[pos++] = ':';
 
-		//Trim the data
-		data = data.trim();
+			if(encodedPrefix != null && encodedPrefix.length < LINE_LIMIT - pos)
+			{
+				System.arraycopy(encodedPrefix, 0, out, pos, encodedPrefix.length);
+				pos += encodedPrefix.length;
+			}
+			else
+			{
+				pos = encodeString(prefix, 0, prefix.length(), out, pos);
+				if(pos < 0)
+				{
+					return endLine(out, ~pos);
+				}
+			}
+
+			if(pos == LINE_LIMIT)
+			{
+				return endLine(out, pos);
+			}
+
+			out[pos++] = ' ';
+		}
 
-		try
+		//Add command
+		pos = encodeString(command, 0, command.length(), out, pos);
+		if(pos < 0)
 		{
-			//Extract prefix
-			if(data.charAt(0) == ':')
+			return endLine(out, ~pos);
+		}
+
+		//Add parameters
+		final int count = paramCount();
+
+		for(int i = 0; i < count; i++)
+		{
+			//Find parameter (without extracting it from the source line)
+			String param;
+			int start, end;
+
+			if(parameters != null)
+			{
+				param = parameters.get(i);
+				start = 0;
+				end = param.length();
+			}
+			else if(lazyParams[i] != null)
 			{
-				//Find first space and extract until that
-				pos = data.indexOf(' ') + 1;
-				prefix = data.substring(1, pos - 1);
+				param = lazyParams[i];
+				start = 0;
+				end = param.length();
+			}
+			else
+			{
+				param = source;
+				start = paramBounds[i * 2];
+				end = paramBounds[i * 2 + 1];
+			}
+
+			//Add space before param
+			if(pos == LINE_LIMIT)
+			{
+				return endLine(out, pos);
+			}
+
+			out[pos++] = ' ';
 
-				//Suck up spaces
-				while(data.charAt(pos) == ' ')
+			//Use prefix if last param has spaces
+			if(i == count - 1)
+			{
+				int space = param.indexOf(' ', start);
+
+				if(space != -1 && space < end)
 				{
-					pos++;
+					if(pos == LINE_LIMIT)
+					{
+						return endLine(out, pos);
+					}
+
+					out[pos++] = ':';
 				}
 			}
+
+			pos = encodeString(param, start, end, out, pos);
+			if(pos < 0)
+			{
+				return endLine(out, ~pos);
+			}
+		}
+
+		return endLine(out, pos);
+	}
+
+	/**
+	 * Encodes an object as a line of UTF-8 terminated with CRLF
+	 *
+	 * <p>Messages are encoded with {@link #encode(byte[])}. Other objects are converted to
+	 *  strings first. The line is truncated if it is longer than {@link #MAX_LENGTH}.
+	 *
+	 * @param data data to encode
+	 * @param out array to write to (must be at least MAX_LENGTH bytes long)
+	 * @return number of bytes written (including the CRLF)
+	 */
+	public static int encode(Object data, byte[] out)
+	{
+		if(data instanceof Message)
+		{
+			return ((Message) data).encode(out);
+		}
+
+		String str = data.toString();
+		int pos = encodeString(str, 0, str.length(), out, 0);
+
+		return endLine(out, pos < 0 ? ~pos : pos);
+	}
+
+	/**
+	 * Encodes part of a string in UTF-8
+	 *
+	 * <p>Unpaired surrogates are replaced with '?' (like String.getBytes does)
+	 *
+	 * @param str string to encode
+	 * @param start index of first character to encode
+	 * @param end index after the last character to encode
+	 * @param out array to write to
+	 * @param pos position in out to start writing at
+	 * @return the position after the encoded string or,
+	 * 			if the string did not fit in the line, the bitwise complement of the
+	 * 			position after the characters which did fit
+	 */
+	private static int encodeString(String str, int start, int end, byte[] out, int pos)
+	{
+		//Fast path for ASCII characters
+		int i = start;
+		int asciiEnd = Math.min(end, start + (LINE_LIMIT - pos));
+
+		while(i < asciiEnd)
+		{
+			char c = str.charAt(i);
+			if(c >= 0x80)
+			{
+				break;
+			}
+
+			out[pos++] = (byte) c;
+			i++;
 		}
-		catch(IndexOutOfBoundsException e)
+
+		//Slow path for the rest
+		for(; i < end; i++)
+		{
+			char c = str.charAt(i);
+
+			if(c < 0x80)
+			{
+				if(pos == LINE_LIMIT)
+				{
+					return ~pos;
+				}
+
+				out[pos++] = (byte) c;
+			}
+			else if(c < 0x800)
+			{
+				if(pos + 2 > LINE_LIMIT)
+				{
+					return ~pos;
+				}
+
+				out[pos++] = (byte) (0xC0 | (c >> 6));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < end &&
+					Character.isLowSurrogate(str.charAt(i + 1)))
+			{
+				if(pos + 4 > LINE_LIMIT)
+				{
+					return ~pos;
+				}
+
+				int codePoint = Character.toCodePoint(c, str.charAt(++i));
+
+				out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+				out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+			}
+			else if(c >= '\uD800' && c <= '\uDFFF')
+			{
+				if(pos == LINE_LIMIT)
+				{
+					return ~pos;
+				}
+
+				out[pos++] = '?';
+			}
+			else
+			{
+				if(pos + 3 > LINE_LIMIT)
+				{
+					return ~pos;
+				}
+
+				out[pos++] = (byte) (0xE0 | (c >> 12));
+				out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		return pos;
+	}
+
+	/**
+	 * Returns the number of bytes a string uses when encoded in UTF-8
+	 *
+	 * <p>Unpaired surrogates are counted as one byte (they are encoded as '?')
+	 *
+	 * @param str string to measure
+	 * @return length of the string in bytes
+	 */
+	static int encodedLength(String str)
+	{
+		int length = str.length();
+		final int end = str.length();
+
+		for(int i = 0; i < end; i++)
+		{
+			char c = str.charAt(i);
+
+			if(c >= 0x80)
+			{
+				if(c < 0x800)
+				{
+					length += 1;
+				}
+				else if(Character.isHighSurrogate(c) && i + 1 < end &&
+						Character.isLowSurrogate(str.charAt(i + 1)))
+				{
+					//4 bytes for the 2 characters
+					length += 2;
+					i++;
+				}
+				else if(c < '\uD800' || c > '\uDFFF')
+				{
+					length += 2;
+				}
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Adds CRLF to the end of an encoded line
+	 *
+	 * @return length of the line including the CRLF
+	 */
+	private static int endLine(byte[] out, int pos)
+	{
+		out[pos] = '\r';
+		out[pos + 1] = '\n';
+		return pos + 2;
+	}
+
+	/**
+	 * Creates a new message from the given string
+	 *
+	 * <p>Parameters are only extracted from the string when they are requested
+	 *
+	 * @param data message data
+	 * @return the new message
+	 */
+	public static Message parse(String data)
+	{
+		//Trim the data
+		int pos = 0;
+		int end = data.length();
+
+		while(pos < end && data.charAt(pos) <= ' ')
+		{
+			pos++;
+		}
+
+		while(end > pos && data.charAt(end - 1) <= ' ')
+		{
+			end--;
+		}
+
+		//Extract prefix
+		String prefix = "";
+
+		if(pos == end)
 		{
 			//Invalid message
 			return new Message((String) null);
 		}
 
-		//Extract command
-		String command;
+		if(data.charAt(pos) == ':')
+		{
+			//Find first space and extract until that
+			int space = data.indexOf(' ', pos);
 
-		oldPos = pos;
-		pos = data.indexOf(' ', pos) + 1;
+			if(space == -1 || space >= end)
+			{
+				//Invalid message
+				return new Message((String) null);
+			}
 
-		if(pos == 0)
-		{
-			//Get till end of string
-			command = data.substring(oldPos);
-			pos = data.length();
+			prefix = data.substring(pos + 1, space);
+			pos = space;
+
+			//Suck up spaces
+			while(pos < end && data.charAt(pos) == ' ')
+			{
+				pos++;
+			}
+
+			if(pos == end)
+			{
+				//Invalid message
+				return new Message((String) null);
+			}
 		}
-		else
+
+		//Extract command
+		int commandEnd = data.indexOf(' ', pos);
+
+		if(commandEnd == -1 || commandEnd > end)
 		{
-			//Get till space
-			command = data.substring(oldPos, pos - 1);
+			commandEnd = end;
 		}
 
-		//Create base message
-		final Message baseMsg = new Message(command.toUpperCase(), prefix);
+		final Message baseMsg = new Message(internCommand(data, pos, commandEnd), prefix);
+		pos = commandEnd;
 
+		//Find parameters
+		int[] bounds = new int[8];
+		int count = 0;
 
-		//Extract parameters
-		while(pos < data.length())
+		while(pos < end)
 		{
 			//Suck up spaces
 			while(data.charAt(pos) == ' ')
@@ -370,41 +781,140 @@ public class Message implements Serializable
 				pos++;
 			}
 
+			int paramStart;
+			int paramEnd;
+
 			//Test if character is a :
 			if(data.charAt(pos) == ':')
 			{
 				//Use all other characters as last parameter
-				if(pos == (data.length() - 1))
-				{
-					baseMsg.appendParam("");
-				}
-				else
-				{
-					baseMsg.appendParam(data.substring(pos + 1));
-				}
-
-				break;
+				paramStart = pos + 1;
+				paramEnd = end;
 			}
 			else
 			{
 				//Find next space
-				oldPos = pos;
-				pos = data.indexOf(' ', pos) + 1;
+				paramStart = pos;
+				paramEnd = data.indexOf(' ', pos);
 
-				//Append parameter
-				if(pos == 0)
+				if(paramEnd == -1 || paramEnd > end)
 				{
-					baseMsg.appendParam(data.substring(oldPos));
-					break;
+					paramEnd = end;
 				}
-				else
+			}
+
+			//Store bounds (empty parameters are ignored)
+			if(paramStart != paramEnd)
+			{
+				if(count * 2 == bounds.length)
 				{
-					baseMsg.appendParam(data.substring(oldPos, pos - 1));
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
 				}
+
+				bounds[count * 2] = paramStart;
+				bounds[count * 2 + 1] = paramEnd;
+				count++;
 			}
+
+			if(paramEnd == end)
+			{
+				break;
+			}
+
+			pos = paramEnd;
 		}
 
+		//Setup lazy parameters
+		baseMsg.parameters = null;
+		baseMsg.source = data;
+		baseMsg.paramBounds = bounds;
+		baseMsg.lazyParams = new String[count];
+
 		//Return finished message
 		return baseMsg;
 	}
+
+	/**
+	 * Returns the upper case form of part of a string as a command name
+	 *
+	 * <p>Recently used command names are cached so the common commands do not allocate new strings
+	 *
+	 * @param data string containing the command
+	 * @param start start index of the command
+	 * @param end end index of the command
+	 * @return the command in upper case
+	 */
+	private static String internCommand(String data, int start, int end)
+	{
+		int length = end - start;
+
+		//Calculate case-insensitive hash
+		int hash = 0;
+
+		for(int i = start; i < end; i++)
+		{
+			hash = hash * 31 + toUpperAscii(data.charAt(i));
+		}
+
+		int slot = (hash ^ (hash >>> 8)) & (commandCache.length - 1);
+
+		//Check cache
+		String cached = commandCache[slot];
+
+		if(cached != null && cached.length() == length)
+		{
+			int i = 0;
+
+			while(i < length && cached.charAt(i) == toUpperAscii(data.charAt(start + i)))
+			{
+				i++;
+			}
+
+			if(i == length)
+			{
+				return cached;
+			}
+		}
+
+		//Create upper case command
+		char[] command = new char[length];
+
+		for(int i = 0; i < length; i++)
+		{
+			char c = data.charAt(start + i);
+
+			if(c >= 0x80)
+			{
+				//Non-ASCII commands are rare, so use the slow route
+				return data.substring(start, end).toUpperCase();
+			}
+
+			command[i] = toUpperAscii(c);
+		}
+
+		String result = new String(command);
+
+		if(length <= COMMAND_CACHE_MAXLEN)
+		{
+			commandCache[slot] = result;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Converts an ASCII letter to upper case (leaving all other characters alone)
+	 *
+	 * @param c character to convert
+	 * @return the upper case character
+	 */
+	private static char toUpperAscii(char c)
+	{
+		if(c >= 'a' && c <= 'z')
+		{
+			return (char) (c - ('a' - 'A'));
+		}
+
+		return c;
+	}
 }
@@ -15,6 +15,8 @@
 */
 package uk.org.cowgill.james.jircd;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collection;
@@ -25,6 +27,8 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import uk.org.cowgill.james.jircd.util.LatencyHistogram;
+
 /**
  * Controls loading and unloading of modules, and keeping track of registered commands
  *
@@ -46,6 +50,48 @@ public final class ModuleManager
 	 */
 	private HashMap<String, CommandInfo> commands = new HashMap<String, CommandInfo>();
 
+	/**
+	 * Thread bean used to measure bytes allocated by commands (or null if not supported)
+	 */
+	private static final com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+
+	/**
+	 * Returns the thread bean if it can measure allocated bytes
+	 */
+	private static com.sun.management.ThreadMXBean getAllocationBean()
+	{
+		try
+		{
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+			if(bean instanceof com.sun.management.ThreadMXBean)
+			{
+				com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+
+				if(sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+				{
+					return sunBean;
+				}
+			}
+		}
+		catch(LinkageError e)
+		{
+			//Not a Sun / OpenJDK VM
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread
+	 *
+	 * <p>This must only be called if allocationBean is not null
+	 */
+	private static long allocatedBytes()
+	{
+		return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
 	/**
 	 * Event which starts up the modules in the configuration file
 	 *
@@ -418,8 +464,11 @@ public final class ModuleManager
 			registeredCheck = true;
 		}
 
-		//Increment execute counter
-		commandInfo.incrementCounter();
+		//Time command (allocations are only measured if enabled since this is not free)
+		final boolean measureAllocations =
+				allocationBean != null && Server.getServer().getConfig().statsAllocations;
+		long startBytes = measureAllocations ? allocatedBytes() : 0;
+		long startTime = System.nanoTime();
 
 		try
 		{
@@ -431,6 +480,17 @@ public final class ModuleManager
 			logger.error("Exception occurred while dispatching command", e);
 		}
 
+		long time = (System.nanoTime() - startTime) / 1000;
+
+		if(measureAllocations)
+		{
+			commandInfo.commandRun(time, allocatedBytes() - startBytes);
+		}
+		else
+		{
+			commandInfo.commandRun(time);
+		}
+
 		//Check if registered
 		if(registeredCheck)
 		{
@@ -447,9 +507,22 @@ public final class ModuleManager
 		return Collections.unmodifiableMap(commands);
 	}
 
+	/**
+	 * Clears the execution statistics of every command
+	 */
+	public void resetCommandStatistics()
+	{
+		for(CommandInfo info : commands.values())
+		{
+			info.reset();
+		}
+	}
+
 	/**
 	 * Information about a command
 	 *
+	 * <p>Statistics are only updated from the main server thread
+	 *
 	 * @author James
 	 */
 	public static class CommandInfo
@@ -457,6 +530,21 @@ public final class ModuleManager
 		private final Command command;
 		private int timesRun;
 
+		/**
+		 * Execution times in microseconds
+		 */
+		private final LatencyHistogram runTime = new LatencyHistogram();
+
+		/**
+		 * Total bytes allocated while running this command
+		 */
+		private long allocated;
+
+		/**
+		 * Number of runs whose allocations were measured
+		 */
+		private int allocationRuns;
+
 		/**
 		 * Creates a new command information class from a command
 		 *
@@ -468,11 +556,38 @@ public final class ModuleManager
 		}
 
 		/**
-		 * Increment number of times this command has been run
+		 * Records an execution of this command
+		 *
+		 * @param time time taken in microseconds
 		 */
-		void incrementCounter()
+		void commandRun(long time)
 		{
 			++timesRun;
+			runTime.record(time);
+		}
+
+		/**
+		 * Records an execution of this command whose allocations were measured
+		 *
+		 * @param time time taken in microseconds
+		 * @param bytes bytes allocated by the command
+		 */
+		void commandRun(long time, long bytes)
+		{
+			commandRun(time);
+			++allocationRuns;
+			allocated += bytes;
+		}
+
+		/**
+		 * Clears the statistics of this command
+		 */
+		void reset()
+		{
+			timesRun = 0;
+			runTime.reset();
+			allocated = 0;
+			allocationRuns = 0;
 		}
 
 		/**
@@ -483,6 +598,35 @@ public final class ModuleManager
 			return timesRun;
 		}
 
+		/**
+		 * Gets the histogram of execution times in microseconds
+		 */
+		public LatencyHistogram getRunTime()
+		{
+			return runTime;
+		}
+
+		/**
+		 * Gets the total number of bytes allocated by this command
+		 *
+		 * <p>Only the runs counted by {@link #getAllocationRuns()} are included
+		 */
+		public long getAllocatedBytes()
+		{
+			return allocated;
+		}
+
+		/**
+		 * Gets the number of runs whose allocations were measured
+		 *
+		 * <p>This is 0 unless allocation statistics are enabled in the config and
+		 *  supported by the JVM
+		 */
+		public int getAllocationRuns()
+		{
+			return allocationRuns;
+		}
+
 		/**
 		 * Gets the raw command interface
 		 */
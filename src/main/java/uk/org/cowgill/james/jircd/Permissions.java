@@ -92,6 +92,11 @@ public final class Permissions
      */
     public final static int seeInvisible = 0x2000;
 
+    /**
+     * Ability to dump and reset server statistics (LOOPDUMP and STATS m reset)
+     */
+    public final static int stats = 0x4000;
+
 
     /**
      * All permissions
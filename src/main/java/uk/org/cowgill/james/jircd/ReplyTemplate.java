@@ -0,0 +1,151 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import java.nio.charset.Charset;
+
+/**
+ * A reply from the server which is the same for every client except for the target nickname
+ *
+ * <p>The reply is encoded when the template is created and the nickname is spliced in
+ *  when it is sent, so sending a template does not create any strings or messages.
+ *
+ * @author James
+ */
+public final class ReplyTemplate
+{
+	/**
+	 * UTF-8 character set
+	 */
+	private static final Charset utf8Charset = Charset.forName("UTF-8");
+
+	/**
+	 * Encoded ":server command " part of the reply
+	 */
+	private final byte[] head;
+
+	/**
+	 * Encoded part of the reply after the nickname (including the leading space)
+	 */
+	private final byte[] tail;
+
+	/**
+	 * Creates a new reply template
+	 *
+	 * <p>The rest of the reply is added unmodified so any trailing parameter must already
+	 *  have its ':'. It is truncated if the reply could be longer than {@link Message#MAX_LENGTH}.
+	 *
+	 * @param serverName name of the server sending the reply
+	 * @param command command (or numeric) of the reply
+	 * @param rest parameters after the nickname (or an empty string for none)
+	 */
+	public ReplyTemplate(String serverName, String command, String rest)
+	{
+		head = (":" + serverName + " " + command + " ").getBytes(utf8Charset);
+
+		if(rest.isEmpty())
+		{
+			tail = new byte[0];
+		}
+		else
+		{
+			byte[] encoded = (" " + rest).getBytes(utf8Charset);
+			int limit = Message.MAX_LENGTH - 2 - head.length - ServerISupport.NICKLEN;
+
+			if(encoded.length > limit)
+			{
+				//Truncate without splitting a character
+				int cut = Math.max(limit, 0);
+
+				while(cut > 0 && (encoded[cut] & 0xC0) == 0x80)
+				{
+					cut--;
+				}
+
+				byte[] truncated = new byte[cut];
+				System.arraycopy(encoded, 0, truncated, 0, cut);
+				encoded = truncated;
+			}
+
+			tail = encoded;
+		}
+	}
+
+	/**
+	 * Sends this reply to a client
+	 *
+	 * @param client client to send to (its nickname is used as the target)
+	 */
+	public void send(Client client)
+	{
+		client.send(toMessage(client.id.nick));
+	}
+
+	/**
+	 * Creates the reply for a target nickname
+	 *
+	 * @param nick target nickname (if null, * is used)
+	 * @return the encoded reply
+	 */
+	public EncodedMessage toMessage(String nick)
+	{
+		if(nick == null)
+		{
+			nick = "*";
+		}
+
+		//Nicknames are almost always ASCII
+		byte[] encodedNick = null;
+		int nickLength = nick.length();
+
+		for(int i = 0; i < nick.length(); i++)
+		{
+			if(nick.charAt(i) >= 0x80)
+			{
+				encodedNick = nick.getBytes(utf8Charset);
+				nickLength = encodedNick.length;
+				break;
+			}
+		}
+
+		//Join the parts together
+		byte[] data = new byte[head.length + nickLength + tail.length + 2];
+		int pos = head.length;
+
+		System.arraycopy(head, 0, data, 0, pos);
+
+		if(encodedNick == null)
+		{
+			for(int i = 0; i < nickLength; i++)
+			{
+				data[pos++] = (byte) nick.charAt(i);
+			}
+		}
+		else
+		{
+			System.arraycopy(encodedNick, 0, data, pos, nickLength);
+			pos += nickLength;
+		}
+
+		System.arraycopy(tail, 0, data, pos, tail.length);
+		pos += tail.length;
+
+		data[pos++] = '\r';
+		data[pos++] = '\n';
+
+		return new EncodedMessage(data);
+	}
+}
@@ -38,7 +38,8 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.spi.LoggingEvent;
 
-import uk.org.cowgill.james.jircd.util.CaseInsensitiveHashMap;
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+import uk.org.cowgill.james.jircd.util.CaseMappedMap;
 import uk.org.cowgill.james.jircd.util.ColourConsoleAppender;
 import uk.org.cowgill.james.jircd.util.MutableInteger;
 
@@ -91,6 +92,11 @@ public abstract class Server
 	 */
 	private final ServerISupport iSupport = new ServerISupport();
 
+	/**
+	 * Replies encoded from the current configuration
+	 */
+	private ServerReplies replies;
+
 	/**
 	 * The type of stop the server should shutdown by
 	 *
@@ -112,13 +118,15 @@ public abstract class Server
 
 	/**
 	 * Map of all registered clients on the server stored by nickname
+	 *
+	 * <p>This is recreated with the configured casemapping when the server starts
 	 */
-	Map<String, Client> clientsByNick = new CaseInsensitiveHashMap<Client>();
+	CaseMappedMap<Client> clientsByNick = new CaseMappedMap<Client>(CaseMapping.RFC1459);
 
 	/**
 	 * Map of all channels on the server (all begin with #)
 	 */
-	Map<String, Channel> channels = new CaseInsensitiveHashMap<Channel>();
+	CaseMappedMap<Channel> channels = new CaseMappedMap<Channel>(CaseMapping.RFC1459);
 
 	/**
 	 * Map of all ips and number of uses
@@ -181,9 +189,19 @@ public abstract class Server
 			Config config = Config.parse(stream, this.config);
 
 			//Store config
+			Config previous = this.config;
 			this.config = config;
 
+			//Encode replies which depend on the config
+			replies = new ServerReplies(config, creationTimeStr);
+			iSupport.updateISupport();
+
 			//Notify rehash
+			if(previous != null)
+			{
+				rehashed();
+			}
+
 			moduleMan.serverRehashEvent();
 			return true;
 		}
@@ -263,6 +281,12 @@ public abstract class Server
 			return false;
 		}
 
+		//Create name maps using the configured casemapping
+		clientsByNick = new CaseMappedMap<Client>(config.caseMapping);
+		channels = new CaseMappedMap<Channel>(config.caseMapping);
+		iSupport.setCaseMapping(config.caseMapping);
+		IRCMask.setCaseMapping(config.caseMapping);
+
 		//Startup modules
 		if(!moduleMan.serverStartupEvent())
 		{
@@ -378,6 +402,16 @@ public abstract class Server
 		return clientsByNick.size();
 	}
 
+	/**
+	 * Returns the casemapping used to compare nicknames, channel names and masks
+	 *
+	 * @return the casemapping of the running server
+	 */
+	public CaseMapping getCaseMapping()
+	{
+		return clientsByNick.getCaseMapping();
+	}
+
 	/**
 	 * Gets a client from the specified nickname
 	 *
@@ -472,6 +506,16 @@ public abstract class Server
 		return iSupport;
 	}
 
+	/**
+	 * Returns the replies encoded from the current configuration
+	 *
+	 * @return the server's encoded replies
+	 */
+	public ServerReplies getReplies()
+	{
+		return replies;
+	}
+
 	/**
 	 * Returns the currently running server
 	 * @return the the currently running server
@@ -566,6 +610,19 @@ public abstract class Server
 	 */
 	protected abstract void runServer();
 
+	/**
+	 * Sends statistics specific to this server implementation to a client
+	 *
+	 * <p>This is called by the STATS command for letters it does not handle itself.
+	 * The default implementation sends nothing.
+	 *
+	 * @param client client to send statistics to
+	 * @param statsCmd requested statistics letter (lower case)
+	 */
+	public void sendStatistics(Client client, char statsCmd)
+	{
+	}
+
 	/**
 	 * Checks weather the server should be stopped
 	 *
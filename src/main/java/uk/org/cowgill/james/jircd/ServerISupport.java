@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import uk.org.cowgill.james.jircd.util.CaseMapping;
 import uk.org.cowgill.james.jircd.util.ModeType;
 
 /**
@@ -108,9 +109,7 @@ public class ServerISupport
 	public final static int CHANNELLEN = 30;
 
 	//Caching related fields
-	private String iSupportCache004User = null;
-	private String iSupportCache004Channel = null;
-	private List<String> iSupportCache005 = null;
+	private ReplyTemplate[] iSupportCache = null;
 
 	private final static int ISUPPORTLEN = 300;
 
@@ -160,7 +159,7 @@ public class ServerISupport
 
 		iSupportMsgs.put("PREFIX", "(qaohv)~&@%+");
 		iSupportMsgs.put("CHANTYPES", "#");
-		iSupportMsgs.put("CASEMAPPING", "ascii");
+		iSupportMsgs.put("CASEMAPPING", CaseMapping.RFC1459.getName());
 		iSupportMsgs.put("FNC", "");
 		iSupportMsgs.put("EXCEPTS", "");
 		iSupportMsgs.put("INVEX", "");
@@ -169,15 +168,25 @@ public class ServerISupport
 	}
 
 	/**
-	 * Invalidates the ISupport string cache
+	 * Sets the casemapping advertised to clients
 	 *
-	 * <p>Must be called to update ISupport messages after the server has started
+	 * @param mapping the server's casemapping
+	 */
+	void setCaseMapping(CaseMapping mapping)
+	{
+		iSupportMsgs.put("CASEMAPPING", mapping.getName());
+		updateISupport();
+	}
+
+	/**
+	 * Invalidates the ISupport reply cache
+	 *
+	 * <p>Must be called to update ISupport messages after the server has started.
+	 * This is also called when the server is rehashed.
 	 */
 	public void updateISupport()
 	{
-		iSupportCache004User = null;
-		iSupportCache004Channel = null;
-		iSupportCache005 = null;
+		iSupportCache = null;
 	}
 
 	/**
@@ -187,130 +196,148 @@ public class ServerISupport
 	 */
 	public void sendISupportMsgs(Client client)
 	{
-		//Check caches
-		if(iSupportCache004User == null)
+		//Check cache
+		if(iSupportCache == null)
 		{
-			//Create mode caches
-			StringBuilder builder = new StringBuilder();
+			iSupportCache = createISupportReplies(Server.getServer().getConfig().serverName);
+		}
 
-			for(Character c : modesChannel.keySet())
-			{
-				builder.append(c);
-			}
+		//Send 004 and 005
+		for(ReplyTemplate reply : iSupportCache)
+		{
+			reply.send(client);
+		}
+	}
 
-			iSupportCache004Channel = builder.toString();
+	/**
+	 * Creates the isupport reply templates (004 and 005)
+	 *
+	 * @param serverName name of the server sending the replies
+	 * @return the replies
+	 */
+	private ReplyTemplate[] createISupportReplies(String serverName)
+	{
+		List<ReplyTemplate> replies = new ArrayList<ReplyTemplate>();
 
-			//User modes
-			builder = new StringBuilder();
+		//Create mode lists
+		StringBuilder builder = new StringBuilder();
 
-			for(Character c : modesUser.keySet())
-			{
-				builder.append(c);
-			}
+		for(Character c : modesChannel.keySet())
+		{
+			builder.append(c);
+		}
+
+		String iSupport004Channel = builder.toString();
 
-			iSupportCache004User = builder.toString();
+		//User modes
+		builder = new StringBuilder();
+
+		for(Character c : modesUser.keySet())
+		{
+			builder.append(c);
 		}
 
-		if(iSupportCache005 == null)
+		String iSupport004User = builder.toString();
+
+		//Create 004 (empty parameters are skipped)
+		builder = new StringBuilder(serverName);
+		builder.append(' ').append(Server.VERSION);
+
+		if(!iSupport004User.isEmpty())
 		{
-			//Create CHANMODES cache
-			StringBuilder builderA = new StringBuilder();
-			StringBuilder builderC = new StringBuilder();
-			StringBuilder builderD = new StringBuilder();
+			builder.append(' ').append(iSupport004User);
+		}
 
-			for(Entry<Character, ModeType> c : modesChannel.entrySet())
-			{
-				switch(c.getValue())
-				{
-				case OnOff:
-					builderD.append(c.getKey());
-					break;
-
-				case Param:
-					if(c.getKey() != 'k')
-					{
-						builderC.append(c.getKey());
-					}
-					break;
-
-				case List:
-					builderA.append(c.getKey());
-					break;
-
-				default:
-					//This shuts the compiler up
-					break;
-				}
-			}
+		if(!iSupport004Channel.isEmpty())
+		{
+			builder.append(' ').append(iSupport004Channel);
+		}
+
+		replies.add(new ReplyTemplate(serverName, "004", builder.toString()));
+
+		//Create CHANMODES cache
+		StringBuilder builderA = new StringBuilder();
+		StringBuilder builderC = new StringBuilder();
+		StringBuilder builderD = new StringBuilder();
 
-			//Generate isupport messages
-			StringBuilder iBuilder = new StringBuilder("CHANMODES=");
-			iBuilder.append(builderA);
-			iBuilder.append(",k,");
-			iBuilder.append(builderC);
-			iBuilder.append(',');
-			iBuilder.append(builderD);
-			iBuilder.append(" MAXLIST=");
-			iBuilder.append(builderA);
-			iBuilder.append(':');
-			iBuilder.append(Integer.toString(MAXLIST));
-
-			//Add messages
-			int lenBefore;
-			iSupportCache005 = new ArrayList<String>();
-
-			for(Entry<String, String> entry : iSupportMsgs.entrySet())
+		for(Entry<Character, ModeType> c : modesChannel.entrySet())
+		{
+			switch(c.getValue())
 			{
-				iBuilder.append(' ');
-				lenBefore = iBuilder.length();
+			case OnOff:
+				builderD.append(c.getKey());
+				break;
 
-				iBuilder.append(entry.getKey());
-				if(!entry.getValue().isEmpty())
+			case Param:
+				if(c.getKey() != 'k')
 				{
-					iBuilder.append('=');
-					iBuilder.append(entry.getValue());
+					builderC.append(c.getKey());
 				}
+				break;
 
-				//Check max characters
-				if(iBuilder.length() > ISUPPORTLEN)
-				{
-					//Rollback this change
-					iBuilder.setLength(lenBefore);
+			case List:
+				builderA.append(c.getKey());
+				break;
 
-					//Add ending
-					iBuilder.append(":are supported by this server");
+			default:
+				//This shuts the compiler up
+				break;
+			}
+		}
 
-					//Add to list
-					iSupportCache005.add(iBuilder.toString());
-					iBuilder.setLength(0);
-				}
+		//Generate isupport messages
+		StringBuilder iBuilder = new StringBuilder("CHANMODES=");
+		iBuilder.append(builderA);
+		iBuilder.append(",k,");
+		iBuilder.append(builderC);
+		iBuilder.append(',');
+		iBuilder.append(builderD);
+		iBuilder.append(" MAXLIST=");
+		iBuilder.append(builderA);
+		iBuilder.append(':');
+		iBuilder.append(Integer.toString(MAXLIST));
+
+		//Add messages
+		int lenBefore;
+
+		for(Entry<String, String> entry : iSupportMsgs.entrySet())
+		{
+			iBuilder.append(' ');
+			lenBefore = iBuilder.length();
+
+			iBuilder.append(entry.getKey());
+			if(!entry.getValue().isEmpty())
+			{
+				iBuilder.append('=');
+				iBuilder.append(entry.getValue());
 			}
 
-			//Add last message
-			if(iBuilder.length() != 0)
+			//Check max characters
+			if(iBuilder.length() > ISUPPORTLEN)
 			{
+				//Rollback this change
+				iBuilder.setLength(lenBefore);
+
 				//Add ending
 				iBuilder.append(":are supported by this server");
 
 				//Add to list
-				iSupportCache005.add(iBuilder.toString());
+				replies.add(new ReplyTemplate(serverName, "005", iBuilder.toString()));
+				iBuilder.setLength(0);
 			}
 		}
 
-		//Send 004
-		Message msg004 = client.newNickMessage("004");
-		msg004.appendParam(Server.getServer().getConfig().serverName);
-		msg004.appendParam(Server.VERSION);
-		msg004.appendParam(iSupportCache004User);
-		msg004.appendParam(iSupportCache004Channel);
-		client.send(msg004);
-
-		//Send 005
-		String startMsg = client.newNickMessage("005").toString() + " ";
-		for(String entry : iSupportCache005)
+		//Add last message
+		if(iBuilder.length() != 0)
 		{
-			client.send(startMsg + entry);
+			//Add ending
+			iBuilder.append(":are supported by this server");
+
+			//Add to list
+			replies.add(new ReplyTemplate(serverName, "005", iBuilder.toString()));
 		}
+
+		return replies.toArray(new ReplyTemplate[replies.size()]);
 	}
 
 	//############################
@@ -0,0 +1,125 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Replies which only depend on the server configuration
+ *
+ * <p>These are encoded once each time the configuration is loaded
+ *
+ * @author James
+ */
+public final class ServerReplies
+{
+	/**
+	 * Server name the replies were created with
+	 */
+	private final String serverName;
+
+	/**
+	 * The server name encoded in UTF-8
+	 */
+	private final byte[] encodedServerName;
+
+	/**
+	 * Welcome replies after 001 (002 and 003)
+	 */
+	private final ReplyTemplate[] welcome;
+
+	/**
+	 * Message of the day (including the start and end replies) or 422 if there isn't one
+	 */
+	private final ReplyTemplate[] motd;
+
+	/**
+	 * Creates the replies for a configuration
+	 *
+	 * @param config configuration to use
+	 * @param creationTime time the server was created (shown in 003)
+	 */
+	ServerReplies(Config config, String creationTime)
+	{
+		serverName = config.serverName;
+		encodedServerName = serverName.getBytes(Charset.forName("UTF-8"));
+
+		//Welcome
+		welcome = new ReplyTemplate[] {
+				new ReplyTemplate(serverName, "002", ":Your host is " + serverName +
+						" running version " + Server.VERSION_STR),
+				new ReplyTemplate(serverName, "003", ":This server was created " + creationTime),
+			};
+
+		//Message of the day
+		List<String> motdLines = config.motd;
+
+		if(motdLines.isEmpty())
+		{
+			motd = new ReplyTemplate[] { new ReplyTemplate(serverName, "422", ":No MotD") };
+		}
+		else
+		{
+			motd = new ReplyTemplate[motdLines.size() + 2];
+			motd[0] = new ReplyTemplate(serverName, "375", ":- " + serverName + " Message of the Day -");
+
+			for(int i = 0; i < motdLines.size(); i++)
+			{
+				motd[i + 1] = new ReplyTemplate(serverName, "372", ":- " + motdLines.get(i));
+			}
+
+			motd[motd.length - 1] = new ReplyTemplate(serverName, "376", ":- End of MotD");
+		}
+	}
+
+	/**
+	 * Returns the encoded server name if it is the one these replies were created with
+	 *
+	 * @param name server name
+	 * @return the encoded name or null if the name is different
+	 */
+	byte[] getEncodedServerName(String name)
+	{
+		return name == serverName ? encodedServerName : null;
+	}
+
+	/**
+	 * Sends the welcome replies which come after 001 (002 and 003)
+	 *
+	 * @param client client to send to
+	 */
+	public void sendWelcome(Client client)
+	{
+		for(ReplyTemplate reply : welcome)
+		{
+			reply.send(client);
+		}
+	}
+
+	/**
+	 * Sends the message of the day
+	 *
+	 * @param client client to send to
+	 */
+	public void sendMotd(Client client)
+	{
+		for(ReplyTemplate reply : motd)
+		{
+			reply.send(client);
+		}
+	}
+}
@@ -137,7 +137,7 @@ public class Mode implements Command
 			{
 				//Allow unsetting of own modes
 				if(!change.add && change.param != null &&
-						change.param.equalsIgnoreCase(client.id.nick) &&
+						Server.getServer().getCaseMapping().equalsIgnoreCase(change.param, client.id.nick) &&
 						(change.flag == 'v' || change.flag == 'h' || change.flag == 'o' ||
 						change.flag == 'a' || change.flag == 'q'))
 				{
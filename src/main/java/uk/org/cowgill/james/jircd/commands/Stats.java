@@ -23,7 +23,9 @@ import uk.org.cowgill.james.jircd.Client;
 import uk.org.cowgill.james.jircd.Command;
 import uk.org.cowgill.james.jircd.Message;
 import uk.org.cowgill.james.jircd.ModuleManager;
+import uk.org.cowgill.james.jircd.Permissions;
 import uk.org.cowgill.james.jircd.Server;
+import uk.org.cowgill.james.jircd.util.LatencyHistogram;
 
 /**
  * The STATS command - displays server statistics
@@ -46,6 +48,18 @@ public class Stats implements Command
 			switch(statsCmd)
 			{
 			case 'm':
+				//Reset statistics
+				if(msg.paramCount() > 1 && msg.getParam(1).equalsIgnoreCase("reset"))
+				{
+					if(!client.hasPermission(Permissions.stats))
+					{
+						client.send(client.newNickMessage("481").appendParam("STATS m reset: Permission Denied"));
+						break;
+					}
+
+					Server.getServer().getModuleManager().resetCommandStatistics();
+				}
+
 				//Get command statistics
 				Map<String, ModuleManager.CommandInfo> commands =
 						Server.getServer().getModuleManager().getCommands();
@@ -54,13 +68,31 @@ public class Stats implements Command
 				TreeMap<String, Message> messages = new TreeMap<String, Message>();
 				for(Entry<String, ModuleManager.CommandInfo> entry : commands.entrySet())
 				{
-					if(entry.getValue().getTimesRun() > 0)
+					ModuleManager.CommandInfo info = entry.getValue();
+
+					if(info.getTimesRun() > 0)
 					{
 						//Add to messages
+						LatencyHistogram runTime = info.getRunTime();
+						String times = String.format(
+								"total %dus mean %.1fus p50 %dus p99 %dus max %dus",
+								runTime.getTotal(),
+								runTime.getMean(),
+								runTime.getValueAtPercentile(50),
+								runTime.getValueAtPercentile(99),
+								runTime.getMax());
+
+						//Allocations are only measured if enabled
+						if(info.getAllocationRuns() > 0)
+						{
+							times += " alloc " + (info.getAllocatedBytes() / info.getAllocationRuns()) + "B/run";
+						}
+
 						messages.put(entry.getKey(),
 								client.newNickMessage("212").
 									appendParam(entry.getKey()).
-									appendParam(Integer.toString(entry.getValue().getTimesRun())));
+									appendParam(Integer.toString(info.getTimesRun())).
+									appendParam(times));
 					}
 				}
 
@@ -91,6 +123,11 @@ public class Stats implements Command
 								secs)));
 
 				break;
+
+			default:
+				//Server specific statistics
+				Server.getServer().sendStatistics(client, statsCmd);
+				break;
 			}
 		}
 		else
@@ -0,0 +1,702 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static java.nio.channels.SelectionKey.OP_READ;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import uk.org.cowgill.james.jircd.Client;
+import uk.org.cowgill.james.jircd.Config;
+import uk.org.cowgill.james.jircd.ConnectionClass;
+import uk.org.cowgill.james.jircd.ModuleLoadException;
+import uk.org.cowgill.james.jircd.RegistrationFlags;
+import uk.org.cowgill.james.jircd.Server;
+
+/**
+ * The parts of the network servers which do not depend on how client I/O is done
+ *
+ * <p>The main thread accepts connections, resolves hosts, executes messages and runs the flood
+ *  and ping timers. Subclasses decide which thread does the I/O of each accepted client.
+ *
+ * @author James
+ */
+abstract class AbstractNetworkServer extends Server
+{
+	private static final Logger logger = Logger.getLogger(AbstractNetworkServer.class);
+
+	/**
+	 * Number of slots in the ping timing wheel
+	 */
+	private static final int PING_WHEEL_SLOTS = 512;
+
+	/**
+	 * Maximum number of free buffers of each size kept in each read buffer pool
+	 */
+	static final int READ_POOL_MAX_FREE = 256;
+
+	/**
+	 * Server event selector (all main thread events are handled by this)
+	 */
+	Selector eventSelector;
+
+	/**
+	 * Listening channels by port
+	 */
+	private Map<Integer, ServerSocketChannel> listeners = new HashMap<Integer, ServerSocketChannel>();
+
+	/**
+	 * Time of the last ping check
+	 */
+	private long lastPingCheck;
+
+	/**
+	 * Timing wheel containing the ping checks of all clients
+	 */
+	private TimingWheel pingWheel;
+
+	/**
+	 * Records the time taken by each phase of the loop
+	 */
+	private final LoopProfiler profiler = new LoopProfiler();
+
+	/**
+	 * The LOOPDUMP command (which writes its files in the background)
+	 */
+	private final LoopDump loopDump = new LoopDump(this, profiler);
+
+	/**
+	 * Host resolver
+	 */
+	private HostResolver resolver;
+
+	/**
+	 * Metrics HTTP listener
+	 */
+	private MetricsListener metrics;
+
+	/**
+	 * Clients whose I/O handlers have decoded messages for the main thread to execute
+	 */
+	final ConcurrentLinkedQueue<NetworkClient> inboundClients = new ConcurrentLinkedQueue<NetworkClient>();
+
+	AbstractNetworkServer(File configFile)
+	{
+		super(configFile);
+	}
+
+	/**
+	 * Starts the threads used for client I/O
+	 *
+	 * <p>Called after the listeners have been bound
+	 *
+	 * @return false if the server cannot run
+	 */
+	abstract boolean startEngine();
+
+	/**
+	 * Stops the threads used for client I/O
+	 *
+	 * <p>This is also called if {@link #startEngine()} fails
+	 */
+	abstract void stopEngine();
+
+	/**
+	 * Checks whether a listening port of the given type can be used
+	 *
+	 * <p>Implementations log the reason a port is rejected
+	 *
+	 * @param port port number
+	 * @param type type of the port
+	 * @return true if the port can be used
+	 */
+	abstract boolean checkPortType(int port, Config.PortType type);
+
+	/**
+	 * Creates a client for an accepted connection
+	 *
+	 * <p>The client is setup and started by the caller
+	 *
+	 * @param channel accepted channel
+	 * @param type type of the port the channel was accepted on
+	 * @return the new client
+	 */
+	abstract NetworkClient createClient(SocketChannel channel, Config.PortType type) throws IOException;
+
+	/**
+	 * Processes anything finished by other threads which the main thread must complete
+	 *
+	 * <p>Called each loop after host lookups have been processed
+	 */
+	void processFinishedTasks()
+	{
+	}
+
+	/**
+	 * Called at the end of each iteration of the loop
+	 */
+	void loopFinished()
+	{
+	}
+
+	/**
+	 * Checks whether a client is ip banned
+	 *
+	 * @param channel channel of the client to check
+	 * @return true if banned (informed)
+	 */
+	private boolean handleIPBans(SocketChannel channel) throws IOException
+	{
+		String ipAddress = NetworkClient.getIpAddress(channel);
+
+		//Lookup address in ip ban trie
+		if(getConfig().banIPTrie.lookup(ipAddress) != null)
+		{
+			//Banned
+			channel.close();
+			return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public void sendStatistics(Client client, char statsCmd)
+	{
+		if(statsCmd == 'e')
+		{
+			profiler.sendStatistics(client);
+		}
+	}
+
+	@Override
+	protected void rehashed()
+	{
+		//Update server listener if running
+		if(Server.getServer() == this)
+		{
+			setupPorts();
+		}
+	}
+
+	@Override
+	protected void runServer()
+	{
+		//Server startup
+		try
+		{
+			// Register network commands
+			getModuleManager().registerCommand(new Ping());
+			getModuleManager().registerCommand(new Pong());
+			getModuleManager().registerCommand(loopDump);
+		}
+		catch(ModuleLoadException e)
+		{
+			logger.error("Only the network subsystem can implement the PING and PONG commands", e);
+			return;
+		}
+
+		// Create selector
+		try
+		{
+			eventSelector = Selector.open();
+		}
+		catch (IOException e)
+		{
+			logger.fatal("Failed to open selector", e);
+			return;
+		}
+
+		// Create ping timing wheel (1 second ticks)
+		pingWheel = new TimingWheel(1000, PING_WHEEL_SLOTS, System.currentTimeMillis());
+
+		// Create listeners
+		if(!setupPorts())
+		{
+			return;
+		}
+
+		metrics = new MetricsListener(this, eventSelector, pingWheel);
+		metrics.setup(getConfig());
+
+		// Create host resolver
+		resolver = new HostResolver(eventSelector, getConfig());
+
+		// Start client I/O and process events
+		if(startEngine())
+		{
+			runLoop();
+		}
+
+		stopEngine();
+
+		//Close all listeners
+		for(ServerSocketChannel listener : listeners.values())
+		{
+			try
+			{
+				listener.close();
+			}
+			catch (IOException e)
+			{	//Ignore errors on close
+			}
+		}
+
+		//Close metrics listener
+		metrics.close();
+
+		//Close selector
+		try
+		{
+			eventSelector.close();
+		}
+		catch (IOException e)
+		{	//Ignore errors on close
+		}
+
+		//Shutdown resolver
+		resolver.shutdown();
+
+		//Wipe variables
+		listeners = null;
+		eventSelector = null;
+		resolver = null;
+		metrics = null;
+	}
+
+	/**
+	 * Runs the main loop until the server is stopped
+	 */
+	private void runLoop()
+	{
+		int retryError = 0;
+		Config metricsConfig = getConfig();
+
+		for(;;)
+		{
+			try
+			{
+				//Select anything to do (waking up for the next throttled client)
+				long timeout = FloodTimer.nextWakeTime() - System.currentTimeMillis();
+
+				profiler.startTick();
+				profiler.selected(eventSelector.select(Math.max(1, Math.min(1000, timeout))));
+
+				//Check for host resolver requests
+				NetworkClient client = resolver.drainOneFinished();
+
+				while(client != null)
+				{
+					if(!client.isClosed() && !client.isRegistered())
+					{
+						//Set host bit
+						client.setRegistrationFlag(RegistrationFlags.HostSet);
+
+						//Check registered event
+						client.registeredEvent();
+					}
+
+					//Next client
+					client = resolver.drainOneFinished();
+				}
+
+				processFinishedTasks();
+				loopDump.processFinishedDumps();
+				profiler.mark(LoopProfiler.RESOLVER);
+
+				//Check all selected keys
+				Iterator<SelectionKey> keyIter = eventSelector.selectedKeys().iterator();
+
+				while(keyIter.hasNext())
+				{
+					//Get key
+					SelectionKey key = keyIter.next();
+					keyIter.remove();
+
+					if(key.isValid())
+					{
+						processKey(key);
+					}
+				}
+
+				//Execute messages decoded by other threads
+				client = inboundClients.poll();
+
+				if(client != null)
+				{
+					while(client != null)
+					{
+						client.processInboundQueue();
+						client = inboundClients.poll();
+					}
+
+					Client.processCloseQueue();
+				}
+
+				profiler.mark(LoopProfiler.DISPATCH);
+
+				//Wake throttled clients whose flood tokens have refilled
+				if(FloodTimer.nextWakeTime() <= System.currentTimeMillis())
+				{
+					FloodTimer.processFloodQueue(System.currentTimeMillis());
+					Client.processCloseQueue();
+				}
+
+				profiler.mark(LoopProfiler.FLOOD);
+
+				//Perform ping checks
+				if(System.currentTimeMillis() - 1000 > lastPingCheck)
+				{
+					//Run ping checks which are due
+					pingWheel.advance(System.currentTimeMillis());
+
+					lastPingCheck = System.currentTimeMillis();
+					Client.processCloseQueue();
+				}
+
+				profiler.mark(LoopProfiler.PING);
+
+				//Send everything written during this loop (closing clients can write more)
+				do
+				{
+					Client.processCloseQueue();
+				}
+				while(NetworkClient.flushDirtyClients());
+
+				profiler.mark(LoopProfiler.CLOSE);
+				profiler.endTick();
+
+				//Check shutdown condition
+				if(checkAndNotifyStop())
+				{
+					break;
+				}
+
+				//Rebind the metrics listener after a rehash
+				if(getConfig() != metricsConfig)
+				{
+					metricsConfig = getConfig();
+					metrics.setup(metricsConfig);
+				}
+
+				loopFinished();
+				retryError = 0;
+			}
+			catch (Exception e)
+			{
+				//Pretty bad error
+				logger.error("Exception in i/o loop", e);
+
+				//Check for 5 errors in a row
+				retryError++;
+				if(retryError >= 5)
+				{
+					logger.fatal("5 loop errors in a row - exiting");
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Processes an event from the main selector
+	 *
+	 * @param key selected key
+	 */
+	private void processKey(SelectionKey key) throws IOException
+	{
+		Object attachment = key.attachment();
+
+		if(attachment == metrics)
+		{
+			metrics.accept();
+		}
+		else if(attachment instanceof MetricsListener.Connection)
+		{
+			((MetricsListener.Connection) attachment).processEvent();
+		}
+		else if(key.isAcceptable())
+		{
+			//Create new client from channel
+			SocketChannel sockChannel = ((ServerSocketChannel) key.channel()).accept();
+
+			if(sockChannel == null || handleIPBans(sockChannel))
+			{
+				//Ignore
+				return;
+			}
+
+			NetworkClient client = createClient(sockChannel, (Config.PortType) attachment);
+
+			//Setup client connection + send nospoof ping
+			client.setup();
+			client.startPingTimer(pingWheel);
+
+			//Resolver host
+			resolver.submitRequest(client);
+
+			//Start I/O
+			IoHandler handler = client.getIoHandler();
+
+			if(handler != null)
+			{
+				handler.addClient(client);
+				return;
+			}
+
+			//Register channel and attach client to it
+			try
+			{
+				SelectionKey clientKey = sockChannel.register(eventSelector, OP_READ);
+				clientKey.attach(client);
+				client.setSelectionKey(clientKey);
+			}
+			catch(ClosedChannelException e)
+			{
+				logger.error("Accepted socket suddenly closed (WTF)", e);
+			}
+		}
+		else
+		{
+			NetworkClient netClient = (NetworkClient) attachment;
+
+			//Write event occurred (send queue can be flushed)
+			if(key.isWritable())
+			{
+				netClient.processWriteEvent();
+			}
+
+			//Read event occurred
+			if(key.isValid() && key.isReadable())
+			{
+				netClient.processReadEvent();
+			}
+		}
+	}
+
+	/**
+	 * Writes the server metrics served by the metrics listener
+	 *
+	 * @param writer metrics writer to write to
+	 */
+	void writeMetrics(MetricsWriter writer)
+	{
+		//Clients
+		int sendQueueTotal = 0;
+		int sendQueueMax = 0;
+
+		for(Client client : clients)
+		{
+			if(client instanceof NetworkClient)
+			{
+				int size = ((NetworkClient) client).getSendQueueSize();
+
+				sendQueueTotal += size;
+				sendQueueMax = Math.max(sendQueueMax, size);
+			}
+		}
+
+		writer.single("jircd_clients", "gauge", "Connected clients (including unregistered clients)", clients.size());
+		writer.single("jircd_registered_clients", "gauge", "Registered clients", getClientCount());
+		writer.single("jircd_peak_clients", "gauge", "Highest number of registered clients", getClientCountPeek());
+		writer.single("jircd_operators", "gauge", "IRC operators online", getIRCOperators().size());
+		writer.single("jircd_channels", "gauge", "Channels", getChannels().size());
+		writer.single("jircd_throttled_clients", "gauge", "Clients waiting for the flood limiter",
+				FloodTimer.getThrottledCount());
+
+		//Connection classes
+		writer.header("jircd_class_links", "gauge", "Clients in each connection class");
+		for(Map.Entry<String, ConnectionClass> entry : getConfig().classes.entrySet())
+		{
+			writer.sample("jircd_class_links", new String[] { "class", entry.getKey() },
+					Integer.toString(entry.getValue().currentLinks));
+		}
+
+		writer.header("jircd_class_max_links", "gauge", "Maximum clients allowed in each connection class");
+		for(Map.Entry<String, ConnectionClass> entry : getConfig().classes.entrySet())
+		{
+			writer.sample("jircd_class_max_links", new String[] { "class", entry.getKey() },
+					Integer.toString(entry.getValue().maxLinks));
+		}
+
+		//Traffic
+		writer.single("jircd_sendq_bytes", "gauge", "Bytes waiting in all send queues", sendQueueTotal);
+		writer.single("jircd_sendq_max_bytes", "gauge", "Bytes waiting in the largest send queue", sendQueueMax);
+		writer.single("jircd_received_bytes_total", "counter", "Bytes read from client sockets",
+				TrafficCounters.bytesIn.get());
+		writer.single("jircd_sent_bytes_total", "counter", "Bytes written to client sockets",
+				TrafficCounters.bytesOut.get());
+		writer.single("jircd_received_lines_total", "counter", "Lines received from clients",
+				TrafficCounters.linesIn.get());
+		writer.single("jircd_sent_lines_total", "counter", "Messages sent to clients",
+				TrafficCounters.linesOut.get());
+
+		//Resolver cache
+		long hits = resolver.getCacheHits();
+		long misses = resolver.getCacheMisses();
+
+		writer.single("jircd_dns_cache_hits_total", "counter", "Host lookups answered from the cache", hits);
+		writer.single("jircd_dns_cache_misses_total", "counter", "Host lookups not found in the cache", misses);
+		writer.header("jircd_dns_cache_hit_ratio", "gauge", "Fraction of host lookups answered from the cache");
+		writer.sample("jircd_dns_cache_hit_ratio", null,
+				Double.toString(hits + misses == 0 ? 0 : (double) hits / (hits + misses)));
+
+		//Loop latency
+		profiler.writeMetrics(writer);
+	}
+
+	/**
+	 * Creates a read buffer pool for one of the threads reading from clients
+	 */
+	ReadBufferPool createReadPool()
+	{
+		return new ReadBufferPool(getConfig().directReadBuffers, READ_POOL_MAX_FREE);
+	}
+
+	/**
+	 * Binds to the ports specified in the config file
+	 *
+	 * @return true if ports have been bound, false if no ports could be bound
+	 */
+	private boolean setupPorts()
+	{
+		//Copy ports set from config (ports which are already bound are removed from the copy)
+		Map<Integer, Config.PortType> ports = new HashMap<Integer, Config.PortType>(getConfig().ports);
+
+		//Close listeners not in newPorts
+		Iterator<Map.Entry<Integer, ServerSocketChannel>> listenerIter = listeners.entrySet().iterator();
+
+		while(listenerIter.hasNext())
+		{
+			Map.Entry<Integer, ServerSocketChannel> listener = listenerIter.next();
+
+			//Check if port is in ports
+			if(!ports.containsKey(listener.getKey()))
+			{
+				//Close channel and remove
+				// We ignore any errors while closing
+				try
+				{
+					listener.getValue().close();
+				}
+				catch (IOException e)
+				{
+				}
+
+				listenerIter.remove();
+			}
+			else
+			{
+				//Remove this port from the ports set so we don't recreate it
+				ports.remove(listener.getKey());
+			}
+		}
+
+		//Create listeners
+		for(Map.Entry<Integer, Config.PortType> port : ports.entrySet())
+		{
+			InetSocketAddress sockAddr;
+
+			//Create address
+			try
+			{
+				sockAddr = new InetSocketAddress(port.getKey());
+			}
+			catch(IllegalArgumentException e)
+			{
+				//Port number out of range
+				logger.error("Port number " + port + " out of range");
+				continue;
+			}
+
+			//Check the engine supports this type of port
+			Config.PortType portType = port.getValue();
+			if(!checkPortType(sockAddr.getPort(), portType))
+			{
+				continue;
+			}
+
+			//Create channel and configure socket
+			ServerSocketChannel channel = null;
+			try
+			{
+				channel = ServerSocketChannel.open();
+				channel.configureBlocking(false);
+
+				channel.socket().bind(sockAddr);
+
+				//Register channel with event selector
+				SelectionKey key = channel.register(eventSelector, OP_ACCEPT);
+
+				//Attach port type
+				key.attach(portType);
+			}
+			catch(IOException e)
+			{
+				//Error binding to port
+				logger.error("Could not bind to port " + sockAddr.getPort(), e);
+
+				//Remove channel
+				if(channel != null)
+				{
+					//We ignore any errors while closing
+					try
+					{
+						channel.close();
+					}
+					catch(IOException f)
+					{
+					}
+				}
+
+				continue;
+			}
+
+			//Add channel to listeners
+			listeners.put(sockAddr.getPort(), channel);
+		}
+
+		//No ports left?
+		if(listeners.isEmpty())
+		{
+			if(ports.isEmpty())
+			{
+				logger.warn("No listening ports in configuration file");
+			}
+
+			logger.fatal("Failed to bind to any ports");
+			return false;
+		}
+		else
+		{
+			return true;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Handles the I/O of one client using blocking reads and writes
+ *
+ * <p>Each connection has a reader thread and a writer thread. They are virtual threads if the
+ *  JVM supports them. Like reactors, connections never execute commands.
+ *
+ * @author James
+ */
+final class BlockingConnection extends IoHandler
+{
+	/**
+	 * Size of the buffer the reader thread waits for data in
+	 */
+	private static final int WAIT_BUFFER_SIZE = 128;
+
+	/**
+	 * Buffer the reader thread waits for data in when the client has no read buffer
+	 *
+	 * <p>Blocking reads can wait for a long time, so a pooled read buffer is only borrowed once
+	 *  data has arrived. This is only used by the reader thread.
+	 */
+	final ByteBuffer waitBuffer = ByteBuffer.allocate(WAIT_BUFFER_SIZE);
+
+	/**
+	 * Client this connection belongs to
+	 */
+	private NetworkClient client;
+
+	/**
+	 * Thread which writes the client's send queue
+	 */
+	private volatile Thread writerThread;
+
+	/**
+	 * Thread which reads from the client
+	 */
+	private volatile Thread readerThread;
+
+	/**
+	 * Set when there is data in the send queue
+	 */
+	private final AtomicBoolean writePending = new AtomicBoolean();
+
+	/**
+	 * Set when the client is no longer flood limited
+	 */
+	private final AtomicBoolean readPending = new AtomicBoolean();
+
+	/**
+	 * Set when the client has been closed by the main thread
+	 */
+	private volatile boolean closing = false;
+
+	/**
+	 * Creates a new blocking connection
+	 *
+	 * @param inboundClients queue to add clients to when they have messages to execute
+	 * @param mainSelector main thread's selector (woken up when clients are added to inboundClients)
+	 * @param readPool pool of read buffers shared by all connections
+	 */
+	BlockingConnection(Queue<NetworkClient> inboundClients, Selector mainSelector, ReadBufferPool readPool)
+	{
+		super(inboundClients, mainSelector, readPool);
+	}
+
+	/**
+	 * Starts the reader and writer threads
+	 */
+	@Override
+	void addClient(NetworkClient client)
+	{
+		this.client = client;
+
+		String name = client.getIpAddress();
+		writerThread = BlockingNetworkServer.newThread(new Writer(), "Writer-" + name);
+		writerThread.start();
+		readerThread = BlockingNetworkServer.newThread(new Reader(), "Reader-" + name);
+		readerThread.start();
+	}
+
+	@Override
+	void requestWrite(NetworkClient client)
+	{
+		if(writePending.compareAndSet(false, true))
+		{
+			Thread thread = writerThread;
+			if(thread != null)
+			{
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	@Override
+	void requestRead(NetworkClient client)
+	{
+		if(readPending.compareAndSet(false, true))
+		{
+			Thread thread = readerThread;
+			if(thread != null)
+			{
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection once the writer thread has sent the rest of the send queue
+	 *
+	 * <p>Called by the main thread when the client is closed
+	 */
+	void close()
+	{
+		closing = true;
+
+		Thread reader = readerThread;
+		if(reader != null)
+		{
+			LockSupport.unpark(reader);
+		}
+
+		Thread thread = writerThread;
+		if(thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+		else
+		{
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Closes the client's channel (which stops the reader thread)
+	 */
+	private void closeChannel()
+	{
+		SocketChannel channel = client.getChannel();
+
+		try
+		{
+			channel.socket().shutdownOutput();
+		}
+		catch(IOException e)
+		{
+		}
+
+		try
+		{
+			channel.close();
+		}
+		catch(IOException e)
+		{
+		}
+	}
+
+	/**
+	 * Reads messages until the client is closed
+	 */
+	private class Reader implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			SocketChannel channel = client.getChannel();
+
+			while(!closing && channel.isOpen() && !client.isReactorClosed())
+			{
+				//Stop reading while the client is flood limited
+				while(client.isFloodLimited() && !readPending.get() && !closing)
+				{
+					LockSupport.park(this);
+				}
+
+				if(readPending.getAndSet(false))
+				{
+					client.resumeRead();
+				}
+				else
+				{
+					client.processReadEvent();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the send queue whenever data is added to it
+	 */
+	private class Writer implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			for(;;)
+			{
+				//Wait for data (or for the client to be closed)
+				while(!writePending.getAndSet(false) && !closing)
+				{
+					LockSupport.park(this);
+				}
+
+				if(!client.processBlockingWrite())
+				{
+					break;
+				}
+
+				if(closing)
+				{
+					//Send anything queued while we were writing
+					client.processBlockingWrite();
+					break;
+				}
+			}
+
+			closeChannel();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+import uk.org.cowgill.james.jircd.Config;
+
+/**
+ * Server which handles each connection with its own threads using blocking I/O
+ *
+ * <p>Every client gets a reader and a writer thread (virtual threads on JVMs which support them).
+ *  Decoded messages are executed one at a time by the main thread, which also accepts
+ *  connections and handles host lookups, flood limiting and ping checks.
+ *
+ * <p>SSL ports are not supported by this server. TlsNetworkClient drives its SSLEngine from
+ *  selector events and hands handshake tasks to the TlsTaskRunner, neither of which exist here,
+ *  so configs with SSL ports are rejected when they are loaded.
+ *
+ * @author James
+ */
+final class BlockingNetworkServer extends AbstractNetworkServer
+{
+	private static final Logger logger = Logger.getLogger(BlockingNetworkServer.class);
+
+	/**
+	 * Virtual thread builder (or null if virtual threads are not supported)
+	 */
+	private static final Object virtualBuilder;
+
+	/**
+	 * Thread.Builder.name(String)
+	 */
+	private static final Method builderName;
+
+	/**
+	 * Thread.Builder.unstarted(Runnable)
+	 */
+	private static final Method builderUnstarted;
+
+	/**
+	 * Read buffer pool shared by all connections
+	 */
+	private ReadBufferPool readPool;
+
+	//Find virtual thread support
+	static
+	{
+		Object builder = null;
+		Method name = null;
+		Method unstarted = null;
+
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			name = builderClass.getMethod("name", String.class);
+			unstarted = builderClass.getMethod("unstarted", Runnable.class);
+		}
+		catch(Exception e)
+		{
+			//Not supported
+			builder = null;
+		}
+
+		virtualBuilder = builder;
+		builderName = name;
+		builderUnstarted = unstarted;
+	}
+
+	public BlockingNetworkServer(File configFile)
+	{
+		super(configFile);
+	}
+
+	/**
+	 * Creates a new unstarted thread for handling a connection
+	 *
+	 * <p>Virtual threads are used if available, otherwise daemon platform threads are created.
+	 *
+	 * @param runnable code to run in the thread
+	 * @param name name of the thread
+	 * @return the new thread
+	 */
+	static Thread newThread(Runnable runnable, String name)
+	{
+		if(virtualBuilder != null)
+		{
+			try
+			{
+				Object builder = builderName.invoke(virtualBuilder, name);
+				return (Thread) builderUnstarted.invoke(builder, runnable);
+			}
+			catch(Exception e)
+			{
+				logger.warn("Could not create virtual thread", e);
+			}
+		}
+
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	@Override
+	boolean startEngine()
+	{
+		//Reader threads all share one pool
+		readPool = new ReadBufferPool(getConfig().directReadBuffers, READ_POOL_MAX_FREE, true);
+
+		logger.info("Using blocking I/O with " + (virtualBuilder != null ? "virtual" : "platform") +
+				" threads");
+		return true;
+	}
+
+	@Override
+	void stopEngine()
+	{
+		//Connection threads stop when their channels are closed
+	}
+
+	@Override
+	boolean checkPortType(int port, Config.PortType type)
+	{
+		//SSL needs the non-blocking server (the config should never allow this)
+		if(type != Config.PortType.Normal)
+		{
+			logger.error("Cannot use SSL port (" + port + ") with the blocking network engine");
+			return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	NetworkClient createClient(SocketChannel channel, Config.PortType type)
+	{
+		//Channels are accepted in blocking mode
+		return new NetworkClient(channel, new BlockingConnection(inboundClients, eventSelector, readPool));
+	}
+}
@@ -15,22 +15,43 @@
 */
 package uk.org.cowgill.james.jircd.network;
 
-import java.util.LinkedList;
+import java.util.PriorityQueue;
 
+import uk.org.cowgill.james.jircd.ConnectionClass;
+import uk.org.cowgill.james.jircd.Message;
 import uk.org.cowgill.james.jircd.Permissions;
+import uk.org.cowgill.james.jircd.Server;
 
 /**
  * Class which handles whether networking clients can process messages in the flood limit
  *
+ * <p>This is a token bucket implemented as a virtual timer: each token spent moves the timer
+ *  forward by the class's refill time and messages can be processed while the timer is less than
+ *  a full bucket ahead of the current time. Throttled clients are woken when their next token
+ *  is available.
+ *
  * @author james
  */
-class FloodTimer
+class FloodTimer implements Comparable<FloodTimer>
 {
-	private static LinkedList<NetworkClient> floodQueue = new LinkedList<NetworkClient>();
+	/**
+	 * Throttled clients ordered by the time they can be woken
+	 */
+	private static PriorityQueue<FloodTimer> floodQueue = new PriorityQueue<FloodTimer>();
 
 	private NetworkClient client;
 	private long timer;
 
+	/**
+	 * Time this timer should be woken at (if in the flood queue)
+	 */
+	private long wakeTime;
+
+	/**
+	 * True if this timer is in the flood queue
+	 */
+	private boolean queued;
+
 	/**
 	 * Creates a new flood timer for the given client
 	 *
@@ -42,27 +63,48 @@ class FloodTimer
 	}
 
 	/**
-	 * Raise the read event on all clients in the flood queue
+	 * Raise the read event on all clients in the flood queue which can now process messages
+	 *
+	 * @param now current time in milliseconds
 	 */
-	public static void processFloodQueue()
+	public static void processFloodQueue(long now)
 	{
-		if(!floodQueue.isEmpty())
+		FloodTimer head = floodQueue.peek();
+
+		while(head != null && head.wakeTime <= now)
 		{
-			//Extract flood queue
-			LinkedList<NetworkClient> queue = floodQueue;
-			floodQueue = new LinkedList<NetworkClient>();
+			floodQueue.poll();
+			head.queued = false;
 
-			//Raise read event on all entries
-			for(NetworkClient client : queue)
+			//Raise read event
+			if(!head.client.isClosed())
 			{
-				if(!client.isClosed())
-				{
-					client.processReadEvent();
-				}
+				head.client.floodQueueEvent();
 			}
+
+			head = floodQueue.peek();
 		}
 	}
 
+	/**
+	 * Returns the number of clients waiting in the flood queue
+	 */
+	public static int getThrottledCount()
+	{
+		return floodQueue.size();
+	}
+
+	/**
+	 * Returns the time the next throttled client should be woken at
+	 *
+	 * @return the wake time or Long.MAX_VALUE if no clients are throttled
+	 */
+	public static long nextWakeTime()
+	{
+		FloodTimer head = floodQueue.peek();
+		return head == null ? Long.MAX_VALUE : head.wakeTime;
+	}
+
 	/**
 	 * Determines whether messages can be processed and adds you to the flood queue
 	 *
@@ -72,32 +114,130 @@ class FloodTimer
 	 */
 	public boolean checkTimer()
 	{
-		//Check opers and timers
-		if(client.hasPermission(Permissions.noFloodLimit) ||
-				timer < (System.currentTimeMillis() + 10000))
+		return checkTimer(System.currentTimeMillis());
+	}
+
+	/**
+	 * Determines whether messages can be processed at the given time and adds you to the flood queue
+	 *
+	 * @param now current time in milliseconds
+	 * @return true if messages can be processed
+	 * @see #checkTimer()
+	 */
+	boolean checkTimer(long now)
+	{
+		//Check opers
+		if(client.hasPermission(Permissions.noFloodLimit))
+		{
+			return true;
+		}
+
+		//Check timer
+		ConnectionClass clazz = client.getConnectionClass();
+		long bucketEnd = timer - (long) clazz.floodBurst * clazz.floodRefill;
+
+		if(bucketEnd < now)
 		{
 			return true;
 		}
 		else
 		{
-			floodQueue.add(client);
+			//Wake when the next token is available
+			if(!queued)
+			{
+				wakeTime = bucketEnd + 1;
+				queued = true;
+				floodQueue.add(this);
+			}
+
 			return false;
 		}
 	}
 
 	/**
 	 * Updates the flood timer after a message has been processed
+	 *
+	 * @param msg message which has been processed
 	 */
-	public void processMessage()
+	public void processMessage(Message msg)
 	{
-		//Update timer after processing message
-		if(timer < System.currentTimeMillis())
+		processMessage(msg, System.currentTimeMillis());
+	}
+
+	/**
+	 * Updates the flood timer after a message has been processed at the given time
+	 *
+	 * @param msg message which has been processed
+	 * @param now current time in milliseconds
+	 */
+	void processMessage(Message msg, long now)
+	{
+		Integer cost = Server.getServer().getConfig().floodCosts.get(msg.getCommand());
+		charge(cost == null ? 1 : cost, now);
+	}
+
+	/**
+	 * Charges the flood timer for a message delivered to many recipients
+	 *
+	 * @param recipients number of recipients of the message
+	 */
+	public void chargeFanOut(int recipients)
+	{
+		chargeFanOut(recipients, System.currentTimeMillis());
+	}
+
+	/**
+	 * Charges the flood timer for a message delivered to many recipients at the given time
+	 *
+	 * @param recipients number of recipients of the message
+	 * @param now current time in milliseconds
+	 */
+	void chargeFanOut(int recipients, long now)
+	{
+		int fanOut = Server.getServer().getConfig().floodFanOut;
+
+		if(fanOut > 0)
+		{
+			charge(recipients / fanOut, now);
+		}
+	}
+
+	/**
+	 * Removes tokens from the bucket
+	 *
+	 * @param tokens number of tokens to remove
+	 * @param now current time in milliseconds
+	 */
+	private void charge(int tokens, long now)
+	{
+		//Exempt clients are never charged
+		if(tokens <= 0 || client.hasPermission(Permissions.noFloodLimit))
+		{
+			return;
+		}
+
+		//Fast-forward timer first (refills the bucket)
+		if(timer < now)
+		{
+			timer = now;
+		}
+
+		//Add penalty
+		timer += (long) tokens * client.getConnectionClass().floodRefill;
+	}
+
+	@Override
+	public int compareTo(FloodTimer other)
+	{
+		if(wakeTime < other.wakeTime)
+		{
+			return -1;
+		}
+		else if(wakeTime > other.wakeTime)
 		{
-			//Fast-forward timer first
-			timer = System.currentTimeMillis();
+			return 1;
 		}
 
-		//Add 2 second penalty
-		timer += 2000;
+		return 0;
 	}
 }
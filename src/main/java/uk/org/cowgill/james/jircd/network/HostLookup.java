@@ -0,0 +1,47 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Performs the DNS lookups needed by the host resolver
+ *
+ * <p>Implementations are called from the resolver threads and may block.
+ *  Other implementations can be given to the HostResolver (for example a stub for testing).
+ *
+ * @author James
+ */
+interface HostLookup
+{
+	/**
+	 * Finds the hostname of an address
+	 *
+	 * @param address address to lookup
+	 * @return the hostname or null if the address has no hostname
+	 */
+	String reverseLookup(InetAddress address);
+
+	/**
+	 * Finds the addresses of a hostname
+	 *
+	 * @param host hostname to lookup
+	 * @return the host's addresses
+	 * @throws UnknownHostException thrown if the host has no addresses
+	 */
+	InetAddress[] forwardLookup(String host) throws UnknownHostException;
+}
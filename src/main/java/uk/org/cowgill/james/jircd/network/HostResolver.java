@@ -15,66 +15,278 @@
 */
 package uk.org.cowgill.james.jircd.network;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.channels.Selector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.cowgill.james.jircd.Config;
 
 /**
  * Class which manages host resolution of client's ips
  *
+ * <p>Lookups are done by a fixed number of threads with a bounded queue. Results (including
+ *  failures) are cached by address. Clients whose lookups are rejected, fail or take longer
+ *  than the timeout use their ip address as their host.
+ *
+ * <p>There is only one lookup for each address at a time. Clients connecting from an address
+ *  which is already being looked up wait for that lookup instead of starting another one.
+ *
  * @author James
  */
 final class HostResolver
 {
+	/**
+	 * A cached lookup result
+	 */
+	private static final class CacheEntry
+	{
+		final String host;
+		final long expires;
+
+		CacheEntry(String host, long expires)
+		{
+			this.host = host;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * A lookup of one address which any number of requests are waiting for
+	 */
+	private final class AddressLookup implements Runnable
+	{
+		final InetAddress address;
+
+		/**
+		 * Requests waiting for this lookup (main thread only)
+		 */
+		final ArrayList<HostResolverRequest> waiters = new ArrayList<HostResolverRequest>(1);
+
+		/**
+		 * Number of waiters which have not timed out (main thread only)
+		 */
+		int waiting;
+
+		/**
+		 * Resolved hostname (null if there isn't one)
+		 */
+		volatile String host;
+
+		AddressLookup(InetAddress address)
+		{
+			this.address = address;
+		}
+
+		/**
+		 * Performs the hostname resolution (blocking)
+		 */
+		@Override
+		public void run()
+		{
+			host = resolve(address);
+
+			//Pass to main thread
+			finishedLookups.add(this);
+			eventSelector.wakeup();
+		}
+	}
+
 	/**
 	 * Current executor service
 	 */
-	private ExecutorService eService = Executors.newCachedThreadPool();
+	private final ThreadPoolExecutor eService;
+
+	/**
+	 * List of lookups which have finished and need attention
+	 */
+	private final ConcurrentLinkedQueue<AddressLookup> finishedLookups =
+			new ConcurrentLinkedQueue<AddressLookup>();
+
+	/**
+	 * Lookups which are queued or running by address (main thread only)
+	 */
+	private final HashMap<InetAddress, AddressLookup> activeLookups = new HashMap<InetAddress, AddressLookup>();
+
+	/**
+	 * Requests which have completed but have not been returned yet (main thread only)
+	 */
+	private final ArrayDeque<HostResolverRequest> completedRequests = new ArrayDeque<HostResolverRequest>();
 
 	/**
-	 * List of clients whose hosts have been resolved and need attention
+	 * Requests which have not been handled yet in deadline order (main thread only)
 	 */
-	private LinkedBlockingQueue<NetworkClient> hostResolveOutput = new LinkedBlockingQueue<NetworkClient>();
+	private final ArrayDeque<HostResolverRequest> pendingRequests = new ArrayDeque<HostResolverRequest>();
+
+	/**
+	 * Cache of lookup results by address (in least recently used order)
+	 */
+	private final LinkedHashMap<InetAddress, CacheEntry> cache;
 
 	/**
 	 * Resolver's server
 	 */
-	private Selector eventSelector;
+	private final Selector eventSelector;
+
+	/**
+	 * Lookup implementation
+	 */
+	private final HostLookup lookup;
+
+	private final int cacheSize;
+	private final long cacheTTL;
+	private final long negativeTTL;
+	private final long timeout;
+	private final boolean forwardConfirm;
 
 	/**
-	 * Creates a new host resolver with a wake up selector
+	 * Number of requests answered from the cache and not found in the cache (main thread only)
+	 */
+	private long cacheHits, cacheMisses;
+
+	/**
+	 * Creates a new host resolver which uses the system's resolver
+	 *
 	 * @param eventSelector selector to wake up when each request has completed
+	 * @param config config to read resolver options from
 	 */
-	public HostResolver(Selector eventSelector)
+	public HostResolver(Selector eventSelector, Config config)
+	{
+		this(eventSelector, config, new SystemHostLookup());
+	}
+
+	/**
+	 * Creates a new host resolver
+	 *
+	 * @param eventSelector selector to wake up when each request has completed
+	 * @param config config to read resolver options from
+	 * @param lookup object which performs the lookups
+	 */
+	public HostResolver(Selector eventSelector, Config config, HostLookup lookup)
 	{
 		this.eventSelector = eventSelector;
+		this.lookup = lookup;
+
+		this.cacheSize = config.resolverCacheSize;
+		this.cacheTTL = config.resolverCacheTTL * 1000L;
+		this.negativeTTL = config.resolverNegativeTTL * 1000L;
+		this.timeout = config.resolverTimeout * 1000L;
+		this.forwardConfirm = config.resolverForwardConfirm;
+
+		//Create bounded thread pool
+		BlockingQueue<Runnable> queue;
+
+		if(config.resolverQueue == 0)
+		{
+			queue = new SynchronousQueue<Runnable>();
+		}
+		else
+		{
+			queue = new ArrayBlockingQueue<Runnable>(config.resolverQueue);
+		}
+
+		eService = new ThreadPoolExecutor(config.resolverThreads, config.resolverThreads,
+				60, TimeUnit.SECONDS, queue);
+		eService.allowCoreThreadTimeOut(true);
+
+		//Create LRU cache
+		cache = new LinkedHashMap<InetAddress, CacheEntry>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<InetAddress, CacheEntry> eldest)
+				{
+					return size() > cacheSize;
+				}
+			};
 	}
 
 	/**
 	 * Submits a request for the resolver to process
+	 *
+	 * <p>This must only be called from the main thread
+	 *
 	 * @param client client whose hostname to resolve
 	 */
 	public void submitRequest(NetworkClient client)
 	{
-		//Create new request and submit
-		eService.execute(new HostResolverRequest(client, hostResolveOutput, eventSelector));
+		submitRequest(client, client.getRemoteAddress());
 	}
 
 	/**
-	 * Submits a request for the resolver to process
+	 * Submits a request to resolve an address
 	 *
-	 * @param request resolution request
+	 * <p>This must only be called from the main thread
+	 *
+	 * @param client client whose hostname to resolve
+	 * @param address address to resolve
+	 * @return the request
 	 */
-	public void submitRequest(HostResolverRequest request)
+	HostResolverRequest submitRequest(NetworkClient client, InetAddress address)
 	{
-		//Create new request and submit
-		eService.execute(request);
+		HostResolverRequest request = new HostResolverRequest(client, address,
+				System.currentTimeMillis() + timeout);
+
+		//Try the cache first
+		CacheEntry entry = getCached(address);
+
+		if(entry != null)
+		{
+			cacheHits++;
+			complete(request, entry.host);
+			return request;
+		}
+
+		if(cacheSize > 0)
+		{
+			cacheMisses++;
+		}
+
+		//Wait for the current lookup of this address if there is one
+		AddressLookup addressLookup = activeLookups.get(address);
+
+		if(addressLookup == null)
+		{
+			addressLookup = new AddressLookup(address);
+
+			try
+			{
+				eService.execute(addressLookup);
+			}
+			catch(RejectedExecutionException e)
+			{
+				//Too many lookups waiting - use the ip address
+				complete(request, null);
+				return request;
+			}
+
+			activeLookups.put(address, addressLookup);
+		}
+
+		addressLookup.waiters.add(request);
+		addressLookup.waiting++;
+		pendingRequests.add(request);
+		return request;
 	}
 
 	/**
 	 * Checks if any requests have finished, if they have returns one.
 	 *
+	 * <p>Requests which have passed their deadline are returned without a host.
+	 * The resolved host (if any) is set in the client before it is returned.
+	 *
 	 * If no more requests have finished since drainOneFinished was last called,
 	 *  this returns null
 	 *
@@ -82,7 +294,193 @@ final class HostResolver
 	 */
 	public NetworkClient drainOneFinished()
 	{
-		return hostResolveOutput.poll();
+		HostResolverRequest request = drainOneRequest();
+
+		if(request == null)
+		{
+			return null;
+		}
+
+		request.client.id.host = request.getHost();
+		return request.client;
+	}
+
+	/**
+	 * Checks if any requests have finished, if they have returns one.
+	 *
+	 * <p>The returned request has been handled (its host is set)
+	 *
+	 * @return null or the finished request
+	 */
+	HostResolverRequest drainOneRequest()
+	{
+		//Finished lookups
+		AddressLookup addressLookup;
+
+		while(completedRequests.isEmpty() && (addressLookup = finishedLookups.poll()) != null)
+		{
+			activeLookups.remove(addressLookup.address);
+
+			for(HostResolverRequest request : addressLookup.waiters)
+			{
+				if(!request.isHandled())
+				{
+					request.complete(addressLookup.host);
+					completedRequests.add(request);
+				}
+			}
+		}
+
+		HostResolverRequest request = completedRequests.poll();
+
+		if(request != null)
+		{
+			return request;
+		}
+
+		//Requests which have timed out
+		long now = System.currentTimeMillis();
+
+		while((request = pendingRequests.peek()) != null)
+		{
+			if(request.isHandled())
+			{
+				pendingRequests.poll();
+			}
+			else if(request.deadline <= now)
+			{
+				pendingRequests.poll();
+				request.complete(null);
+				abandon(request);
+				return request;
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Completes a request which did not need a lookup
+	 */
+	private void complete(HostResolverRequest request, String host)
+	{
+		request.complete(host);
+		completedRequests.add(request);
+
+		//Return it from the next drainOneFinished
+		eventSelector.wakeup();
+	}
+
+	/**
+	 * Drops the lookup of a request which has timed out if nothing else is waiting for it
+	 *
+	 * <p>Lookups which have already started cannot be stopped, so they stay active (and
+	 *  new requests for the address wait for them) until they finish.
+	 */
+	private void abandon(HostResolverRequest request)
+	{
+		AddressLookup addressLookup = activeLookups.get(request.address);
+
+		if(addressLookup != null && --addressLookup.waiting == 0 && eService.remove(addressLookup))
+		{
+			activeLookups.remove(request.address);
+		}
+	}
+
+	/**
+	 * Looks up the hostname of an address and caches it
+	 *
+	 * <p>Called from the resolver threads
+	 *
+	 * @param address address to lookup
+	 * @return the hostname or null if there isn't one (or it failed forward confirmation)
+	 */
+	private String resolve(InetAddress address)
+	{
+		String host = lookup.reverseLookup(address);
+
+		if(host != null && forwardConfirm && !confirmHost(host, address))
+		{
+			host = null;
+		}
+
+		if(cacheSize > 0)
+		{
+			long expires = System.currentTimeMillis() + (host == null ? negativeTTL : cacheTTL);
+
+			synchronized(cache)
+			{
+				cache.put(address, new CacheEntry(host, expires));
+			}
+		}
+
+		return host;
+	}
+
+	/**
+	 * Checks that a hostname resolves back to the given address
+	 */
+	private boolean confirmHost(String host, InetAddress address)
+	{
+		try
+		{
+			for(InetAddress forward : lookup.forwardLookup(host))
+			{
+				if(forward.equals(address))
+				{
+					return true;
+				}
+			}
+		}
+		catch(UnknownHostException e)
+		{
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets the cache entry for an address if it has not expired
+	 */
+	private CacheEntry getCached(InetAddress address)
+	{
+		if(cacheSize == 0)
+		{
+			return null;
+		}
+
+		synchronized(cache)
+		{
+			CacheEntry entry = cache.get(address);
+
+			if(entry != null && entry.expires <= System.currentTimeMillis())
+			{
+				cache.remove(address);
+				return null;
+			}
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns the number of requests which were answered from the cache
+	 */
+	public long getCacheHits()
+	{
+		return cacheHits;
+	}
+
+	/**
+	 * Returns the number of requests which were not found in the cache
+	 */
+	public long getCacheMisses()
+	{
+		return cacheMisses;
 	}
 
 	/**
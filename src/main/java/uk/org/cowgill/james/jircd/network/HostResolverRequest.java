@@ -15,48 +15,76 @@
 */
 package uk.org.cowgill.james.jircd.network;
 
-import java.nio.channels.Selector;
-import java.util.concurrent.BlockingQueue;
+import java.net.InetAddress;
 
 /**
  * A request to resolve the hostname of a client
  *
+ * <p>Requests for the same address share one lookup. Requests are only used by the main thread.
+ *
  * @author James
  */
-class HostResolverRequest implements Runnable
+class HostResolverRequest
 {
-	private NetworkClient client;
-	private BlockingQueue<NetworkClient> finishQueue;
-	private Selector eventSelector;
+	/**
+	 * Address being resolved
+	 */
+	final InetAddress address;
+
+	/**
+	 * Client whose host is being resolved
+	 */
+	final NetworkClient client;
+
+	/**
+	 * Time the client stops waiting for the result
+	 */
+	final long deadline;
+
+	/**
+	 * Client's host (null until the request has been handled)
+	 */
+	private String host;
 
 	/**
 	 * Creates a new host resolver request
 	 *
 	 * @param client client whose host to resolve
-	 * @param finishQueue queue to add client to when the operation has been complete
-	 * @param eventSelector selector to wake up when done
+	 * @param address address of the client
+	 * @param deadline time the client stops waiting for the result
 	 */
-	public HostResolverRequest(NetworkClient client, BlockingQueue<NetworkClient> finishQueue, Selector eventSelector)
+	public HostResolverRequest(NetworkClient client, InetAddress address, long deadline)
 	{
 		this.client = client;
-		this.finishQueue = finishQueue;
-		this.eventSelector = eventSelector;
+		this.address = address;
+		this.deadline = deadline;
 	}
 
 	/**
-	 * Performs the hostname resolution (blocking)
+	 * Stores the result of the request
+	 *
+	 * @param host resolved hostname or null to use the ip address
 	 */
-	@Override
-	public void run()
+	void complete(String host)
 	{
-		//Resolve hostname
-		final String host = client.getRemoteAddress().getHostName();
+		this.host = (host == null) ? address.getHostAddress() : host;
+	}
 
-		//Update host in client
-		client.id.host = host;
+	/**
+	 * Returns the client's host (the hostname or the ip address)
+	 *
+	 * @return the host or null if the request has not been handled yet
+	 */
+	String getHost()
+	{
+		return host;
+	}
 
-		//Notify caller
-		finishQueue.add(client);
-		eventSelector.wakeup();
+	/**
+	 * Returns true if this request has been handled (completed or timed out)
+	 */
+	boolean isHandled()
+	{
+		return host != null;
 	}
 }
@@ -0,0 +1,109 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.Queue;
+
+/**
+ * Something which performs client I/O outside the main thread
+ *
+ * <p>Handlers read and decode messages and write send queues. Decoded messages are passed back
+ *  to the main thread so that all server state is still only modified by one thread.
+ *
+ * @author James
+ */
+abstract class IoHandler
+{
+	/**
+	 * UTF-8 decoder used by this handler's clients
+	 */
+	final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
+
+	/**
+	 * Scratch array used to decode lines from direct buffers
+	 */
+	final byte[] lineArray = new byte[512];
+
+	/**
+	 * Pool of read buffers used by this handler's clients
+	 */
+	final ReadBufferPool readPool;
+
+	/**
+	 * Queue of clients with messages for the main thread
+	 */
+	private final Queue<NetworkClient> inboundClients;
+
+	/**
+	 * Main thread's selector
+	 */
+	private final Selector mainSelector;
+
+	/**
+	 * Creates a new I/O handler
+	 *
+	 * @param inboundClients queue to add clients to when they have messages to execute
+	 * @param mainSelector main thread's selector (woken up when clients are added to inboundClients)
+	 * @param readPool pool of read buffers for this handler's clients
+	 */
+	IoHandler(Queue<NetworkClient> inboundClients, Selector mainSelector, ReadBufferPool readPool)
+	{
+		this.inboundClients = inboundClients;
+		this.mainSelector = mainSelector;
+		this.readPool = readPool;
+	}
+
+	/**
+	 * Starts handling the I/O of a client
+	 *
+	 * <p>Called by the main thread after the client has been setup
+	 *
+	 * @param client client to handle
+	 */
+	abstract void addClient(NetworkClient client);
+
+	/**
+	 * Requests that the handler writes a client's send queue
+	 *
+	 * <p>Called by the main thread when data is added to an empty send queue
+	 *
+	 * @param client client with pending data
+	 */
+	abstract void requestWrite(NetworkClient client);
+
+	/**
+	 * Requests that the handler processes the lines it has already read from a client
+	 *
+	 * <p>Called by the main thread when a client stops being flood limited
+	 *
+	 * @param client client to resume
+	 */
+	abstract void requestRead(NetworkClient client);
+
+	/**
+	 * Passes a client with decoded messages to the main thread
+	 *
+	 * @param client client to pass
+	 */
+	void notifyInbound(NetworkClient client)
+	{
+		inboundClients.add(client);
+		mainSelector.wakeup();
+	}
+}
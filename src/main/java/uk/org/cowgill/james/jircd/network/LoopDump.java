@@ -0,0 +1,208 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import uk.org.cowgill.james.jircd.Client;
+import uk.org.cowgill.james.jircd.Command;
+import uk.org.cowgill.james.jircd.Message;
+import uk.org.cowgill.james.jircd.Permissions;
+import uk.org.cowgill.james.jircd.Server;
+
+/**
+ * The LOOPDUMP command - writes the server loop histograms to a file
+ *
+ * <p>The file is written next to the config file by a background thread so the main loop is not
+ *  stalled (and does not measure its own I/O). If RESET is given, the histograms are cleared
+ *  when the copy to be written is taken. The oper is sent a notice once the file is written.
+ *
+ * @author James
+ */
+class LoopDump implements Command
+{
+	private static final Logger logger = Logger.getLogger(LoopDump.class);
+
+	private final AbstractNetworkServer server;
+	private final LoopProfiler profiler;
+
+	/**
+	 * Dumps which have been written (or have failed)
+	 */
+	private final ConcurrentLinkedQueue<FinishedDump> finishedDumps = new ConcurrentLinkedQueue<FinishedDump>();
+
+	/**
+	 * The result of writing a dump
+	 */
+	private static class FinishedDump
+	{
+		final Client client;
+		final File file;
+
+		/**
+		 * Error writing the file (or null if it was written)
+		 */
+		final IOException error;
+
+		FinishedDump(Client client, File file, IOException error)
+		{
+			this.client = client;
+			this.file = file;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Creates a new LOOPDUMP command
+	 *
+	 * @param server server whose selector is woken up when a dump has been written
+	 * @param profiler profiler to dump
+	 */
+	public LoopDump(AbstractNetworkServer server, LoopProfiler profiler)
+	{
+		this.server = server;
+		this.profiler = profiler;
+	}
+
+	@Override
+	public void run(final Client client, Message msg)
+	{
+		//Check permissions
+		if(!client.hasPermission(Permissions.stats))
+		{
+			client.send(client.newNickMessage("481").appendParam("LOOPDUMP: Permission Denied"));
+			return;
+		}
+
+		File dir = Server.getServer().getConfigFile().getAbsoluteFile().getParentFile();
+		final File file = new File(dir, "loopstats-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".txt");
+
+		//Copy the histograms (resetting at the same time so no samples are lost)
+		final LoopProfiler snapshot = profiler.snapshot();
+
+		if(msg.paramCount() > 0 && msg.getParam(0).equalsIgnoreCase("RESET"))
+		{
+			profiler.reset();
+		}
+
+		//Write the copy in the background
+		Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					finishedDumps.add(new FinishedDump(client, file, write(snapshot, file)));
+					server.eventSelector.wakeup();
+				}
+			}, "LoopDump");
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes the histograms of a profiler to a file
+	 *
+	 * @return null or the error which occurred
+	 */
+	private static IOException write(LoopProfiler snapshot, File file)
+	{
+		try
+		{
+			PrintWriter writer = new PrintWriter(new FileWriter(file));
+
+			try
+			{
+				snapshot.dump(writer);
+			}
+			finally
+			{
+				writer.close();
+			}
+
+			if(writer.checkError())
+			{
+				return new IOException("Error writing to " + file);
+			}
+
+			return null;
+		}
+		catch(IOException e)
+		{
+			return e;
+		}
+	}
+
+	/**
+	 * Notifies the opers whose dumps have been written
+	 *
+	 * <p>This must only be called from the main thread
+	 */
+	void processFinishedDumps()
+	{
+		FinishedDump dump = finishedDumps.poll();
+
+		while(dump != null)
+		{
+			String notice;
+
+			if(dump.error == null)
+			{
+				logger.info("Loop statistics written to " + dump.file + " as requested by " + dump.client.id.nick);
+				notice = "Loop statistics written to " + dump.file;
+			}
+			else
+			{
+				logger.error("Error writing loop statistics to " + dump.file, dump.error);
+				notice = "Could not write " + dump.file;
+			}
+
+			if(!dump.client.isClosed())
+			{
+				dump.client.send(Message.newMessageFromServer("NOTICE").appendParam(dump.client.id.nick).
+						appendParam(notice));
+			}
+
+			dump = finishedDumps.poll();
+		}
+	}
+
+	@Override
+	public int getMinParameters()
+	{
+		return 0;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "LOOPDUMP";
+	}
+
+	@Override
+	public int getFlags()
+	{
+		return FLAG_NORMAL;
+	}
+}
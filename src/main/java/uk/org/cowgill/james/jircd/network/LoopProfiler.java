@@ -0,0 +1,264 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.io.PrintWriter;
+
+import uk.org.cowgill.james.jircd.Client;
+import uk.org.cowgill.james.jircd.util.LatencyHistogram;
+
+/**
+ * Records how long each phase of the server loop takes
+ *
+ * <p>Times are recorded in microseconds. The profiler is always on: each tick costs one call to
+ *  System.nanoTime() per phase.
+ *
+ * <p>This class must only be used from the main thread.
+ *
+ * @author James
+ */
+final class LoopProfiler
+{
+	/**
+	 * Waiting for events (time spent in select)
+	 */
+	static final int SELECT = 0;
+
+	/**
+	 * Draining host resolver results (and resuming TLS handshakes and finishing loop dumps)
+	 */
+	static final int RESOLVER = 1;
+
+	/**
+	 * Reading, writing and executing commands
+	 */
+	static final int DISPATCH = 2;
+
+	/**
+	 * Waking throttled clients
+	 */
+	static final int FLOOD = 3;
+
+	/**
+	 * Ping timeout checks
+	 */
+	static final int PING = 4;
+
+	/**
+	 * Closing clients and flushing send queues
+	 */
+	static final int CLOSE = 5;
+
+	/**
+	 * Names of the phases
+	 */
+	private static final String[] PHASE_NAMES = { "select", "resolver", "dispatch", "flood", "ping", "close" };
+
+	private final LatencyHistogram[] phases = new LatencyHistogram[PHASE_NAMES.length];
+
+	/**
+	 * Duration of each tick excluding select
+	 */
+	private final LatencyHistogram busyTime;
+
+	/**
+	 * Number of ready keys each tick
+	 */
+	private final LatencyHistogram readyKeys;
+
+	/**
+	 * Time of the last mark (or start of the tick)
+	 */
+	private long lastMark;
+
+	/**
+	 * Time select returned this tick
+	 */
+	private long busyStart;
+
+	/**
+	 * Creates a new loop profiler
+	 */
+	LoopProfiler()
+	{
+		for(int i = 0; i < phases.length; i++)
+		{
+			phases[i] = new LatencyHistogram();
+		}
+
+		busyTime = new LatencyHistogram();
+		readyKeys = new LatencyHistogram();
+	}
+
+	/**
+	 * Creates a copy of another profiler's histograms
+	 *
+	 * @param other profiler to copy
+	 */
+	private LoopProfiler(LoopProfiler other)
+	{
+		for(int i = 0; i < phases.length; i++)
+		{
+			phases[i] = new LatencyHistogram(other.phases[i]);
+		}
+
+		busyTime = new LatencyHistogram(other.busyTime);
+		readyKeys = new LatencyHistogram(other.readyKeys);
+	}
+
+	/**
+	 * Returns a copy of the histograms recorded so far
+	 *
+	 * <p>The copy can be used by another thread once this returns
+	 *
+	 * @return the copy
+	 */
+	LoopProfiler snapshot()
+	{
+		return new LoopProfiler(this);
+	}
+
+	/**
+	 * Starts a new tick (called just before select)
+	 */
+	void startTick()
+	{
+		lastMark = System.nanoTime();
+	}
+
+	/**
+	 * Records the end of the select phase
+	 *
+	 * @param keys number of keys which are ready
+	 */
+	void selected(int keys)
+	{
+		mark(SELECT);
+		busyStart = lastMark;
+		readyKeys.record(keys);
+	}
+
+	/**
+	 * Records the end of a phase
+	 *
+	 * @param phase phase which has just finished
+	 */
+	void mark(int phase)
+	{
+		long now = System.nanoTime();
+		phases[phase].record((now - lastMark) / 1000);
+		lastMark = now;
+	}
+
+	/**
+	 * Ends the tick (called after the last phase)
+	 */
+	void endTick()
+	{
+		busyTime.record((lastMark - busyStart) / 1000);
+	}
+
+	/**
+	 * Removes all recorded times
+	 */
+	void reset()
+	{
+		for(LatencyHistogram histogram : phases)
+		{
+			histogram.reset();
+		}
+
+		busyTime.reset();
+		readyKeys.reset();
+	}
+
+	/**
+	 * Sends a summary of the loop times to a client (STATS e)
+	 *
+	 * @param client client to send to
+	 */
+	void sendStatistics(Client client)
+	{
+		sendHistogram(client, "tick", busyTime, "us");
+
+		for(int i = 0; i < phases.length; i++)
+		{
+			sendHistogram(client, PHASE_NAMES[i], phases[i], "us");
+		}
+
+		sendHistogram(client, "readykeys", readyKeys, "");
+	}
+
+	/**
+	 * Sends a summary of one histogram
+	 */
+	private static void sendHistogram(Client client, String name, LatencyHistogram histogram, String unit)
+	{
+		client.send(client.newNickMessage("249").appendParam(String.format(
+				"%s count %d mean %.1f%s p50 %d%s p99 %d%s p99.9 %d%s max %d%s",
+				name, histogram.getCount(),
+				histogram.getMean(), unit,
+				histogram.getValueAtPercentile(50), unit,
+				histogram.getValueAtPercentile(99), unit,
+				histogram.getValueAtPercentile(99.9), unit,
+				histogram.getMax(), unit)));
+	}
+
+	/**
+	 * Writes the loop latency metrics
+	 *
+	 * @param writer metrics writer to write to
+	 */
+	void writeMetrics(MetricsWriter writer)
+	{
+		writer.header("jircd_loop_tick_seconds", "summary", "Time spent processing each loop tick (excluding select)");
+		writer.summary("jircd_loop_tick_seconds", null, busyTime, 1e6);
+
+		writer.header("jircd_loop_phase_seconds", "summary", "Time spent in each phase of the loop");
+		for(int i = 0; i < phases.length; i++)
+		{
+			writer.summary("jircd_loop_phase_seconds", new String[] { "phase", PHASE_NAMES[i] }, phases[i], 1e6);
+		}
+	}
+
+	/**
+	 * Writes every histogram in full
+	 *
+	 * @param writer writer to write to
+	 */
+	void dump(PrintWriter writer)
+	{
+		dumpHistogram(writer, "tick (us)", busyTime);
+
+		for(int i = 0; i < phases.length; i++)
+		{
+			dumpHistogram(writer, PHASE_NAMES[i] + " (us)", phases[i]);
+		}
+
+		dumpHistogram(writer, "readykeys", readyKeys);
+	}
+
+	/**
+	 * Writes one histogram in full
+	 */
+	private static void dumpHistogram(PrintWriter writer, String name, LatencyHistogram histogram)
+	{
+		writer.println("# " + name + " count " + histogram.getCount() + " total " + histogram.getTotal() +
+				" max " + histogram.getMax());
+		histogram.dump(writer);
+		writer.println();
+	}
+}
@@ -0,0 +1,374 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import uk.org.cowgill.james.jircd.Config;
+
+/**
+ * A minimal HTTP listener which serves server metrics in the Prometheus text format
+ *
+ * <p>The listener and its connections are registered with the main event selector, so the
+ *  metrics are always collected on the main thread. Each connection answers one GET request
+ *  and is then closed. Connections which take too long to send their request are dropped.
+ *
+ * @author James
+ */
+final class MetricsListener
+{
+	private static final Logger logger = Logger.getLogger(MetricsListener.class);
+
+	/**
+	 * Maximum size of a request (including headers)
+	 */
+	private static final int MAX_REQUEST = 4096;
+
+	/**
+	 * Maximum number of connections open at once
+	 */
+	private static final int MAX_CONNECTIONS = 16;
+
+	/**
+	 * Milliseconds a connection may stay open for
+	 */
+	private static final long CONNECTION_TIMEOUT = 10000;
+
+	/**
+	 * A connection to the metrics listener
+	 */
+	final class Connection extends TimingWheel.Timer
+	{
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+		private ByteBuffer response;
+
+		/**
+		 * Creates a new connection and registers it with the selector
+		 */
+		private Connection(SocketChannel channel) throws IOException
+		{
+			this.channel = channel;
+
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		/**
+		 * Called when the connection is readable or writable
+		 */
+		void processEvent()
+		{
+			try
+			{
+				if(response == null)
+				{
+					//Read request
+					if(channel.read(request) == -1)
+					{
+						close();
+						return;
+					}
+
+					if(!parseRequest())
+					{
+						return;
+					}
+
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+
+				//Write response
+				channel.write(response);
+
+				if(!response.hasRemaining())
+				{
+					close();
+				}
+			}
+			catch(IOException e)
+			{
+				close();
+			}
+		}
+
+		/**
+		 * Creates the response once the whole request has been read
+		 *
+		 * @return false if the request is incomplete
+		 */
+		private boolean parseRequest()
+		{
+			String data;
+
+			try
+			{
+				data = new String(request.array(), 0, request.position(), "ISO-8859-1");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new RuntimeException(e);
+			}
+
+			if(!data.contains("\r\n\r\n") && !data.contains("\n\n"))
+			{
+				if(request.hasRemaining())
+				{
+					return false;
+				}
+
+				response = createResponse("431 Request Header Fields Too Large", null);
+				return true;
+			}
+
+			//Check request line
+			String[] requestLine = data.substring(0, data.indexOf('\n')).trim().split(" ");
+
+			if(requestLine.length != 3 || !requestLine[0].equals("GET"))
+			{
+				response = createResponse("405 Method Not Allowed", null);
+			}
+			else if(!requestLine[1].equals("/metrics") && !requestLine[1].equals("/"))
+			{
+				response = createResponse("404 Not Found", null);
+			}
+			else
+			{
+				MetricsWriter writer = new MetricsWriter();
+				server.writeMetrics(writer);
+
+				response = createResponse("200 OK", writer.toString());
+			}
+
+			return true;
+		}
+
+		/**
+		 * Closes the connection
+		 */
+		void close()
+		{
+			if(connections.remove(this))
+			{
+				wheel.cancel(this);
+
+				try
+				{
+					channel.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+
+		@Override
+		void expired(long now)
+		{
+			close();
+		}
+	}
+
+	private final AbstractNetworkServer server;
+	private final Selector selector;
+	private final TimingWheel wheel;
+
+	/**
+	 * Current listening socket (or null if disabled)
+	 */
+	private ServerSocketChannel listener;
+
+	/**
+	 * Address the listener is bound to
+	 */
+	private InetSocketAddress boundAddress;
+
+	/**
+	 * Open connections
+	 */
+	private final Set<Connection> connections = new HashSet<Connection>();
+
+	/**
+	 * Creates a new metrics listener (which is not listening yet)
+	 *
+	 * @param server server to get metrics from
+	 * @param selector selector to register sockets with
+	 * @param wheel timing wheel used to time out connections
+	 */
+	MetricsListener(AbstractNetworkServer server, Selector selector, TimingWheel wheel)
+	{
+		this.server = server;
+		this.selector = selector;
+		this.wheel = wheel;
+	}
+
+	/**
+	 * Binds the listener to the address given in the config
+	 *
+	 * <p>Nothing happens if it is already bound to that address. Errors are logged.
+	 *
+	 * @param config config to read the address from
+	 */
+	void setup(Config config)
+	{
+		InetSocketAddress address = null;
+
+		if(config.metricsPort != 0)
+		{
+			address = new InetSocketAddress(config.metricsAddress, config.metricsPort);
+
+			if(address.equals(boundAddress))
+			{
+				return;
+			}
+		}
+
+		//Close old listener
+		closeListener();
+
+		if(address == null)
+		{
+			return;
+		}
+
+		if(address.isUnresolved())
+		{
+			logger.error("Could not resolve metrics address " + config.metricsAddress);
+			return;
+		}
+
+		//Bind new listener
+		try
+		{
+			listener = ServerSocketChannel.open();
+			listener.configureBlocking(false);
+			listener.socket().bind(address);
+			listener.register(selector, SelectionKey.OP_ACCEPT, this);
+
+			boundAddress = address;
+			logger.info("Serving metrics on " + address);
+		}
+		catch(IOException e)
+		{
+			logger.error("Could not bind metrics listener to " + address, e);
+			closeListener();
+		}
+	}
+
+	/**
+	 * Accepts a new connection
+	 */
+	void accept()
+	{
+		try
+		{
+			SocketChannel channel = listener.accept();
+
+			if(channel == null)
+			{
+				return;
+			}
+
+			if(connections.size() >= MAX_CONNECTIONS)
+			{
+				channel.close();
+				return;
+			}
+
+			Connection connection = new Connection(channel);
+			connections.add(connection);
+			wheel.schedule(connection, System.currentTimeMillis() + CONNECTION_TIMEOUT);
+		}
+		catch(IOException e)
+		{
+			logger.warn("Error accepting metrics connection", e);
+		}
+	}
+
+	/**
+	 * Closes the listener and all connections
+	 */
+	void close()
+	{
+		closeListener();
+
+		for(Connection connection : new ArrayList<Connection>(connections))
+		{
+			connection.close();
+		}
+	}
+
+	/**
+	 * Closes the listening socket
+	 */
+	private void closeListener()
+	{
+		if(listener != null)
+		{
+			try
+			{
+				listener.close();
+			}
+			catch(IOException e)
+			{
+			}
+
+			listener = null;
+			boundAddress = null;
+		}
+	}
+
+	/**
+	 * Creates an HTTP response
+	 *
+	 * @param status status code and reason
+	 * @param body response body (or null for none)
+	 * @return buffer containing the response
+	 */
+	private static ByteBuffer createResponse(String status, String body)
+	{
+		try
+		{
+			byte[] bodyBytes = (body == null) ? new byte[0] : body.getBytes("UTF-8");
+			byte[] header = ("HTTP/1.0 " + status + "\r\n" +
+					"Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+					"Content-Length: " + bodyBytes.length + "\r\n" +
+					"Connection: close\r\n\r\n").getBytes("ISO-8859-1");
+
+			ByteBuffer buffer = ByteBuffer.allocate(header.length + bodyBytes.length);
+			buffer.put(header).put(bodyBytes);
+			buffer.flip();
+			return buffer;
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
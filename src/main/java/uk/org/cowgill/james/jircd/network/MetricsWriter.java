@@ -0,0 +1,160 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import uk.org.cowgill.james.jircd.util.LatencyHistogram;
+
+/**
+ * Builds metrics in the Prometheus text exposition format
+ *
+ * <p>Each metric must have its header written (with {@link #header}) before its samples.
+ *
+ * @author James
+ */
+final class MetricsWriter
+{
+	/**
+	 * Quantiles written for summaries
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final StringBuilder out = new StringBuilder(4096);
+
+	/**
+	 * Writes the HELP and TYPE lines of a metric
+	 *
+	 * @param name name of the metric
+	 * @param type type of the metric (counter, gauge or summary)
+	 * @param help description of the metric
+	 */
+	void header(String name, String type, String help)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Writes one sample
+	 *
+	 * @param name name of the metric
+	 * @param labels labels to add (alternating names and values) or null
+	 * @param value value of the sample
+	 */
+	void sample(String name, String[] labels, String value)
+	{
+		out.append(name);
+
+		if(labels != null && labels.length > 0)
+		{
+			out.append('{');
+
+			for(int i = 0; i < labels.length; i += 2)
+			{
+				if(i != 0)
+				{
+					out.append(',');
+				}
+
+				out.append(labels[i]).append("=\"");
+				appendEscaped(labels[i + 1]);
+				out.append('"');
+			}
+
+			out.append('}');
+		}
+
+		out.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Writes a metric with one sample
+	 *
+	 * @param name name of the metric
+	 * @param type type of the metric
+	 * @param help description of the metric
+	 * @param value value of the metric
+	 */
+	void single(String name, String type, String help, long value)
+	{
+		header(name, type, help);
+		sample(name, null, Long.toString(value));
+	}
+
+	/**
+	 * Writes the samples of a summary from a histogram
+	 *
+	 * @param name name of the metric
+	 * @param labels extra labels (alternating names and values) or null
+	 * @param histogram histogram to summarize
+	 * @param divisor divisor to convert histogram values into the metric's units
+	 */
+	void summary(String name, String[] labels, LatencyHistogram histogram, double divisor)
+	{
+		String[] quantileLabels;
+
+		if(labels == null)
+		{
+			quantileLabels = new String[2];
+		}
+		else
+		{
+			quantileLabels = new String[labels.length + 2];
+			System.arraycopy(labels, 0, quantileLabels, 0, labels.length);
+		}
+
+		quantileLabels[quantileLabels.length - 2] = "quantile";
+
+		for(double quantile : QUANTILES)
+		{
+			quantileLabels[quantileLabels.length - 1] = Double.toString(quantile);
+			sample(name, quantileLabels,
+					Double.toString(histogram.getValueAtPercentile(quantile * 100) / divisor));
+		}
+
+		sample(name + "_sum", labels, Double.toString(histogram.getTotal() / divisor));
+		sample(name + "_count", labels, Long.toString(histogram.getCount()));
+	}
+
+	/**
+	 * Appends a label value with backslashes, quotes and new lines escaped
+	 */
+	private void appendEscaped(String value)
+	{
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+
+			if(c == '\\' || c == '"')
+			{
+				out.append('\\').append(c);
+			}
+			else if(c == '\n')
+			{
+				out.append("\\n");
+			}
+			else
+			{
+				out.append(c);
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return out.toString();
+	}
+}
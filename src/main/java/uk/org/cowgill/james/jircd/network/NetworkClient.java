@@ -18,19 +18,25 @@ package uk.org.cowgill.james.jircd.network;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
 import java.security.SecureRandom;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import uk.org.cowgill.james.jircd.Client;
 import uk.org.cowgill.james.jircd.ConnectionClass;
+import uk.org.cowgill.james.jircd.EncodedMessage;
 import uk.org.cowgill.james.jircd.IRCMask;
 import uk.org.cowgill.james.jircd.Message;
 import uk.org.cowgill.james.jircd.Server;
@@ -56,9 +62,9 @@ class NetworkClient extends Client
 	private static final Logger logger = Logger.getLogger(NetworkClient.class);
 
 	/**
-	 * UTF-8 character set encoder
+	 * Character set used to decode lines containing only ASCII characters
 	 */
-	private static final CharsetEncoder cEncoder = Charset.forName("UTF-8").newEncoder();
+	private static final Charset asciiCharset = Charset.forName("ISO-8859-1");
 
 	/**
 	 * UTF-8 character set decoder
@@ -66,9 +72,39 @@ class NetworkClient extends Client
 	private static final CharsetDecoder cDecoder = Charset.forName("UTF-8").newDecoder();
 
 	/**
-	 * ByteBuffer containing a carriage return then a line feed
+	 * Scratch array used to decode lines from direct buffers (only used by the main thread)
 	 */
-	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+	private static final byte[] lineArray = new byte[512];
+
+	/**
+	 * Size of the buffers small writes are combined into
+	 */
+	private static final int SEND_CHUNK_SIZE = 4096;
+
+	/**
+	 * Number of queued bytes which causes a client to be flushed before the end of the loop
+	 */
+	private static final int FLUSH_THRESHOLD = 16384;
+
+	/**
+	 * Maximum number of queued buffers written by one gathering write
+	 */
+	private static final int MAX_WRITE_BUFFERS = 64;
+
+	/**
+	 * Buffer outgoing messages are encoded into before being written (only used by the main thread)
+	 */
+	private static final ByteBuffer sendScratch = ByteBuffer.allocate(Message.MAX_LENGTH);
+
+	/**
+	 * Clients handled by the main thread with data waiting to be flushed
+	 */
+	private static ArrayList<NetworkClient> dirtyClients = new ArrayList<NetworkClient>();
+
+	/**
+	 * Read buffer pool used by clients handled by the main thread
+	 */
+	static ReadBufferPool mainReadPool = new ReadBufferPool(false, 0);
 
 	//-----------------------------------
 
@@ -78,25 +114,88 @@ class NetworkClient extends Client
 	private SocketChannel channel;
 
 	/**
-	 * Data for byte buffer
+	 * Byte buffer containing received data which has not been processed yet
+	 *
+	 * <p>This is borrowed from the read buffer pool when data arrives and returned once all of it
+	 *  has been processed (it is null in between)
+	 */
+	private ByteBuffer localBuffer;
+
+	/**
+	 * Queue of data waiting to be written to the socket (the SendQ)
+	 */
+	private LinkedList<ByteBuffer> sendQueue = new LinkedList<ByteBuffer>();
+
+	/**
+	 * Number of bytes waiting in the send queue
+	 */
+	private int sendQueueSize;
+
+	/**
+	 * True if this client is in the dirty clients list
+	 */
+	private boolean dirty;
+
+	/**
+	 * Selection key of the channel (null until the channel is registered with a selector)
 	 */
-	private byte[] localBufferData = new byte[1025];
+	private SelectionKey selectionKey;
 
 	/**
-	 * Byte buffer to recent messages
+	 * Reactor or blocking connection handling this client's I/O or null if handled by the main thread
 	 */
-	private ByteBuffer localBuffer = ByteBuffer.wrap(localBufferData);
+	private IoHandler reactor;
+
+	/**
+	 * True if the channel is in blocking mode (I/O is handled by a BlockingConnection)
+	 */
+	private boolean blocking;
+
+	/**
+	 * Messages decoded by the reactor waiting to be executed by the main thread
+	 */
+	private final ConcurrentLinkedQueue<InboundMessage> inboundQueue = new ConcurrentLinkedQueue<InboundMessage>();
+
+	/**
+	 * Number of bytes in the inbound queue (counts towards the ReadQ)
+	 */
+	private final AtomicInteger inboundQueueSize = new AtomicInteger();
+
+	/**
+	 * True if this client is waiting for the main thread to process its inbound queue
+	 */
+	private final AtomicBoolean inboundScheduled = new AtomicBoolean();
+
+	/**
+	 * Reason given by the reactor for closing this client
+	 */
+	private volatile String reactorCloseReason;
 
 	/**
 	 * Time of the last message to be received by the server
 	 */
-	private long lastMessageTime;
+	private volatile long lastMessageTime;
+
+	/**
+	 * Timer which checks for ping timeouts
+	 */
+	private final PingTimer pingTimer = new PingTimer();
+
+	/**
+	 * Wheel the ping timer is scheduled in
+	 */
+	private TimingWheel pingWheel;
 
 	/**
 	 * Timer used for the flood limiter
 	 */
 	private FloodTimer floodTimer = new FloodTimer(this);
 
+	/**
+	 * Set by the main thread while a reactor client is flood limited
+	 */
+	private volatile boolean floodLimited;
+
 	/**
 	 * Spoof check string
 	 */
@@ -110,7 +209,7 @@ class NetworkClient extends Client
 	/**
 	 * Current connection class
 	 */
-	private ConnectionClass connClass;
+	private volatile ConnectionClass connClass;
 
 	//Static constructor
 	static
@@ -149,6 +248,35 @@ class NetworkClient extends Client
 		this.channel = channel;
 	}
 
+	/**
+	 * Creates a new NetworkClient from a SocketChannel whose I/O is handled by a reactor
+	 *
+	 * You almost always want to call setup() after this
+	 *
+	 * @param channel channel to setup from
+	 * @param reactor reactor which will handle the channel
+	 */
+	NetworkClient(SocketChannel channel, NetworkReactor reactor)
+	{
+		this(channel, 0);
+		this.reactor = reactor;
+	}
+
+	/**
+	 * Creates a new NetworkClient from a SocketChannel using blocking I/O
+	 *
+	 * You almost always want to call setup() after this
+	 *
+	 * @param channel channel to setup from
+	 * @param connection connection whose threads will handle the channel
+	 */
+	NetworkClient(SocketChannel channel, BlockingConnection connection)
+	{
+		this(channel, 0);
+		this.reactor = connection;
+		this.blocking = true;
+	}
+
 	/**
 	 * Called to complete setting up a new connection
 	 *
@@ -157,7 +285,7 @@ class NetworkClient extends Client
 	void setup() throws IOException
 	{
 		//Setup channel options
-		channel.configureBlocking(false);
+		channel.configureBlocking(blocking);
 		channel.socket().setReceiveBufferSize(1024);
 		channel.socket().setSoLinger(true, 5);
 		changeClass(DEFAULT_CONN_CLASS, true);
@@ -176,101 +304,215 @@ class NetworkClient extends Client
 
 	/**
 	 * Called when a read event occurs
+	 *
+	 * <p>If this client is handled by a reactor, this is called on the reactor thread and
+	 *  decoded messages are passed to the main thread instead of being executed
 	 */
 	void processReadEvent()
 	{
+		ReadBufferPool pool = getReadPool();
+
 		try
 		{
-			if (readWrapper(localBuffer) == -1)
+			int read;
+
+			if(blocking && localBuffer == null)
+			{
+				//Blocking reads wait in the connection's small buffer so idle clients
+				// do not hold a read buffer from the pool
+				read = readIntoWaitBuffer(pool, ((BlockingConnection) reactor).waitBuffer);
+			}
+			else
+			{
+				//Borrow a read buffer (or resize it if the class has changed)
+				updateBufferSize(pool);
+				read = readWrapper(localBuffer);
+			}
+
+			if (read == -1)
 			{
 				//Close client
-				close("Connection reset by peer");
+				ioClose("Connection reset by peer");
 				return;
 			}
 		}
+		catch(ClosedChannelException e)
+		{
+			//Closed by the main thread while we were reading
+			return;
+		}
 		catch(IOException e)
 		{
 			logger.warn("Read error from socket", e);
-			close("Read error");
+			ioClose("Read error");
 			return;
 		}
 
+		//The class may have changed while a blocking read was waiting
+		if(localBuffer.remaining() <= 0)
+		{
+			updateBufferSize(pool);
+		}
+
 		//Check exceeding ReadQ
 		if(localBuffer.remaining() <= 0)
 		{
 			//Close client
-			close("ReadQ Limit Exceeded");
+			ioClose("ReadQ Limit Exceeded");
 			return;
 		}
 
+		processReadBuffer(pool);
+	}
+
+	/**
+	 * Waits for data using a small buffer and then copies it into a borrowed read buffer
+	 *
+	 * <p>Any more data is read into the borrowed buffer by the next read. A read buffer is
+	 *  only borrowed once data has arrived.
+	 *
+	 * @param pool pool to borrow the read buffer from
+	 * @param waitBuffer buffer to wait for data in
+	 * @return number of bytes read or -1 at the end of the stream
+	 */
+	private int readIntoWaitBuffer(ReadBufferPool pool, ByteBuffer waitBuffer) throws IOException
+	{
+		waitBuffer.clear();
+		waitBuffer.limit(Math.min(waitBuffer.capacity(), connClass.readQueue + 1));
+
+		int read = readWrapper(waitBuffer);
+
+		if(read > 0)
+		{
+			updateBufferSize(pool);
+
+			waitBuffer.flip();
+			localBuffer.put(waitBuffer);
+		}
+
+		return read;
+	}
+
+	/**
+	 * Processes the lines left in the read buffer once this client is no longer flood limited
+	 *
+	 * <p>Called on the thread of this client's reactor after {@link IoHandler#requestRead}
+	 */
+	void resumeRead()
+	{
+		if(localBuffer != null && !isReactorClosed())
+		{
+			processReadBuffer(getReadPool());
+		}
+	}
+
+	/**
+	 * Returns true if this client cannot have any more messages processed yet
+	 *
+	 * <p>The flood timer is only used by the main thread, so reactors use the state
+	 *  set when the main thread last executed this client's messages.
+	 */
+	boolean isFloodLimited()
+	{
+		return reactor == null ? !floodTimer.checkTimer() : floodLimited;
+	}
+
+	/**
+	 * Processes the complete lines in the read buffer until the client is flood limited
+	 *
+	 * @param pool pool the read buffer was borrowed from
+	 */
+	private void processReadBuffer(ReadBufferPool pool)
+	{
 		//Check flood timer
-		if(!floodTimer.checkTimer())
+		if(isFloodLimited())
 			return;
 
 		//Read message into buffer
 		int endByte = localBuffer.position();
-		localBuffer.position(0);
 
 		//Exit now if there is nothing to do
 		if (endByte == 0)
+		{
+			releaseBuffer(pool);
 			return;
+		}
 
 		//Update message time
 		lastMessageTime = System.currentTimeMillis();
 
 		//Find messages in buffer
-		for(int i = 1; i < endByte; i++)
+		// Lines are framed in place and decoded straight from the buffer
+		int lineStart = 0;
+
+		for(int i = 0; i < endByte; i++)
 		{
+			byte b = localBuffer.get(i);
+
 			//Check for end of message
-			if(localBufferData[i] == '\n' || localBufferData[i] == '\r')
+			if(b == '\n' || b == '\r')
 			{
-				//Set end of message + process buffer
-				localBuffer.limit(i);
-				processLocalBufferMessage();
-
-				//Reset position and limit
-				if(i != localBuffer.capacity() - 1)
-				{
-					localBuffer.limit(localBuffer.capacity());
-					localBuffer.position(i + 1);
-				}
+				processLine(lineStart, i);
+				lineStart = i + 1;
 
 				//If we're now limited, break now
-				if(!floodTimer.checkTimer())
+				if(isFloodLimited())
 					break;
 			}
-			else
+			else if(i - lineStart >= 512)
 			{
-				//Check for msg size exceeded
-				if((i - localBuffer.position()) >= 512)
-				{
-					//Oversized message
-					close("Read error: Message size exceeded");
-					return;
-				}
+				//Oversized message
+				ioClose("Read error: Message size exceeded");
+				return;
 			}
 		}
 
-		//Copy data after position back to start
-		localBuffer.limit(endByte);
-		localBuffer.compact();
+		//Copy data after the last line back to start
+		if(lineStart == endByte)
+		{
+			//Everything processed
+			releaseBuffer(pool);
+		}
+		else if(lineStart != 0)
+		{
+			localBuffer.limit(endByte);
+			localBuffer.position(lineStart);
+			localBuffer.compact();
+		}
 
-		//Process closure queue
-		processCloseQueue();
+		if(reactor == null)
+		{
+			//Process closure queue
+			processCloseQueue();
+		}
+		else
+		{
+			//Get the main thread to execute the messages
+			scheduleInbound();
+		}
 	}
 
-	private void processLocalBufferMessage()
+	/**
+	 * Decodes and dispatches one line from the read buffer
+	 *
+	 * @param start index of first byte of the line
+	 * @param end index after the last byte of the line
+	 */
+	private void processLine(int start, int end)
 	{
 		//Ignore empty messages
-		if(localBuffer.remaining() == 0)
+		int length = end - start;
+		if(length == 0)
 			return;
 
+		TrafficCounters.linesIn.incrementAndGet();
+
 		//Decode message
 		Message msg;
 
 		try
 		{
-			msg = Message.parse(cDecoder.decode(localBuffer).toString());
+			msg = Message.parse(decodeLine(start, length));
 		}
 		catch(CharacterCodingException e)
 		{
@@ -278,16 +520,488 @@ class NetworkClient extends Client
 			return;
 		}
 
-		//Dispatch message
-		floodTimer.processMessage();
-		Server.getServer().getModuleManager().executeCommand(this, msg);
+		if(reactor == null)
+		{
+			//Dispatch message
+			floodTimer.processMessage(msg);
+			Server.getServer().getModuleManager().executeCommand(this, msg);
+		}
+		else
+		{
+			//Queue for the main thread
+			inboundQueue.add(new InboundMessage(msg, length));
+
+			if(inboundQueueSize.addAndGet(length) > connClass.readQueue)
+			{
+				ioClose("ReadQ Limit Exceeded");
+			}
+		}
+	}
+
+	/**
+	 * Decodes a line in the read buffer into a string
+	 *
+	 * <p>Lines containing only ASCII characters skip the UTF-8 decoder
+	 *
+	 * @param start index of first byte of the line
+	 * @param length length of the line in bytes
+	 * @return the decoded line
+	 * @throws CharacterCodingException if the line is not valid UTF-8
+	 */
+	private String decodeLine(int start, int length) throws CharacterCodingException
+	{
+		//Get an array containing the line
+		byte[] data;
+		int offset;
+
+		if(localBuffer.hasArray())
+		{
+			data = localBuffer.array();
+			offset = localBuffer.arrayOffset() + start;
+		}
+		else
+		{
+			//Copy out of direct buffer
+			ByteBuffer line = localBuffer.duplicate();
+			line.limit(start + length);
+			line.position(start);
+
+			byte[] scratch = (reactor == null) ? lineArray : reactor.lineArray;
+			data = (length <= scratch.length) ? scratch : new byte[length];
+			offset = 0;
+			line.get(data, 0, length);
+		}
+
+		//Check for non-ASCII characters
+		int end = offset + length;
+
+		for(int i = offset; i < end; i++)
+		{
+			if(data[i] < 0)
+			{
+				//Use full decoder
+				CharsetDecoder decoder = (reactor == null) ? cDecoder : reactor.decoder;
+				return decoder.decode(ByteBuffer.wrap(data, offset, length)).toString();
+			}
+		}
+
+		return new String(data, offset, length, asciiCharset);
+	}
+
+	/**
+	 * Returns the I/O handler of this client (or null if it is handled by the main thread)
+	 */
+	IoHandler getIoHandler()
+	{
+		return reactor;
+	}
+
+	/**
+	 * Returns the read buffer pool of the thread handling this client
+	 */
+	private ReadBufferPool getReadPool()
+	{
+		return (reactor == null) ? mainReadPool : reactor.readPool;
+	}
+
+	/**
+	 * Borrows a read buffer if needed and resizes it to the read queue size of the current class
+	 *
+	 * @param pool pool to borrow buffers from
+	 */
+	private void updateBufferSize(ReadBufferPool pool)
+	{
+		int capacity = connClass.readQueue + 1;
+
+		if(localBuffer == null)
+		{
+			localBuffer = pool.borrow(capacity);
+		}
+		else if(localBuffer.capacity() != capacity)
+		{
+			//Copy data into a buffer of the new size
+			ByteBuffer newBuffer = pool.borrow(capacity);
+
+			localBuffer.flip();
+			if(localBuffer.remaining() > capacity)
+			{
+				localBuffer.limit(capacity);
+			}
+
+			newBuffer.put(localBuffer);
+			pool.release(localBuffer);
+			localBuffer = newBuffer;
+		}
+	}
+
+	/**
+	 * Returns the read buffer to the pool once all its data has been processed
+	 *
+	 * @param pool pool to return the buffer to
+	 */
+	private void releaseBuffer(ReadBufferPool pool)
+	{
+		pool.release(localBuffer);
+		localBuffer = null;
+	}
+
+	/**
+	 * Closes this client after an I/O event
+	 *
+	 * <p>On reactor threads the close is passed to the main thread
+	 *
+	 * @param reason quit message
+	 */
+	private void ioClose(String reason)
+	{
+		if(reactor == null)
+		{
+			close(reason);
+		}
+		else
+		{
+			reactorCloseReason = reason;
+			scheduleInbound();
+		}
+	}
+
+	/**
+	 * Adds this client to the main thread's queue of clients with messages to process
+	 */
+	private void scheduleInbound()
+	{
+		if(inboundScheduled.compareAndSet(false, true))
+		{
+			reactor.notifyInbound(this);
+		}
+	}
+
+	/**
+	 * Returns true if this client has been closed by its reactor
+	 *
+	 * <p>The reactor should stop reading from the client once this is set
+	 */
+	boolean isReactorClosed()
+	{
+		return reactorCloseReason != null;
+	}
+
+	/**
+	 * Executes the messages which have been decoded by this client's reactor
+	 *
+	 * <p>This must only be called from the main thread
+	 */
+	void processInboundQueue()
+	{
+		inboundScheduled.set(false);
+
+		//Closed by the reactor?
+		String closeReason = reactorCloseReason;
+		if(closeReason != null)
+		{
+			close(closeReason);
+			return;
+		}
+
+		//Execute messages until we're limited
+		while(!isClosed() && !inboundQueue.isEmpty() && floodTimer.checkTimer())
+		{
+			InboundMessage inbound = inboundQueue.poll();
+			inboundQueueSize.addAndGet(-inbound.length);
+
+			floodTimer.processMessage(inbound.msg);
+			Server.getServer().getModuleManager().executeCommand(this, inbound.msg);
+		}
+
+		if(isClosed())
+		{
+			return;
+		}
+
+		//Stop the reactor decoding lines while limited (the flood queue calls us again later)
+		if(!inboundQueue.isEmpty())
+		{
+			floodLimited = true;
+		}
+		else if(floodLimited && floodTimer.checkTimer())
+		{
+			floodLimited = false;
+			reactor.requestRead(this);
+		}
+	}
+
+	/**
+	 * Returns the connection class this client is currently using
+	 */
+	ConnectionClass getConnectionClass()
+	{
+		return connClass;
+	}
+
+	@Override
+	public void chargeFanOut(int recipients)
+	{
+		floodTimer.chargeFanOut(recipients);
+	}
+
+	/**
+	 * Called when this client is removed from the flood queue
+	 */
+	void floodQueueEvent()
+	{
+		if(reactor == null)
+		{
+			processReadEvent();
+		}
+		else
+		{
+			processInboundQueue();
+		}
+	}
+
+	/**
+	 * Called when a write event occurs (the socket can accept more data)
+	 */
+	void processWriteEvent()
+	{
+		synchronized(sendQueue)
+		{
+			try
+			{
+				flushSendQueue();
+			}
+			catch(IOException e)
+			{
+				ioClose("Write error");
+			}
+		}
+	}
+
+	/**
+	 * Writes as much of the send queue to the socket as it will currently accept
+	 *
+	 * <p>Write interest is removed from the selection key once the queue is empty.
+	 * The send queue lock must be held when calling this.
+	 */
+	private void flushSendQueue() throws IOException
+	{
+		if(sendQueue.isEmpty())
+		{
+			updateWriteInterest();
+			return;
+		}
+
+		//Write the start of the queue in one gathering write
+		int count = Math.min(sendQueue.size(), MAX_WRITE_BUFFERS);
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		Iterator<ByteBuffer> iter = sendQueue.iterator();
+
+		for(int i = 0; i < count; i++)
+		{
+			buffers[i] = iter.next();
+		}
+
+		long written = channel.write(buffers);
+
+		sendQueueSize -= written;
+		TrafficCounters.bytesOut.addAndGet(written);
+
+		//Remove sent buffers
+		while(!sendQueue.isEmpty() && !sendQueue.peek().hasRemaining())
+		{
+			sendQueue.poll();
+		}
+
+		//Wait for next write event if the socket buffer is full
+		updateWriteInterest();
+	}
+
+	/**
+	 * Writes the send queue to a blocking channel
+	 *
+	 * <p>Called by the writer thread of a BlockingConnection. The queued buffers are taken out of
+	 *  the queue before writing so the main thread is never held up by a slow client.
+	 *  They still count towards the SendQ until they have been written.
+	 *
+	 * @return false if the write failed (the client is closed)
+	 */
+	boolean processBlockingWrite()
+	{
+		ByteBuffer[] buffers;
+		int total = 0;
+
+		synchronized(sendQueue)
+		{
+			if(sendQueue.isEmpty())
+			{
+				return true;
+			}
+
+			buffers = sendQueue.toArray(new ByteBuffer[sendQueue.size()]);
+			sendQueue.clear();
+		}
+
+		//Blocking writes only return early if interrupted
+		for(ByteBuffer buffer : buffers)
+		{
+			total += buffer.remaining();
+		}
+
+		try
+		{
+			long written = 0;
+			while(written < total)
+			{
+				written += channel.write(buffers);
+			}
+		}
+		catch(IOException e)
+		{
+			ioClose("Write error");
+			return false;
+		}
+
+		synchronized(sendQueue)
+		{
+			sendQueueSize -= total;
+		}
+
+		TrafficCounters.bytesOut.addAndGet(total);
+		return true;
+	}
+
+	/**
+	 * Returns the number of bytes waiting in the send queue
+	 */
+	int getSendQueueSize()
+	{
+		synchronized(sendQueue)
+		{
+			return sendQueueSize;
+		}
+	}
+
+	/**
+	 * Adds this client to the list of clients flushed at the end of the loop
+	 *
+	 * <p>This must only be called from the main thread
+	 */
+	void markDirty()
+	{
+		if(!dirty)
+		{
+			dirty = true;
+			dirtyClients.add(this);
+		}
+	}
+
+	/**
+	 * Flushes the send queues of all the clients which have been written to by the main thread
+	 *
+	 * <p>This is called at the end of each iteration of the server loop
+	 *
+	 * @return true if any clients were flushed
+	 */
+	static boolean flushDirtyClients()
+	{
+		if(dirtyClients.isEmpty())
+		{
+			return false;
+		}
+		else
+		{
+			//Extract dirty list
+			ArrayList<NetworkClient> clients = dirtyClients;
+			dirtyClients = new ArrayList<NetworkClient>();
+
+			for(NetworkClient client : clients)
+			{
+				client.dirty = false;
+
+				if(!client.isClosed())
+				{
+					client.processWriteEvent();
+				}
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Sets the interest set of the selection key depending on whether there is anything to write
+	 *
+	 * <p>The send queue lock must be held when calling this
+	 */
+	private void updateWriteInterest()
+	{
+		if(selectionKey != null && selectionKey.isValid())
+		{
+			if(sendQueue.isEmpty())
+			{
+				selectionKey.interestOps(SelectionKey.OP_READ);
+			}
+			else
+			{
+				selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/**
+	 * Sets the selection key this client's channel is registered with
+	 *
+	 * @param key selection key of the channel
+	 */
+	void setSelectionKey(SelectionKey key)
+	{
+		//Reactors call this while the main thread may be writing
+		synchronized(sendQueue)
+		{
+			selectionKey = key;
+			updateWriteInterest();
+		}
+	}
+
+	/**
+	 * Starts checking this client for ping timeouts
+	 *
+	 * <p>Called by the main thread after setup()
+	 *
+	 * @param wheel timing wheel to schedule ping checks in
+	 */
+	void startPingTimer(TimingWheel wheel)
+	{
+		pingWheel = wheel;
+		schedulePingCheck(connClass.pingFreq);
+	}
+
+	/**
+	 * Schedules the next ping check for the given number of seconds after the last message
+	 *
+	 * @param seconds seconds after the last message to check at
+	 */
+	private void schedulePingCheck(int seconds)
+	{
+		if(pingWheel != null)
+		{
+			pingWheel.schedule(pingTimer, lastMessageTime + seconds * 1000L);
+		}
 	}
 
 	/**
 	 * Event which occurs when the ping timeouts need checking
+	 *
+	 * <p>Messages received since the check was scheduled just push the check back
 	 */
 	void pingCheckEvent()
 	{
+		//Ignore closed clients
+		if(isClosed())
+		{
+			return;
+		}
+
 		//Check for ping timeout
 		long diffInSeconds = (System.currentTimeMillis() - lastMessageTime) / 1000;
 
@@ -297,43 +1011,55 @@ class NetworkClient extends Client
 			if(diffInSeconds >= connClass.pingFreq + AFTER_PING_TIMEOUT)
 			{
 				queueClose("Ping Timeout");
+				return;
 			}
 			else if(isRegistered())
 			{
 				//Send ping
 				send("PING " + id.nick);
 			}
+
+			//Check again when the timeout expires
+			schedulePingCheck(connClass.pingFreq + AFTER_PING_TIMEOUT);
+		}
+		else
+		{
+			//Not idle for long enough yet
+			schedulePingCheck(connClass.pingFreq);
 		}
 	}
 
 	@Override
 	public void send(Object data)
 	{
-		//Get string
-		CharSequence strData;
-		if(data instanceof CharSequence)
+		//Get encoded message
+		ByteBuffer prefix = null;
+		ByteBuffer buffer;
+		if(data instanceof EncodedMessage)
 		{
-			strData = (CharSequence) data;
+			//Spliced messages are written in two parts so the body is not copied
+			EncodedMessage encoded = (EncodedMessage) data;
+			prefix = encoded.getPrefixBuffer();
+			buffer = encoded.getBodyBuffer();
 		}
 		else
 		{
-			strData = data.toString();
+			//Encode into the scratch buffer (writeWrapper copies anything it keeps)
+			buffer = sendScratch;
+			buffer.clear();
+			buffer.limit(Message.encode(data, buffer.array()));
 		}
 
+		TrafficCounters.linesOut.incrementAndGet();
+
 		try
 		{
-			//Encode object and write to socket with CRLF
-			ByteBuffer encoded = cEncoder.encode(CharBuffer.wrap(strData));
-
-			if(!writeWrapper(encoded) || !writeWrapper(ByteBuffer.wrap(CRLF)))
+			//Write message (which already ends with CRLF)
+			if((prefix != null && !writeWrapper(prefix)) || !writeWrapper(buffer))
 			{
 				queueClose("SendQ Limit Exceeded");
 			}
 		}
-		catch(CharacterCodingException e)
-		{
-			logger.warn("Error encoding message", e);
-		}
 		catch(IOException e)
 		{
 			//Error writing to message
@@ -349,24 +1075,139 @@ class NetworkClient extends Client
 	 */
 	protected int readWrapper(ByteBuffer buffer) throws IOException
 	{
-		return channel.read(buffer);
+		int read = channel.read(buffer);
+
+		if(read > 0)
+		{
+			TrafficCounters.bytesIn.addAndGet(read);
+		}
+
+		return read;
 	}
 
 	/**
 	 * Allows wrapping of the raw write operation
 	 *
+	 * <p>Any data which cannot be written immediately is added to the send queue
+	 *  and written when the socket is next writable. Read only buffers (like the ones from
+	 *  {@link EncodedMessage#getBuffer()}) are queued by reference since their data cannot change.
+	 *  Other buffers may be reused after this returns, so their data is copied.
+	 *
 	 * @param buffer buffer to write
-	 * @return number of characters written
+	 * @return false if the send queue limit has been exceeded
 	 */
 	protected boolean writeWrapper(ByteBuffer buffer) throws IOException
 	{
-		//Order of this comparison is important
-		return buffer.remaining() == channel.write(buffer);
+		synchronized(sendQueue)
+		{
+			//Check SendQ
+			int remaining = buffer.remaining();
+			if(sendQueueSize + remaining > connClass.sendQueue && reactor == null)
+			{
+				//The SendQ only limits data the socket won't accept, so try to flush first
+				flushSendQueue();
+
+				if(sendQueue.isEmpty())
+				{
+					TrafficCounters.bytesOut.addAndGet(channel.write(buffer));
+					remaining = buffer.remaining();
+
+					if(remaining == 0)
+					{
+						return true;
+					}
+				}
+			}
+
+			if(sendQueueSize + remaining > connClass.sendQueue)
+			{
+				return false;
+			}
+
+			boolean wasEmpty = sendQueue.isEmpty();
+			ByteBuffer tail = sendQueue.peekLast();
+
+			if(buffer.isReadOnly())
+			{
+				//Shared data - queue it without copying
+				sendQueue.add(buffer);
+			}
+			else if(tail != null && !tail.isReadOnly() && tail.capacity() - tail.limit() >= remaining)
+			{
+				//Append to the last chunk in the queue
+				int position = tail.position();
+
+				tail.position(tail.limit());
+				tail.limit(tail.capacity());
+				tail.put(buffer);
+				tail.limit(tail.position());
+				tail.position(position);
+			}
+			else
+			{
+				//Start a new chunk
+				ByteBuffer queued = ByteBuffer.allocate(Math.max(SEND_CHUNK_SIZE, remaining));
+				queued.put(buffer);
+				queued.flip();
+
+				sendQueue.add(queued);
+			}
+
+			sendQueueSize += remaining;
+
+			if(reactor == null)
+			{
+				//Flush at the end of the loop (or now if there is a lot of data)
+				if(sendQueueSize >= FLUSH_THRESHOLD)
+				{
+					flushSendQueue();
+				}
+				else
+				{
+					markDirty();
+				}
+			}
+			else if(wasEmpty)
+			{
+				//Reactors do all the writing for their clients
+				reactor.requestWrite(this);
+			}
+
+			return true;
+		}
 	}
 
 	@Override
 	protected boolean rawClose()
 	{
+		//Stop ping checks
+		if(pingWheel != null)
+		{
+			pingWheel.cancel(pingTimer);
+		}
+
+		if(blocking)
+		{
+			//The writer thread sends the rest of the send queue and closes the channel
+			((BlockingConnection) reactor).close();
+			return true;
+		}
+
+		synchronized(sendQueue)
+		{
+			try
+			{
+				//Send anything left in the send queue if we can
+				flushSendQueue();
+			}
+			catch(IOException e)
+			{
+			}
+
+			sendQueue.clear();
+			sendQueueSize = 0;
+		}
+
 		try
 		{
 			//Close channel
@@ -387,6 +1228,16 @@ class NetworkClient extends Client
 		super.registeredEvent();
 	}
 
+	/**
+	 * Gets the channel this client is connected to
+	 *
+	 * @return the client's channel
+	 */
+	SocketChannel getChannel()
+	{
+		return channel;
+	}
+
 	/**
 	 * Gets the remote address of this client
 	 *
@@ -431,11 +1282,9 @@ class NetworkClient extends Client
 		}
 
 		//Update buffer sizes
+		// The read buffer is resized on the next read event by whichever thread owns it
 		try
 		{
-			localBufferData = Arrays.copyOf(localBufferData, clazz.readQueue + 1);
-			localBuffer = ByteBuffer.wrap(localBufferData);
-
 			channel.socket().setSendBufferSize(clazz.sendQueue);
 		}
 		catch(IOException e)
@@ -448,6 +1297,9 @@ class NetworkClient extends Client
 
 		//Set class
 		connClass = clazz;
+
+		//Ping frequency may have changed
+		schedulePingCheck(clazz.pingFreq);
 	}
 
 	@Override
@@ -482,4 +1334,31 @@ class NetworkClient extends Client
 	{
 		return System.currentTimeMillis() - lastMessageTime;
 	}
+
+	/**
+	 * Timer which runs the ping checks of this client
+	 */
+	private class PingTimer extends TimingWheel.Timer
+	{
+		@Override
+		void expired(long now)
+		{
+			pingCheckEvent();
+		}
+	}
+
+	/**
+	 * A message decoded by a reactor
+	 */
+	private static class InboundMessage
+	{
+		final Message msg;
+		final int length;
+
+		InboundMessage(Message msg, int length)
+		{
+			this.msg = msg;
+			this.length = length;
+		}
+	}
 }
@@ -0,0 +1,232 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An I/O thread which reads, decodes and writes data for a share of the server's clients
+ *
+ * <p>Reactors never execute commands. Decoded messages are passed back to the main thread
+ *  so that all server state is still only modified by one thread.
+ *
+ * @author James
+ */
+final class NetworkReactor extends IoHandler implements Runnable
+{
+	private static final Logger logger = Logger.getLogger(NetworkReactor.class);
+
+	/**
+	 * This reactor's event selector
+	 */
+	private final Selector selector;
+
+	/**
+	 * Reactor thread
+	 */
+	private final Thread thread;
+
+	/**
+	 * Clients waiting to be registered with the selector
+	 */
+	private final ConcurrentLinkedQueue<NetworkClient> newClients = new ConcurrentLinkedQueue<NetworkClient>();
+
+	/**
+	 * Clients with data waiting in their send queues
+	 */
+	private final ConcurrentLinkedQueue<NetworkClient> pendingWrites = new ConcurrentLinkedQueue<NetworkClient>();
+
+	/**
+	 * Clients which are no longer flood limited
+	 */
+	private final ConcurrentLinkedQueue<NetworkClient> pendingReads = new ConcurrentLinkedQueue<NetworkClient>();
+
+	/**
+	 * True if the selector should be woken up at the end of the main thread's loop
+	 */
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	/**
+	 * Set when the reactor should exit
+	 */
+	private volatile boolean stopping = false;
+
+	/**
+	 * Creates a new reactor
+	 *
+	 * @param id number of this reactor (used for the thread name)
+	 * @param inboundClients queue to add clients to when they have messages to execute
+	 * @param mainSelector main thread's selector (woken up when clients are added to inboundClients)
+	 * @param readPool pool of read buffers for this reactor's clients
+	 * @throws IOException thrown if the selector cannot be opened
+	 */
+	NetworkReactor(int id, Queue<NetworkClient> inboundClients, Selector mainSelector, ReadBufferPool readPool)
+		throws IOException
+	{
+		super(inboundClients, mainSelector, readPool);
+		this.selector = Selector.open();
+		this.thread = new Thread(this, "Reactor-" + id);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the reactor thread
+	 */
+	void start()
+	{
+		thread.start();
+	}
+
+	/**
+	 * Stops the reactor and waits for the thread to exit
+	 */
+	void shutdown()
+	{
+		stopping = true;
+		selector.wakeup();
+
+		try
+		{
+			thread.join(5000);
+		}
+		catch(InterruptedException e)
+		{
+		}
+	}
+
+	@Override
+	void addClient(NetworkClient client)
+	{
+		newClients.add(client);
+		wakeupPending.set(true);
+	}
+
+	@Override
+	void requestWrite(NetworkClient client)
+	{
+		pendingWrites.add(client);
+		wakeupPending.set(true);
+	}
+
+	@Override
+	void requestRead(NetworkClient client)
+	{
+		pendingReads.add(client);
+		wakeupPending.set(true);
+	}
+
+	/**
+	 * Wakes up the reactor if the main thread has given it anything to do
+	 *
+	 * <p>Called once at the end of each iteration of the main loop
+	 */
+	void wakeupIfPending()
+	{
+		if(wakeupPending.compareAndSet(true, false))
+		{
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Reactor loop
+	 */
+	@Override
+	public void run()
+	{
+		while(!stopping)
+		{
+			try
+			{
+				selector.select();
+
+				//Register new clients
+				NetworkClient client;
+
+				while((client = newClients.poll()) != null)
+				{
+					try
+					{
+						SelectionKey key = client.getChannel().register(selector, OP_READ);
+						key.attach(client);
+						client.setSelectionKey(key);
+					}
+					catch(ClosedChannelException e)
+					{
+						//Closed by the main thread before we got here
+					}
+				}
+
+				//Write send queues
+				while((client = pendingWrites.poll()) != null)
+				{
+					client.processWriteEvent();
+				}
+
+				//Process lines held back by the flood limit
+				while((client = pendingReads.poll()) != null)
+				{
+					client.resumeRead();
+				}
+
+				//Process I/O events
+				Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
+
+				while(keyIter.hasNext())
+				{
+					SelectionKey key = keyIter.next();
+					keyIter.remove();
+
+					client = (NetworkClient) key.attachment();
+
+					if(key.isValid() && key.isWritable())
+					{
+						client.processWriteEvent();
+					}
+
+					if(key.isValid() && key.isReadable())
+					{
+						client.processReadEvent();
+					}
+				}
+			}
+			catch(Exception e)
+			{
+				logger.error("Exception in reactor loop", e);
+			}
+		}
+
+		//Close selector
+		try
+		{
+			selector.close();
+		}
+		catch(IOException e)
+		{	//Ignore errors on close
+		}
+	}
+}
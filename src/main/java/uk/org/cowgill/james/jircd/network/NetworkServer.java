@@ -15,418 +15,194 @@
 */
 package uk.org.cowgill.james.jircd.network;
 
-import static java.nio.channels.SelectionKey.OP_ACCEPT;
-import static java.nio.channels.SelectionKey.OP_READ;
-
 import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+
 import org.apache.log4j.Logger;
 
 import uk.org.cowgill.james.jircd.Client;
 import uk.org.cowgill.james.jircd.Config;
-import uk.org.cowgill.james.jircd.Config.Ban;
-import uk.org.cowgill.james.jircd.IRCMask;
-import uk.org.cowgill.james.jircd.ModuleLoadException;
-import uk.org.cowgill.james.jircd.RegistrationFlags;
-import uk.org.cowgill.james.jircd.Server;
 
 /**
  * Server which uses listeners to listen for remote connections
  *
- * The NetworkServer class contains the main network loop which dispatches requests to other parts
- *  of the framework
+ * Client I/O is done with non-blocking channels, either by the main thread or by I/O reactors.
+ *  TLS clients are always handled by the main thread.
  *
  * @author James
  */
-final class NetworkServer extends Server
+final class NetworkServer extends AbstractNetworkServer
 {
 	private static final Logger logger = Logger.getLogger(NetworkServer.class);
 
 	/**
-	 * Server event selector (all events are handled by this)
+	 * I/O reactors (empty if all I/O is done by the main thread)
 	 */
-	private Selector eventSelector;
+	private NetworkReactor[] reactors = new NetworkReactor[0];
 
 	/**
-	 * Listening channels
+	 * Index of the reactor the next client will be given to
 	 */
-	private Set<ServerSocketChannel> listeners = new HashSet<ServerSocketChannel>();
+	private int nextReactor;
 
 	/**
-	 * Time of the last ping check
+	 * Runs delegated TLS handshake tasks
 	 */
-	private long lastPingCheck;
+	private TlsTaskRunner tlsTaskRunner;
 
 	public NetworkServer(File configFile)
 	{
 		super(configFile);
 	}
 
-	/**
-	 * Checks whether a client is ip banned
-	 *
-	 * @param channel channel of the client to check
-	 * @return true if banned (informed)
-	 */
-	private boolean handleIPBans(SocketChannel channel) throws IOException
+	@Override
+	public void sendStatistics(Client client, char statsCmd)
 	{
-		String ipAddress = NetworkClient.getIpAddress(channel);
-
-		//Process everything in ip ban list
-		for(Ban ipBan : getConfig().banIP)
+		if(statsCmd == 't' && tlsTaskRunner != null)
 		{
-			//Compare
-			if(IRCMask.wildcardCompare(ipAddress, ipBan.mask))
-			{
-				//Banned
-				channel.close();
-				return true;
-			}
+			tlsTaskRunner.sendStatistics(client);
 		}
+		else
+		{
+			super.sendStatistics(client, statsCmd);
+		}
+	}
+
+	@Override
+	boolean startEngine()
+	{
+		// Create read buffer pool for the main thread
+		NetworkClient.mainReadPool = createReadPool();
 
-		return false;
+		// Create TLS task runner
+		tlsTaskRunner = new TlsTaskRunner(eventSelector);
+
+		// Start reactors
+		return startReactors(getConfig().reactorThreads);
 	}
 
 	@Override
-	protected void rehashed()
+	void stopEngine()
 	{
-		//Update server listener if running
-		if(Server.getServer() == this)
+		stopReactors();
+
+		if(tlsTaskRunner != null)
 		{
-			setupPorts();
+			tlsTaskRunner.shutdown();
 		}
 	}
 
 	@Override
-	protected void runServer()
+	boolean checkPortType(int port, Config.PortType type)
 	{
-		//Server startup
-		try
+		//Ensure we have an SSL context for SSL ports
+		if(type != Config.PortType.Normal && getConfig().sslContext == null)
 		{
-			// Register network commands
-			getModuleManager().registerCommand(new Ping());
-			getModuleManager().registerCommand(new Pong());
-		}
-		catch(ModuleLoadException e)
-		{
-			logger.error("Only the network subsystem can implement the PING and PONG commands", e);
-			return;
+			logger.error("Cannot use SSL port (" + port +
+					") without an SSL context (do you have a top-level ssl directive?)");
+			return false;
 		}
 
-		// Create selector
-		try
+		return true;
+	}
+
+	@Override
+	NetworkClient createClient(SocketChannel channel, Config.PortType type) throws IOException
+	{
+		//Create correct client (for TLS ports)
+		// TLS clients are always handled by the main thread
+		if(type == Config.PortType.SSL)
 		{
-			eventSelector = Selector.open();
+			return new TlsNetworkClient(channel, getConfig().sslContext, tlsTaskRunner);
 		}
-		catch (IOException e)
+		else if(reactors.length > 0)
 		{
-			logger.fatal("Failed to open selector", e);
-			return;
-		}
+			NetworkReactor reactor = reactors[nextReactor];
+			nextReactor = (nextReactor + 1) % reactors.length;
 
-		// Create listeners
-		if(!setupPorts())
+			return new NetworkClient(channel, reactor);
+		}
+		else
 		{
-			return;
+			return new NetworkClient(channel);
 		}
+	}
 
-		// Create host resolver
-		HostResolver resolver = new HostResolver(eventSelector);
-
-		//Process IO Events
-		int retryError = 0;
+	@Override
+	void processFinishedTasks()
+	{
+		//Resume TLS handshakes whose tasks have finished
+		TlsNetworkClient tlsClient = tlsTaskRunner.drainOneFinished();
 
-		for(;;)
+		if(tlsClient != null)
 		{
-			try
-			{
-				//Select anything to do
-				eventSelector.select(1000);
-
-				//Check for host resolver requests
-				NetworkClient client = resolver.drainOneFinished();
-
-				while(client != null)
-				{
-					if(!client.isClosed() && !client.isRegistered())
-					{
-						//Set host bit
-						client.setRegistrationFlag(RegistrationFlags.HostSet);
-
-						//Check registered event
-						client.registeredEvent();
-					}
-
-					//Next client
-					client = resolver.drainOneFinished();
-				}
-
-				//Check all selected keys
-				Iterator<SelectionKey> keyIter = eventSelector.selectedKeys().iterator();
-				SelectionKey key;
-
-				while(keyIter.hasNext())
-				{
-					//Get key
-					key = keyIter.next();
-					keyIter.remove();
-
-					if(key.isValid())
-					{
-						//Check accept
-						if(key.isAcceptable())
-						{
-							//Get listener
-							ServerSocketChannel channel = (ServerSocketChannel) key.channel();
-
-							//Create new client from channel
-							SocketChannel sockChannel = channel.accept();
-
-							if(handleIPBans(sockChannel))
-							{
-								//Ignore
-								continue;
-							}
-
-							//Create correct client (for TLS ports)
-							if(key.attachment() == Config.PortType.SSL)
-							{
-								client = new TlsNetworkClient(sockChannel, getConfig().sslContext);
-							}
-							else
-							{
-								client = new NetworkClient(sockChannel);
-							}
-
-							//Setup client connection + send nospoof ping
-							client.setup();
-
-							//Resolver host
-							resolver.submitRequest(client);
-
-							//Register channel and attach client to it
-							try
-							{
-								SelectionKey clientKey = sockChannel.register(eventSelector, OP_READ);
-								clientKey.attach(client);
-							}
-							catch(ClosedChannelException e)
-							{
-								logger.error("Accepted socket suddenly closed (WTF)", e);
-							}
-						}
-						else if(key.isReadable())
-						{
-							//Read event occurred
-							((NetworkClient) key.attachment()).processReadEvent();
-						}
-					}
-				}
-
-				//Perform ping checks
-				if(System.currentTimeMillis() - 1000 > lastPingCheck)
-				{
-					//Also process flood queue here
-					FloodTimer.processFloodQueue();
-
-					//Iterate over all clients and ping if necessary
-					for(Client locClient : clients)
-					{
-						if(locClient instanceof NetworkClient)
-						{
-							((NetworkClient) locClient).pingCheckEvent();
-						}
-					}
-
-					lastPingCheck = System.currentTimeMillis();
-					Client.processCloseQueue();
-				}
-
-				//Check shutdown condition
-				if(checkAndNotifyStop())
-				{
-					break;
-				}
-
-				retryError = 0;
-			}
-			catch (Exception e)
+			while(tlsClient != null)
 			{
-				//Pretty bad error
-				logger.error("Exception in i/o loop", e);
-
-				//Check for 5 errors in a row
-				retryError++;
-				if(retryError >= 5)
-				{
-					logger.fatal("5 loop errors in a row - exiting");
-					break;
-				}
+				tlsClient.tasksFinished();
+				tlsClient = tlsTaskRunner.drainOneFinished();
 			}
-		}
 
-		//Close all listeners
-		for(ServerSocketChannel listener : listeners)
-		{
-			try
-			{
-				listener.close();
-			}
-			catch (IOException e)
-			{	//Ignore errors on close
-			}
+			Client.processCloseQueue();
 		}
+	}
 
-		//Close selector
-		try
+	@Override
+	void loopFinished()
+	{
+		//Give reactors any data written during this loop
+		for(NetworkReactor reactor : reactors)
 		{
-			eventSelector.close();
-		}
-		catch (IOException e)
-		{	//Ignore errors on close
+			reactor.wakeupIfPending();
 		}
-
-		//Shutdown resolver
-		resolver.shutdown();
-
-		//Wipe variables
-		listeners = null;
-		eventSelector = null;
 	}
 
 	/**
-	 * Binds to the ports specified in the config file
+	 * Creates and starts the I/O reactors
 	 *
-	 * @return true if ports have been bound, false if no ports could be bound
+	 * @param count number of reactors to start (0 to do all I/O in the main thread)
+	 * @return false if the reactors could not be created
 	 */
-	private boolean setupPorts()
+	private boolean startReactors(int count)
 	{
-		//Check if we have an ssl context
-		boolean usingSSL = getConfig().sslContext != null;
-
-		//Copy ports set from config
-		Map<Integer, Config.PortType> ports = getConfig().ports;
+		reactors = new NetworkReactor[count];
 
-		//Close listeners not in newPorts
-		Iterator<ServerSocketChannel> channelIter = listeners.iterator();
-		ServerSocketChannel channel;
-
-		while(channelIter.hasNext())
+		for(int i = 0; i < count; i++)
 		{
-			channel = channelIter.next();
-
-			//Check if port is in ports
-			if(!ports.containsKey(channel.socket().getLocalPort()))
-			{
-				//Close channel and remove
-				// We ignore any errors while closing
-				try
-				{
-					channel.close();
-				}
-				catch (IOException e)
-				{
-				}
-
-				channelIter.remove();
-			}
-			else
-			{
-				//Remove this port from the ports set so we don't recreate it
-				ports.remove(channel.socket().getLocalPort());
-			}
-		}
-
-		//Create listeners
-		for(Map.Entry<Integer, Config.PortType> port : ports.entrySet())
-		{
-			InetSocketAddress sockAddr;
-
-			//Create address
-			try
-			{
-				sockAddr = new InetSocketAddress(port.getKey());
-			}
-			catch(IllegalArgumentException e)
-			{
-				//Port number out of range
-				logger.error("Port number " + port + " out of range");
-				continue;
-			}
-
-			//Ensure we have an SSL context for SSL ports
-			Config.PortType portType = port.getValue();
-			if(portType != Config.PortType.Normal && !usingSSL)
-			{
-				logger.error("Cannot use SSL port (" + sockAddr.getPort() +
-						") without an SSL context (do you have a top-level ssl directive?)");
-				continue;
-			}
-
-			//Create channel and configure socket
-			channel = null;
 			try
 			{
-				channel = ServerSocketChannel.open();
-				channel.configureBlocking(false);
-
-				channel.socket().bind(sockAddr);
-
-				//Register channel with event selector
-				SelectionKey key = channel.register(eventSelector, OP_ACCEPT);
-
-				//Attach port type
-				key.attach(portType);
+				reactors[i] = new NetworkReactor(i, inboundClients, eventSelector, createReadPool());
 			}
 			catch(IOException e)
 			{
-				//Error binding to port
-				logger.error("Could not bind to port " + sockAddr.getPort(), e);
-
-				//Remove channel
-				if(channel != null)
-				{
-					//We ignore any errors while closing
-					try
-					{
-						channel.close();
-					}
-					catch(IOException f)
-					{
-					}
-				}
-
-				continue;
+				logger.fatal("Failed to open reactor selector", e);
+				return false;
 			}
 
-			//Add channel to listeners
-			listeners.add(channel);
+			reactors[i].start();
 		}
 
-		//No ports left?
-		if(listeners.isEmpty())
+		if(count > 0)
 		{
-			if(ports.isEmpty())
-			{
-				logger.warn("No listening ports in configuration file");
-			}
-
-			logger.fatal("Failed to bind to any ports");
-			return false;
+			logger.info("Started " + count + " I/O reactors");
 		}
-		else
+
+		return true;
+	}
+
+	/**
+	 * Stops all the I/O reactors
+	 */
+	private void stopReactors()
+	{
+		for(NetworkReactor reactor : reactors)
 		{
-			return true;
+			if(reactor != null)
+			{
+				reactor.shutdown();
+			}
 		}
+
+		reactors = new NetworkReactor[0];
 	}
 }
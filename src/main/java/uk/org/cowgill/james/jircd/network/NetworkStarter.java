@@ -15,8 +15,14 @@
 */
 package uk.org.cowgill.james.jircd.network;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
+import uk.org.cowgill.james.jircd.Config;
+import uk.org.cowgill.james.jircd.ConfigException;
 import uk.org.cowgill.james.jircd.Server;
 
 /**
@@ -43,11 +49,47 @@ class NetworkStarter
 		{
 			//Run the server!
 			// The loop handles server restarts
-			while(new NetworkServer(configFile).run() && ctrlCHandler.canContinue)
+			while(createServer(configFile).run() && ctrlCHandler.canContinue)
 				;
 		}
 	}
 
+	/**
+	 * Creates the server using the network engine selected in the config file
+	 *
+	 * <p>If the config file cannot be read, the default server is created (which reports the error)
+	 *
+	 * @param configFile config file location
+	 * @return the new server
+	 */
+	private static Server createServer(File configFile)
+	{
+		try
+		{
+			InputStream stream = new BufferedInputStream(new FileInputStream(configFile));
+
+			try
+			{
+				if(Config.parse(stream, null).blockingEngine)
+				{
+					return new BlockingNetworkServer(configFile);
+				}
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		catch(ConfigException e)
+		{
+		}
+		catch(IOException e)
+		{
+		}
+
+		return new NetworkServer(configFile);
+	}
+
 	/**
 	 * Handles control c events
 	 *
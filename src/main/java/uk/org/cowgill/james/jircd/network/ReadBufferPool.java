@@ -0,0 +1,169 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of read buffers which clients borrow while they have unprocessed data
+ *
+ * <p>Buffers are grouped by capacity (each connection class has its own read buffer size).
+ * Usually each thread which reads from sockets has its own pool. Pools shared by many threads
+ * (like the one used by all blocking connections) must be created as shared pools.
+ *
+ * @author James
+ */
+final class ReadBufferPool
+{
+	/**
+	 * Free buffers by capacity
+	 */
+	private final Map<Integer, ArrayList<ByteBuffer>> freeBuffers = new HashMap<Integer, ArrayList<ByteBuffer>>();
+
+	/**
+	 * True to allocate direct buffers
+	 */
+	private final boolean direct;
+
+	/**
+	 * Maximum number of free buffers of each size kept in the pool
+	 */
+	private final int maxFree;
+
+	/**
+	 * True if the pool can be used by many threads
+	 */
+	private final boolean shared;
+
+	/**
+	 * Creates a new read buffer pool which is used by one thread
+	 *
+	 * @param direct true to allocate direct buffers
+	 * @param maxFree maximum number of free buffers of each size to keep
+	 */
+	ReadBufferPool(boolean direct, int maxFree)
+	{
+		this(direct, maxFree, false);
+	}
+
+	/**
+	 * Creates a new read buffer pool
+	 *
+	 * @param direct true to allocate direct buffers
+	 * @param maxFree maximum number of free buffers of each size to keep
+	 * @param shared true if the pool will be used by many threads
+	 */
+	ReadBufferPool(boolean direct, int maxFree, boolean shared)
+	{
+		this.direct = direct;
+		this.maxFree = maxFree;
+		this.shared = shared;
+	}
+
+	/**
+	 * Borrows a buffer from the pool
+	 *
+	 * @param capacity capacity of the buffer
+	 * @return an empty buffer
+	 */
+	ByteBuffer borrow(int capacity)
+	{
+		ByteBuffer buffer;
+
+		if(shared)
+		{
+			synchronized(freeBuffers)
+			{
+				buffer = takeFree(capacity);
+			}
+		}
+		else
+		{
+			buffer = takeFree(capacity);
+		}
+
+		if(buffer != null)
+		{
+			return buffer;
+		}
+
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Removes a free buffer from the pool
+	 *
+	 * @param capacity capacity of the buffer
+	 * @return the buffer or null if there are no free buffers of that size
+	 */
+	private ByteBuffer takeFree(int capacity)
+	{
+		ArrayList<ByteBuffer> list = freeBuffers.get(capacity);
+
+		if(list != null && !list.isEmpty())
+		{
+			return list.remove(list.size() - 1);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns a buffer to the pool
+	 *
+	 * @param buffer buffer to return (must not be used afterwards)
+	 */
+	void release(ByteBuffer buffer)
+	{
+		buffer.clear();
+
+		if(shared)
+		{
+			synchronized(freeBuffers)
+			{
+				addFree(buffer);
+			}
+		}
+		else
+		{
+			addFree(buffer);
+		}
+	}
+
+	/**
+	 * Adds a cleared buffer to the free buffers if there is room for it
+	 *
+	 * @param buffer buffer to add
+	 */
+	private void addFree(ByteBuffer buffer)
+	{
+		ArrayList<ByteBuffer> list = freeBuffers.get(buffer.capacity());
+
+		if(list == null)
+		{
+			list = new ArrayList<ByteBuffer>();
+			freeBuffers.put(buffer.capacity(), list);
+		}
+
+		if(list.size() < maxFree)
+		{
+			list.add(buffer);
+		}
+	}
+}
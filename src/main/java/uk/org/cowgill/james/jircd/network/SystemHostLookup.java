@@ -0,0 +1,53 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Host lookups using the Java runtime's resolver
+ *
+ * @author James
+ */
+final class SystemHostLookup implements HostLookup
+{
+	@Override
+	public String reverseLookup(InetAddress address)
+	{
+		//Create a new address object so the host isn't taken from a previous lookup
+		InetAddress lookupAddress;
+
+		try
+		{
+			lookupAddress = InetAddress.getByAddress(address.getAddress());
+		}
+		catch(UnknownHostException e)
+		{
+			return null;
+		}
+
+		//The ip address is returned if there is no hostname
+		String host = lookupAddress.getHostName();
+		return host.equals(lookupAddress.getHostAddress()) ? null : host;
+	}
+
+	@Override
+	public InetAddress[] forwardLookup(String host) throws UnknownHostException
+	{
+		return InetAddress.getAllByName(host);
+	}
+}
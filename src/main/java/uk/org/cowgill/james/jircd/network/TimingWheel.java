@@ -0,0 +1,239 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+/**
+ * A hashed timing wheel which runs timers with a resolution of one tick
+ *
+ * <p>Timers are stored in intrusive linked lists so scheduling and cancelling them is O(1) and
+ *  advancing the wheel only visits the timers in the slots which have passed.
+ *
+ * <p>This class is not thread safe and should only be used from the main server thread.
+ *
+ * @author James
+ */
+final class TimingWheel
+{
+	/**
+	 * A timer which can be scheduled in a timing wheel
+	 */
+	static abstract class Timer
+	{
+		/**
+		 * Tick this timer expires on
+		 */
+		private long deadlineTick;
+
+		/**
+		 * Wheel this timer is scheduled in (or null if not scheduled)
+		 */
+		private TimingWheel wheel;
+
+		/**
+		 * Links in slot list
+		 */
+		private Timer prev, next;
+
+		/**
+		 * Returns true if this timer is scheduled in a wheel
+		 */
+		final boolean isScheduled()
+		{
+			return wheel != null;
+		}
+
+		/**
+		 * Called when the timer expires
+		 *
+		 * <p>The timer is no longer scheduled when this is called and may reschedule itself
+		 *
+		 * @param now current time in milliseconds
+		 */
+		abstract void expired(long now);
+	}
+
+	/**
+	 * Length of one tick in milliseconds
+	 */
+	private final long tickLength;
+
+	/**
+	 * Slot list heads (sentinel timers)
+	 */
+	private final Timer[] slots;
+
+	/**
+	 * Head of the list of expired timers waiting to run (sentinel timer)
+	 *
+	 * <p>Timers in this list are still scheduled so they can be cancelled or
+	 * rescheduled by other timers which expire on the same tick.
+	 */
+	private final Timer expiredHead = newSentinel();
+
+	/**
+	 * Last tick which has been processed
+	 */
+	private long currentTick;
+
+	/**
+	 * Creates a new timing wheel
+	 *
+	 * @param tickLength length of one tick in milliseconds
+	 * @param slotCount number of slots in the wheel (must be a power of 2)
+	 * @param now current time in milliseconds
+	 */
+	TimingWheel(long tickLength, int slotCount, long now)
+	{
+		if(slotCount <= 0 || (slotCount & (slotCount - 1)) != 0)
+		{
+			throw new IllegalArgumentException("slotCount must be a power of 2");
+		}
+
+		this.tickLength = tickLength;
+		this.slots = new Timer[slotCount];
+		this.currentTick = now / tickLength;
+
+		//Create sentinels
+		for(int i = 0; i < slotCount; i++)
+		{
+			slots[i] = newSentinel();
+		}
+	}
+
+	/**
+	 * Creates an empty list head
+	 */
+	private static Timer newSentinel()
+	{
+		Timer sentinel = new Timer()
+			{
+				@Override
+				void expired(long now)
+				{
+				}
+			};
+
+		sentinel.prev = sentinel;
+		sentinel.next = sentinel;
+		return sentinel;
+	}
+
+	/**
+	 * Schedules a timer to expire at the given time
+	 *
+	 * <p>If the timer is already scheduled, it is rescheduled.
+	 * Timers always expire on the first tick after their deadline.
+	 *
+	 * @param timer timer to schedule
+	 * @param deadline time to expire the timer at in milliseconds
+	 */
+	void schedule(Timer timer, long deadline)
+	{
+		//Remove from old slot
+		cancel(timer);
+
+		//Round up to the next tick which has not been processed
+		long tick = (deadline + tickLength - 1) / tickLength;
+
+		if(tick <= currentTick)
+		{
+			tick = currentTick + 1;
+		}
+
+		//Insert at end of slot
+		timer.deadlineTick = tick;
+		timer.wheel = this;
+		insertBefore(slots[(int) (tick & (slots.length - 1))], timer);
+	}
+
+	/**
+	 * Inserts a timer at the end of the list with the given head
+	 */
+	private static void insertBefore(Timer head, Timer timer)
+	{
+		timer.prev = head.prev;
+		timer.next = head;
+		head.prev.next = timer;
+		head.prev = timer;
+	}
+
+	/**
+	 * Cancels a timer
+	 *
+	 * <p>Nothing happens if the timer is not scheduled
+	 *
+	 * @param timer timer to cancel
+	 */
+	void cancel(Timer timer)
+	{
+		if(timer.wheel == this)
+		{
+			timer.prev.next = timer.next;
+			timer.next.prev = timer.prev;
+			timer.prev = null;
+			timer.next = null;
+			timer.wheel = null;
+		}
+	}
+
+	/**
+	 * Advances the wheel to the given time, running any timers which have expired
+	 *
+	 * @param now current time in milliseconds
+	 */
+	void advance(long now)
+	{
+		long targetTick = now / tickLength;
+
+		//If the wheel has fallen a full turn behind, each slot only needs visiting once
+		if(targetTick - currentTick > slots.length)
+		{
+			currentTick = targetTick - slots.length;
+		}
+
+		while(currentTick < targetTick)
+		{
+			currentTick++;
+
+			//Move expired timers out of the slot first so they can reschedule themselves
+			Timer head = slots[(int) (currentTick & (slots.length - 1))];
+			Timer timer = head.next;
+
+			while(timer != head)
+			{
+				Timer next = timer.next;
+
+				if(timer.deadlineTick <= currentTick)
+				{
+					timer.prev.next = timer.next;
+					timer.next.prev = timer.prev;
+					insertBefore(expiredHead, timer);
+				}
+
+				timer = next;
+			}
+
+			//Run expired timers (they may cancel or reschedule each other)
+			while(expiredHead.next != expiredHead)
+			{
+				timer = expiredHead.next;
+				cancel(timer);
+
+				timer.expired(now);
+			}
+		}
+	}
+}
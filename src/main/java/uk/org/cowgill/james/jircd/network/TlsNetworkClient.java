@@ -3,10 +3,14 @@ package uk.org.cowgill.james.jircd.network;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
 
 import uk.org.cowgill.james.jircd.util.ModeUtils;
 
@@ -19,34 +23,60 @@ class TlsNetworkClient extends NetworkClient
 {
 	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
+	/**
+	 * Buffer encrypted data is wrapped into before being added to the send queue
+	 *
+	 * <p>TLS clients are only handled by the main thread so this is shared by all of them
+	 */
+	private static ByteBuffer encOutbound = ByteBuffer.allocate(0);
+
 	//Current TLS Engine
 	private SSLEngine engine;
 
-	//TLS Buffers
+	//TLS Buffers (borrowed from the main read pool while they contain data)
 	private ByteBuffer encInbound;
-	private ByteBuffer encOutbound;
+	private ByteBuffer plainOutbound;
+	private final int packetBufferSize;
+	private final int appBufferSize;
 
 	//Queued initial buffers
 	private LinkedList<ByteBuffer> bufferQueue = new LinkedList<ByteBuffer>();
 
+	//Number of bytes in the buffer queue (counted against the SendQ)
+	private int bufferQueueSize;
+
+	//Runs delegated handshake tasks
+	private final TlsTaskRunner taskRunner;
+
+	//True while delegated tasks are being run by the task runner
+	private boolean tasksRunning;
+
+	//Session last passed to the task runner (TLS 1.3 finishes again after sending tickets)
+	private SSLSession countedSession;
+
+	//Time the connection was accepted (sessions created before this have been resumed)
+	private final long acceptTime = System.currentTimeMillis();
+
 	/**
 	 * Creates a new TLS client wrapping the given channel
 	 *
 	 * @param channel channel to wrap
 	 * @param context the ssl context to use - this must be loaded with 1 server key
+	 * @param taskRunner runner for delegated handshake tasks
 	 */
-	protected TlsNetworkClient(SocketChannel channel, SSLContext context) throws IOException
+	protected TlsNetworkClient(SocketChannel channel, SSLContext context, TlsTaskRunner taskRunner)
+		throws IOException
 	{
 		super(channel, ModeUtils.setMode(0, 'z'));
+		this.taskRunner = taskRunner;
 
 		//Create new engine
 		engine = context.createSSLEngine();
 		engine.setUseClientMode(false);
 
-		//Allocate TLS buffers
-		int encBufferSize = engine.getSession().getPacketBufferSize();
-		encInbound = ByteBuffer.allocate(encBufferSize);
-		encOutbound = ByteBuffer.allocate(encBufferSize);
+		//Get TLS buffer sizes
+		packetBufferSize = engine.getSession().getPacketBufferSize();
+		appBufferSize = engine.getSession().getApplicationBufferSize();
 
 		//Begin handshake (client sends hello first)
 		engine.beginHandshake();
@@ -59,13 +89,96 @@ class TlsNetworkClient extends NetworkClient
 	{
 		while(!bufferQueue.isEmpty())
 		{
-			if(!wrapAndSend(bufferQueue.poll()))
+			ByteBuffer buffer = bufferQueue.poll();
+			bufferQueueSize -= buffer.remaining();
+
+			if(!queuePlaintext(buffer))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds data to the plaintext waiting to be encrypted
+	 *
+	 * <p>The plaintext is wrapped when the client is flushed at the end of the loop, so everything
+	 *  sent to the client in one loop is sent in as few TLS records as possible
+	 *
+	 * @param userData data to add
+	 * @return false if the send queue limit has been exceeded
+	 */
+	private boolean queuePlaintext(ByteBuffer userData) throws IOException
+	{
+		//Wrap now if the buffer is full
+		if(plainOutbound != null && plainOutbound.remaining() < userData.remaining())
+		{
+			if(!wrapPlaintext())
 				return false;
 		}
 
+		if(plainOutbound == null)
+		{
+			plainOutbound = mainReadPool.borrow(Math.max(appBufferSize, userData.remaining()));
+			markDirty();
+		}
+
+		plainOutbound.put(userData);
 		return true;
 	}
 
+	/**
+	 * Wraps all the waiting plaintext and adds it to the send queue
+	 *
+	 * @return false if the send queue limit has been exceeded
+	 */
+	private boolean wrapPlaintext() throws IOException
+	{
+		if(plainOutbound == null)
+		{
+			return true;
+		}
+
+		//Take the buffer first since wrapping can finish the handshake and queue more data
+		ByteBuffer plaintext = plainOutbound;
+		plainOutbound = null;
+
+		plaintext.flip();
+
+		boolean success = true;
+		while(success && plaintext.hasRemaining())
+		{
+			int remaining = plaintext.remaining();
+			success = wrapAndSend(plaintext) && processHandshakeTasks();
+
+			if(success && plaintext.remaining() == remaining)
+			{
+				//The engine is waiting for the handshake - send the rest when it has finished
+				ByteBuffer rest = ByteBuffer.allocate(remaining);
+				rest.put(plaintext);
+				rest.flip();
+				bufferQueue.addFirst(rest);
+				bufferQueueSize += remaining;
+				break;
+			}
+		}
+
+		mainReadPool.release(plaintext);
+		return success;
+	}
+
+	/**
+	 * Returns the encrypted inbound buffer to the pool if it is empty
+	 */
+	private void releaseEncInbound()
+	{
+		if(encInbound != null && encInbound.position() == 0)
+		{
+			mainReadPool.release(encInbound);
+			encInbound = null;
+		}
+	}
+
 	/**
 	 * Wraps the given data and sends it, returning true if all the data was sent
 	 *
@@ -77,6 +190,11 @@ class TlsNetworkClient extends NetworkClient
 	private boolean wrapAndSend(ByteBuffer userData) throws IOException
 	{
 		//Wrap data
+		if(encOutbound.capacity() < packetBufferSize)
+		{
+			encOutbound = ByteBuffer.allocate(packetBufferSize);
+		}
+
 		encOutbound.clear();
 		SSLEngineResult result = engine.wrap(userData, encOutbound);
 		encOutbound.flip();
@@ -94,7 +212,7 @@ class TlsNetworkClient extends NetworkClient
 			//Send initial buffer if the handshake just finished
 			if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
 			{
-				return sendBufferQueue();
+				return handshakeFinished();
 			}
 
 			return true;
@@ -105,20 +223,56 @@ class TlsNetworkClient extends NetworkClient
 		}
 	}
 
+	/**
+	 * Called when the handshake has finished
+	 *
+	 * @return false if sending the buffer queue failed
+	 */
+	private boolean handshakeFinished() throws IOException
+	{
+		SSLSession session = engine.getSession();
+
+		if(session != countedSession)
+		{
+			//Resumed sessions keep their creation time, including ones restored from tickets
+			countedSession = session;
+			taskRunner.handshakeCompleted(session.getCreationTime() < acceptTime);
+		}
+
+		return sendBufferQueue();
+	}
+
 	/**
 	 * Processes handshake tasks after a wrap / unwrap operation
 	 *
+	 * <p>Delegated tasks are given to the task runner. If they are run on another thread,
+	 *  this returns early and the handshake is resumed by tasksFinished().
+	 *
 	 * @return false if a wrap and send failed (sendq exceeded)
 	 */
 	private boolean processHandshakeTasks() throws IOException
 	{
 		for(;;)
 		{
+			if(tasksRunning)
+			{
+				//Wait for tasks to finish
+				return true;
+			}
+
 			switch(engine.getHandshakeStatus())
 			{
 				case NEED_TASK:
-					//Do task
-					engine.getDelegatedTask().run();
+					//Collect tasks and run them
+					List<Runnable> tasks = new ArrayList<Runnable>();
+					Runnable task;
+
+					while((task = engine.getDelegatedTask()) != null)
+					{
+						tasks.add(task);
+					}
+
+					tasksRunning = taskRunner.submit(this, tasks);
 					break;
 
 				case NEED_WRAP:
@@ -130,8 +284,7 @@ class TlsNetworkClient extends NetworkClient
 
 				case FINISHED:
 					//Done - send final buffer
-					sendBufferQueue();
-					return true;
+					return handshakeFinished();
 
 				default:
 					//Ignore any other commands
@@ -146,16 +299,23 @@ class TlsNetworkClient extends NetworkClient
 		int totalBytes = 0;
 
 		//Data has arrived, read it and process it
-		switch(super.readWrapper(encInbound))
+		if(encInbound == null)
 		{
-			case -1:
-				//End of stream
-				engine.closeInbound();
-				return -1;
+			encInbound = mainReadPool.borrow(packetBufferSize);
+		}
 
-			case 0:
-				//No data
-				return 0;
+		if(super.readWrapper(encInbound) == -1)
+		{
+			//End of stream
+			engine.closeInbound();
+			return -1;
+		}
+
+		//Data can be left in the buffer while handshake tasks run
+		if(encInbound.position() == 0 || tasksRunning)
+		{
+			releaseEncInbound();
+			return 0;
 		}
 
 		//Prepare buffer
@@ -178,6 +338,7 @@ class TlsNetworkClient extends NetworkClient
 				case BUFFER_UNDERFLOW:
 					//Not enough bytes to complete packet - wait for more
 					encInbound.compact();
+					releaseEncInbound();
 					return totalBytes;
 
 				case CLOSED:
@@ -186,7 +347,16 @@ class TlsNetworkClient extends NetworkClient
 
 				case OK:
 					//Process extra tasks
-					if(!processHandshakeTasks())
+					if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+					{
+						if(!handshakeFinished())
+						{
+							//Send Q exceeded
+							close("SendQ Limit Exceeded");
+							return 0;
+						}
+					}
+					else if(!processHandshakeTasks())
 					{
 						//Send Q exceeded
 						close("SendQ Limit Exceeded");
@@ -198,7 +368,45 @@ class TlsNetworkClient extends NetworkClient
 
 			//Try to get more data
 			totalBytes += result.bytesProduced();
+
+			if(tasksRunning)
+			{
+				//Keep the rest until the tasks have finished
+				encInbound.compact();
+				return totalBytes;
+			}
+		}
+	}
+
+	/**
+	 * Called by the main thread when the task runner has finished this client's tasks
+	 */
+	void tasksFinished()
+	{
+		tasksRunning = false;
+
+		if(isClosed())
+		{
+			return;
 		}
+
+		try
+		{
+			//Continue the handshake
+			if(!processHandshakeTasks())
+			{
+				close("SendQ Limit Exceeded");
+				return;
+			}
+		}
+		catch(IOException e)
+		{
+			close("Write error");
+			return;
+		}
+
+		//Process any data which arrived while the tasks were running
+		processReadEvent();
 	}
 
 	@Override
@@ -207,25 +415,70 @@ class TlsNetworkClient extends NetworkClient
 		//Check if the connection is valid yet
 		if(engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
 		{
-			//Add to queue and process any tasks
-			bufferQueue.offer(buffer);
-			processHandshakeTasks();
-			return true;
+			//Data waiting for the handshake counts towards the SendQ
+			int remaining = buffer.remaining();
+			if(bufferQueueSize + getSendQueueSize() + remaining > getConnectionClass().sendQueue)
+			{
+				return false;
+			}
+
+			//Add a copy to the queue (read only buffers cannot change) and process any tasks
+			ByteBuffer copy = buffer;
+
+			if(!buffer.isReadOnly())
+			{
+				copy = ByteBuffer.allocate(remaining);
+				copy.put(buffer);
+				copy.flip();
+			}
+
+			bufferQueue.offer(copy);
+			bufferQueueSize += remaining;
+			return processHandshakeTasks();
 		}
 		else
 		{
 			//Check for anything on the buffer queue first
-			sendBufferQueue();
+			if(!sendBufferQueue())
+				return false;
 
-			//Send data
-			// As we know there is no handshake, there shouldn't be any tasks
-			return wrapAndSend(buffer);
+			//Encrypt at the end of the loop
+			return queuePlaintext(buffer);
 		}
 	}
 
+	@Override
+	void processWriteEvent()
+	{
+		try
+		{
+			//Encrypt waiting data first
+			if(!wrapPlaintext())
+			{
+				queueClose("SendQ Limit Exceeded");
+			}
+		}
+		catch(IOException e)
+		{
+			queueClose("Write error");
+		}
+
+		super.processWriteEvent();
+	}
+
 	@Override
 	protected boolean rawClose()
 	{
+		//Encrypt anything still waiting
+		try
+		{
+			wrapPlaintext();
+		}
+		catch(IOException e)
+		{
+			//Ignore
+		}
+
 		//Close SSL Engine
 		engine.closeOutbound();
 
@@ -239,6 +492,13 @@ class TlsNetworkClient extends NetworkClient
 			//Ignore
 		}
 
+		//Return buffers to the pool
+		if(encInbound != null)
+		{
+			mainReadPool.release(encInbound);
+			encInbound = null;
+		}
+
 		//Close the socket
 		return super.rawClose();
 	}
@@ -0,0 +1,267 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.nio.channels.Selector;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.cowgill.james.jircd.Client;
+
+/**
+ * Runs the delegated tasks of TLS handshakes (the expensive key exchange calculations)
+ *
+ * <p>Tasks are run by a bounded pool of threads so that they do not hold up the main thread.
+ *  When the pool is full, tasks are run by the main thread instead.
+ *
+ * <p>This class also keeps the handshake statistics shown by STATS t.
+ *
+ * @author James
+ */
+final class TlsTaskRunner
+{
+	/**
+	 * Maximum number of clients waiting for a task thread
+	 */
+	private static final int QUEUE_SIZE = 256;
+
+	/**
+	 * Number of seconds the handshake rate is calculated over
+	 */
+	private static final int RATE_SECONDS = 60;
+
+	/**
+	 * Task thread pool
+	 */
+	private final ThreadPoolExecutor eService;
+
+	/**
+	 * Clients whose tasks have finished
+	 */
+	private final ConcurrentLinkedQueue<TlsNetworkClient> finishedClients =
+			new ConcurrentLinkedQueue<TlsNetworkClient>();
+
+	/**
+	 * Main thread's selector
+	 */
+	private final Selector eventSelector;
+
+	//Statistics (tasks can be run by any thread)
+	private final AtomicLong tasksOffloaded = new AtomicLong();
+	private final AtomicLong tasksInline = new AtomicLong();
+	private final AtomicLong taskNanos = new AtomicLong();
+	private final AtomicLong inlineNanos = new AtomicLong();
+	private final AtomicLong maxTaskNanos = new AtomicLong();
+
+	//Handshake statistics (main thread only)
+
+	/**
+	 * Number of handshakes completed
+	 */
+	private long handshakesCompleted;
+
+	/**
+	 * Number of handshakes which resumed an earlier session
+	 */
+	private long sessionsResumed;
+
+	/**
+	 * Number of handshakes completed in each of the last RATE_SECONDS seconds
+	 */
+	private final long[] rateCounts = new long[RATE_SECONDS];
+
+	/**
+	 * The second each slot of rateCounts is counting
+	 */
+	private final long[] rateSeconds = new long[RATE_SECONDS];
+
+	/**
+	 * Creates a new task runner
+	 *
+	 * @param eventSelector selector to wake up when tasks have finished
+	 */
+	public TlsTaskRunner(Selector eventSelector)
+	{
+		this.eventSelector = eventSelector;
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		eService = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+		eService.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Runs the delegated tasks of a client's handshake
+	 *
+	 * <p>If the tasks are given to the pool, the client is returned by drainOneFinished once
+	 *  they have all been run. If the pool is full, the tasks are run before this returns.
+	 *
+	 * @param client client the tasks belong to
+	 * @param tasks tasks to run
+	 * @return true if the tasks were given to the pool, false if they have already been run
+	 */
+	public boolean submit(final TlsNetworkClient client, final List<Runnable> tasks)
+	{
+		try
+		{
+			eService.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						runTasks(tasks, false);
+
+						finishedClients.add(client);
+						eventSelector.wakeup();
+					}
+				});
+
+			return true;
+		}
+		catch(RejectedExecutionException e)
+		{
+			//Run them here instead
+			runTasks(tasks, true);
+			return false;
+		}
+	}
+
+	/**
+	 * Runs a list of tasks and records their run time
+	 */
+	private void runTasks(List<Runnable> tasks, boolean inline)
+	{
+		long start = System.nanoTime();
+
+		for(Runnable task : tasks)
+		{
+			task.run();
+		}
+
+		long time = System.nanoTime() - start;
+
+		if(inline)
+		{
+			tasksInline.addAndGet(tasks.size());
+			inlineNanos.addAndGet(time);
+		}
+		else
+		{
+			tasksOffloaded.addAndGet(tasks.size());
+		}
+
+		taskNanos.addAndGet(time);
+
+		long max = maxTaskNanos.get();
+		while(time > max && !maxTaskNanos.compareAndSet(max, time))
+		{
+			max = maxTaskNanos.get();
+		}
+	}
+
+	/**
+	 * Returns a client whose tasks have finished or null if there are none
+	 *
+	 * @return null or the client
+	 */
+	public TlsNetworkClient drainOneFinished()
+	{
+		return finishedClients.poll();
+	}
+
+	/**
+	 * Records a completed handshake
+	 *
+	 * <p>This must only be called from the main thread
+	 *
+	 * @param resumed true if the handshake resumed an earlier session
+	 */
+	void handshakeCompleted(boolean resumed)
+	{
+		handshakesCompleted++;
+
+		if(resumed)
+		{
+			sessionsResumed++;
+		}
+
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int) (second % RATE_SECONDS);
+
+		if(rateSeconds[slot] != second)
+		{
+			rateSeconds[slot] = second;
+			rateCounts[slot] = 0;
+		}
+
+		rateCounts[slot]++;
+	}
+
+	/**
+	 * Sends the TLS statistics to a client (STATS t)
+	 *
+	 * @param client client to send statistics to
+	 */
+	public void sendStatistics(Client client)
+	{
+		//Calculate rate over the last minute
+		long now = System.currentTimeMillis() / 1000;
+		long recent = 0;
+
+		for(int i = 0; i < RATE_SECONDS; i++)
+		{
+			if(now - rateSeconds[i] < RATE_SECONDS)
+			{
+				recent += rateCounts[i];
+			}
+		}
+
+		long offloaded = tasksOffloaded.get();
+		long inline = tasksInline.get();
+		long tasks = offloaded + inline;
+
+		sendLine(client, String.format("TLS handshakes %d (%.2f/s over the last minute)",
+				handshakesCompleted, (double) recent / RATE_SECONDS));
+		sendLine(client, String.format("TLS sessions %d resumed, %d full handshakes",
+				sessionsResumed, handshakesCompleted - sessionsResumed));
+		sendLine(client, String.format("TLS tasks %d offloaded, %d on main thread (%.3f ms main thread time)",
+				offloaded, inline, inlineNanos.get() / 1e6));
+		sendLine(client, String.format("TLS task time avg %.3f ms, max %.3f ms, %d waiting",
+				tasks == 0 ? 0.0 : taskNanos.get() / 1e6 / tasks, maxTaskNanos.get() / 1e6,
+				eService.getQueue().size()));
+	}
+
+	/**
+	 * Sends one line of statistics
+	 */
+	private static void sendLine(Client client, String line)
+	{
+		client.send(client.newNickMessage("249").appendParam(line));
+	}
+
+	/**
+	 * Shuts down the task threads
+	 */
+	public void shutdown()
+	{
+		eService.shutdownNow();
+	}
+}
@@ -0,0 +1,53 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals of the data sent and received by all network clients
+ *
+ * <p>Bytes are counted as they pass through the socket (so TLS overhead is included).
+ * Reactor and blocking connection threads update these, so they are atomic.
+ *
+ * @author James
+ */
+final class TrafficCounters
+{
+	/**
+	 * Bytes read from client sockets
+	 */
+	static final AtomicLong bytesIn = new AtomicLong();
+
+	/**
+	 * Bytes written to client sockets
+	 */
+	static final AtomicLong bytesOut = new AtomicLong();
+
+	/**
+	 * Non-empty lines received from clients
+	 */
+	static final AtomicLong linesIn = new AtomicLong();
+
+	/**
+	 * Messages sent to clients
+	 */
+	static final AtomicLong linesOut = new AtomicLong();
+
+	private TrafficCounters()
+	{
+	}
+}
@@ -0,0 +1,214 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set which stores its elements in an array
+ *
+ * <p>This is intended for small sets (like the channels a client is in). Lookups are linear
+ *  searches, but there are no per-entry objects and the array is only allocated when the first
+ *  element is added, so empty sets are very small.
+ *
+ * <p>Null elements are not allowed. This class is not thread safe.
+ *
+ * @author James
+ *
+ * @param <E> type of the elements in the set
+ */
+public class ArraySet<E> extends AbstractSet<E>
+{
+	/**
+	 * Size of the array allocated when the first element is added
+	 */
+	private static final int INITIAL_CAPACITY = 4;
+
+	/**
+	 * Elements of the set (null if nothing has been added yet)
+	 */
+	private Object[] elements;
+
+	private int size;
+
+	/**
+	 * Number of times the set has been modified (used to detect modification while iterating)
+	 */
+	private int modCount;
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	@Override
+	public boolean contains(Object o)
+	{
+		return indexOf(o) >= 0;
+	}
+
+	@Override
+	public boolean add(E e)
+	{
+		if(e == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(indexOf(e) >= 0)
+		{
+			return false;
+		}
+
+		//Grow array
+		if(elements == null)
+		{
+			elements = new Object[INITIAL_CAPACITY];
+		}
+		else if(size == elements.length)
+		{
+			elements = Arrays.copyOf(elements, size * 2);
+		}
+
+		elements[size++] = e;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object o)
+	{
+		int index = indexOf(o);
+		if(index < 0)
+		{
+			return false;
+		}
+
+		removeAt(index);
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		//Drop the array so cleared sets are as small as new ones
+		elements = null;
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public Iterator<E> iterator()
+	{
+		return new Iterator<E>()
+			{
+				private int expectedModCount = modCount;
+				private int next = 0;
+				private int last = -1;
+
+				@Override
+				public boolean hasNext()
+				{
+					return next < size;
+				}
+
+				@Override
+				@SuppressWarnings("unchecked")
+				public E next()
+				{
+					if(modCount != expectedModCount)
+					{
+						throw new ConcurrentModificationException();
+					}
+
+					if(next >= size)
+					{
+						throw new NoSuchElementException();
+					}
+
+					last = next++;
+					return (E) elements[last];
+				}
+
+				@Override
+				public void remove()
+				{
+					if(last < 0)
+					{
+						throw new IllegalStateException();
+					}
+
+					if(modCount != expectedModCount)
+					{
+						throw new ConcurrentModificationException();
+					}
+
+					//The last element is moved into the gap, so visit this index again
+					removeAt(last);
+					next = last;
+					last = -1;
+					expectedModCount = modCount;
+				}
+			};
+	}
+
+	/**
+	 * Finds the index of an element
+	 *
+	 * @return the index or -1 if not found
+	 */
+	private int indexOf(Object o)
+	{
+		for(int i = 0; i < size; i++)
+		{
+			Object element = elements[i];
+
+			if(element == o || element.equals(o))
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Removes the element at an index by moving the last element into its place
+	 */
+	private void removeAt(int index)
+	{
+		size--;
+		elements[index] = elements[size];
+		elements[size] = null;
+		modCount++;
+
+		if(size == 0)
+		{
+			elements = null;
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from names (like nicknames or channel names) to values which ignores case
+ *
+ * <p>Names are hashed and compared using a casemapping without creating lower case copies,
+ *  so lookups do not allocate any memory. Entries are stored in parallel arrays using open
+ *  addressing (linear probing) so there are no per-entry objects either. The keys are stored as
+ *  given (so they keep their case).
+ *
+ * <p>Null keys are not allowed. This class is not thread safe.
+ *
+ * @author James
+ *
+ * @param <V> type of the values in the map
+ */
+public class CaseMappedMap<V>
+{
+	/**
+	 * Initial number of slots (must be a power of 2)
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final CaseMapping mapping;
+
+	private String[] keys;
+	private Object[] values;
+
+	/**
+	 * Cached hash code of each key
+	 */
+	private int[] hashes;
+
+	private int size;
+
+	/**
+	 * Number of times the map has been modified (used to detect modification while iterating)
+	 */
+	private int modCount;
+
+	/**
+	 * Creates a new empty map
+	 *
+	 * @param mapping casemapping used to compare keys
+	 */
+	public CaseMappedMap(CaseMapping mapping)
+	{
+		this.mapping = mapping;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns the casemapping used to compare keys
+	 */
+	public CaseMapping getCaseMapping()
+	{
+		return mapping;
+	}
+
+	/**
+	 * Returns the number of entries in the map
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns true if the map is empty
+	 */
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Returns true if there is an entry for the given key
+	 *
+	 * @param key key to find
+	 * @return true if found
+	 */
+	public boolean containsKey(String key)
+	{
+		return find(key, hash(key)) >= 0;
+	}
+
+	/**
+	 * Gets the value associated with a key
+	 *
+	 * @param key key to find
+	 * @return the value or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(String key)
+	{
+		int slot = find(key, hash(key));
+		return slot >= 0 ? (V) values[slot] : null;
+	}
+
+	/**
+	 * Associates a value with a key
+	 *
+	 * <p>If the key is already in the map, the stored key is replaced with this one
+	 *
+	 * @param key key of the entry
+	 * @param value value to store
+	 * @return the previous value for the key or null if there wasn't one
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(String key, V value)
+	{
+		int hash = hash(key);
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+
+		while(keys[slot] != null)
+		{
+			if(hashes[slot] == hash && mapping.equalsIgnoreCase(keys[slot], key))
+			{
+				//Replace existing entry
+				V old = (V) values[slot];
+				keys[slot] = key;
+				values[slot] = value;
+				return old;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		//Add new entry
+		keys[slot] = key;
+		values[slot] = value;
+		hashes[slot] = hash;
+		size++;
+		modCount++;
+
+		//Keep the load factor below 3/4
+		if(size * 4 > keys.length * 3)
+		{
+			resize(keys.length * 2);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes the entry for a key
+	 *
+	 * @param key key to remove
+	 * @return the removed value or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(String key)
+	{
+		int slot = find(key, hash(key));
+		if(slot < 0)
+		{
+			return null;
+		}
+
+		V old = (V) values[slot];
+		size--;
+		modCount++;
+
+		//Shift back entries after this one which would no longer be found
+		int mask = keys.length - 1;
+		int next = slot;
+
+		for(;;)
+		{
+			next = (next + 1) & mask;
+
+			if(keys[next] == null)
+			{
+				break;
+			}
+
+			//Entries can be moved if their ideal slot is not between the hole and their slot
+			int ideal = hashes[next] & mask;
+
+			if(((next - ideal) & mask) >= ((next - slot) & mask))
+			{
+				keys[slot] = keys[next];
+				values[slot] = values[next];
+				hashes[slot] = hashes[next];
+				slot = next;
+			}
+		}
+
+		keys[slot] = null;
+		values[slot] = null;
+		return old;
+	}
+
+	/**
+	 * Returns a view of the values in the map
+	 *
+	 * <p>The collection cannot be modified. Iterators fail if the map is modified while in use.
+	 */
+	public Collection<V> values()
+	{
+		return new AbstractCollection<V>()
+			{
+				@Override
+				public Iterator<V> iterator()
+				{
+					return new ValueIterator();
+				}
+
+				@Override
+				public int size()
+				{
+					return size;
+				}
+			};
+	}
+
+	/**
+	 * Iterator over the values in the map
+	 */
+	private class ValueIterator implements Iterator<V>
+	{
+		private final int expectedModCount = modCount;
+		private int nextSlot = -1;
+
+		ValueIterator()
+		{
+			advance();
+		}
+
+		/**
+		 * Moves nextSlot to the next occupied slot
+		 */
+		private void advance()
+		{
+			do
+			{
+				nextSlot++;
+			}
+			while(nextSlot < keys.length && keys[nextSlot] == null);
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return nextSlot < keys.length;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next()
+		{
+			if(modCount != expectedModCount)
+			{
+				throw new ConcurrentModificationException();
+			}
+
+			if(nextSlot >= keys.length)
+			{
+				throw new NoSuchElementException();
+			}
+
+			V value = (V) values[nextSlot];
+			advance();
+			return value;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Finds the slot containing a key
+	 *
+	 * @return the slot or -1 if not found
+	 */
+	private int find(String key, int hash)
+	{
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+
+		while(keys[slot] != null)
+		{
+			if(hashes[slot] == hash && mapping.equalsIgnoreCase(keys[slot], key))
+			{
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Hashes a key and spreads the bits so the low bits can be used as the slot
+	 */
+	private int hash(String key)
+	{
+		int hash = mapping.hashIgnoreCase(key) * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Allocates empty arrays
+	 */
+	private void allocate(int capacity)
+	{
+		keys = new String[capacity];
+		values = new Object[capacity];
+		hashes = new int[capacity];
+	}
+
+	/**
+	 * Moves all entries into new arrays
+	 */
+	private void resize(int capacity)
+	{
+		String[] oldKeys = keys;
+		Object[] oldValues = values;
+		int[] oldHashes = hashes;
+
+		allocate(capacity);
+		int mask = capacity - 1;
+
+		for(int i = 0; i < oldKeys.length; i++)
+		{
+			if(oldKeys[i] != null)
+			{
+				int slot = oldHashes[i] & mask;
+
+				while(keys[slot] != null)
+				{
+					slot = (slot + 1) & mask;
+				}
+
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				hashes[slot] = oldHashes[i];
+			}
+		}
+	}
+}
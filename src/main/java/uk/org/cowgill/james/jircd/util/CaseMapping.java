@@ -0,0 +1,200 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+/**
+ * The casemappings used to compare nicknames, channels and masks
+ *
+ * <p>Characters outside the ASCII range are folded using Character.toLowerCase
+ *
+ * @author James
+ */
+public enum CaseMapping
+{
+	/**
+	 * Only the letters A-Z are folded
+	 */
+	ASCII("ascii", 'Z'),
+
+	/**
+	 * A-Z and []\~ are folded to a-z and {}|^
+	 */
+	RFC1459("rfc1459", '^'),
+
+	/**
+	 * A-Z and []\ are folded to a-z and {}|
+	 */
+	STRICT_RFC1459("strict-rfc1459", ']');
+
+	/**
+	 * Table used to fold ASCII characters
+	 */
+	private final char[] table = new char[128];
+
+	/**
+	 * Name of the casemapping (used in ISUPPORT)
+	 */
+	private final String name;
+
+	/**
+	 * Creates a new casemapping
+	 *
+	 * @param name name of the casemapping
+	 * @param lastUpper the last upper case character which is folded
+	 */
+	private CaseMapping(String name, char lastUpper)
+	{
+		this.name = name;
+
+		for(char c = 0; c < table.length; c++)
+		{
+			if(c >= 'A' && c <= lastUpper)
+			{
+				table[c] = (char) (c + ('a' - 'A'));
+			}
+			else
+			{
+				table[c] = c;
+			}
+		}
+	}
+
+	/**
+	 * Returns the name of this casemapping as advertised to clients
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Converts a character to lower case using this casemapping
+	 *
+	 * @param c character to convert
+	 * @return the lower case character
+	 */
+	public char toLower(char c)
+	{
+		if(c < 128)
+		{
+			return table[c];
+		}
+
+		return Character.toLowerCase(c);
+	}
+
+	/**
+	 * Compares two strings using this casemapping
+	 *
+	 * @param a first string
+	 * @param b second string
+	 * @return true if the strings are equal ignoring case
+	 */
+	public boolean equalsIgnoreCase(String a, String b)
+	{
+		int length = a.length();
+		if(length != b.length())
+		{
+			return false;
+		}
+
+		for(int i = 0; i < length; i++)
+		{
+			char ca = a.charAt(i);
+			char cb = b.charAt(i);
+
+			if(ca != cb && toLower(ca) != toLower(cb))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Compares the order of two strings ignoring case using this casemapping
+	 *
+	 * <p>The strings are compared by their lower case characters, so strings which are
+	 *  equal according to {@link #equalsIgnoreCase} compare as 0
+	 *
+	 * @param a first string
+	 * @param b second string
+	 * @return negative, zero or positive if a is less than, equal to or greater than b
+	 */
+	public int compareIgnoreCase(String a, String b)
+	{
+		int length = Math.min(a.length(), b.length());
+
+		for(int i = 0; i < length; i++)
+		{
+			char ca = a.charAt(i);
+			char cb = b.charAt(i);
+
+			if(ca != cb)
+			{
+				ca = toLower(ca);
+				cb = toLower(cb);
+
+				if(ca != cb)
+				{
+					return ca - cb;
+				}
+			}
+		}
+
+		return a.length() - b.length();
+	}
+
+	/**
+	 * Calculates a hash code of a string which ignores case using this casemapping
+	 *
+	 * <p>Strings which are equal according to {@link #equalsIgnoreCase} have the same hash code
+	 *
+	 * @param str string to hash
+	 * @return the hash code
+	 */
+	public int hashIgnoreCase(String str)
+	{
+		int hash = 0;
+
+		for(int i = 0; i < str.length(); i++)
+		{
+			hash = 31 * hash + toLower(str.charAt(i));
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Finds a casemapping from its advertised name
+	 *
+	 * @param name name of the casemapping (case-insensitive)
+	 * @return the casemapping or null if there isn't one with that name
+	 */
+	public static CaseMapping fromName(String name)
+	{
+		for(CaseMapping mapping : values())
+		{
+			if(mapping.name.equalsIgnoreCase(name))
+			{
+				return mapping;
+			}
+		}
+
+		return null;
+	}
+}
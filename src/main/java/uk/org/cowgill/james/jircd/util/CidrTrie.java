@@ -0,0 +1,509 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.org.cowgill.james.jircd.IRCMask;
+
+/**
+ * A set of IP address masks which can be quickly matched against an address
+ *
+ * <p>Masks can be IPv4 or IPv6 addresses with an optional CIDR prefix length
+ *  (eg 10.0.0.0/8 or 2001:db8::/32). Wildcard masks are still accepted: masks like 10.0.*
+ *  are converted to CIDR ranges and anything else is compared with the wildcard matcher.
+ *
+ * <p>CIDR masks are stored in a binary trie so lookups take time proportional to the number of
+ *  bits in the address. If many masks match an address, the one added first is returned.
+ *
+ * @author James
+ *
+ * @param <V> type of the value associated with each mask
+ */
+public class CidrTrie<V>
+{
+	/**
+	 * A node in the trie
+	 */
+	private static final class Node
+	{
+		Node zero, one;
+		Object value;
+		int priority = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * A mask which can only be compared using wildcards
+	 */
+	private static final class WildMask
+	{
+		final String mask;
+		final Object value;
+		final int priority;
+
+		WildMask(String mask, Object value, int priority)
+		{
+			this.mask = mask;
+			this.value = value;
+			this.priority = priority;
+		}
+	}
+
+	private final Node root4 = new Node();
+	private final Node root6 = new Node();
+	private final List<WildMask> wildMasks = new ArrayList<WildMask>();
+
+	/**
+	 * Priority of the next mask to be added (lower priorities win)
+	 */
+	private int nextPriority = 0;
+
+	/**
+	 * Adds a mask to the trie
+	 *
+	 * <p>Empty masks are ignored (they never match anything)
+	 *
+	 * @param mask mask to add
+	 * @param value value returned when this mask matches
+	 */
+	public void add(String mask, V value)
+	{
+		mask = mask.trim();
+		if(mask.isEmpty())
+		{
+			return;
+		}
+
+		int priority = nextPriority++;
+
+		//Match everything
+		if(mask.equals("*"))
+		{
+			insert(root4, new byte[4], 0, value, priority);
+			insert(root6, new byte[16], 0, value, priority);
+			return;
+		}
+
+		//Try CIDR form
+		int slash = mask.indexOf('/');
+		byte[] address = parseAddress(slash == -1 ? mask : mask.substring(0, slash));
+		int prefixLength = -1;
+
+		if(address != null)
+		{
+			if(slash == -1)
+			{
+				prefixLength = address.length * 8;
+			}
+			else
+			{
+				try
+				{
+					prefixLength = Integer.parseInt(mask.substring(slash + 1));
+				}
+				catch(NumberFormatException e)
+				{
+					prefixLength = -1;
+				}
+
+				if(prefixLength > address.length * 8)
+				{
+					prefixLength = -1;
+				}
+			}
+		}
+		else if(slash == -1)
+		{
+			//Try IPv4 wildcard with whole octets (eg 192.168.*)
+			address = parseIPv4Wildcard(mask);
+
+			if(address != null)
+			{
+				prefixLength = (mask.length() - mask.replace(".", "").length()) * 8;
+			}
+		}
+
+		if(prefixLength >= 0)
+		{
+			if(address.length == 16)
+			{
+				//Addresses are unmapped before lookups, so mapped masks must be as well
+				if(prefixLength >= 96 && isMappedIPv4(address, 96))
+				{
+					insert(root4, unmapIPv4(address), prefixLength - 96, value, priority);
+					return;
+				}
+				else if(isMappedIPv4(address, prefixLength))
+				{
+					//Mask covers all mapped addresses (and some others)
+					insert(root4, new byte[4], 0, value, priority);
+				}
+			}
+
+			insert(address.length == 4 ? root4 : root6, address, prefixLength, value, priority);
+		}
+		else
+		{
+			//Fallback to wildcards
+			wildMasks.add(new WildMask(mask, value, priority));
+		}
+	}
+
+	/**
+	 * Inserts a prefix into the trie
+	 */
+	private static void insert(Node node, byte[] address, int prefixLength, Object value, int priority)
+	{
+		for(int bit = 0; bit < prefixLength; bit++)
+		{
+			if(getBit(address, bit))
+			{
+				if(node.one == null)
+				{
+					node.one = new Node();
+				}
+
+				node = node.one;
+			}
+			else
+			{
+				if(node.zero == null)
+				{
+					node.zero = new Node();
+				}
+
+				node = node.zero;
+			}
+		}
+
+		//Keep the highest priority value
+		if(priority < node.priority)
+		{
+			node.value = value;
+			node.priority = priority;
+		}
+	}
+
+	/**
+	 * Finds the first mask added which matches the given address
+	 *
+	 * @param address ip address as returned by InetAddress.getHostAddress()
+	 * @return the value of the matching mask or null if no masks match
+	 */
+	@SuppressWarnings("unchecked")
+	public V lookup(String address)
+	{
+		Object bestValue = null;
+		int bestPriority = Integer.MAX_VALUE;
+
+		//Search trie
+		byte[] bytes = parseAddress(address);
+
+		if(bytes != null)
+		{
+			bytes = unmapIPv4(bytes);
+			Node node = (bytes.length == 4) ? root4 : root6;
+			int bitCount = bytes.length * 8;
+
+			for(int bit = 0; node != null; bit++)
+			{
+				if(node.priority < bestPriority)
+				{
+					bestValue = node.value;
+					bestPriority = node.priority;
+				}
+
+				if(bit == bitCount)
+				{
+					break;
+				}
+
+				node = getBit(bytes, bit) ? node.one : node.zero;
+			}
+		}
+
+		//Check wildcard masks which were added before the best match
+		for(WildMask wildMask : wildMasks)
+		{
+			if(wildMask.priority >= bestPriority)
+			{
+				break;
+			}
+
+			if(IRCMask.wildcardCompare(address, wildMask.mask))
+			{
+				return (V) wildMask.value;
+			}
+		}
+
+		return (V) bestValue;
+	}
+
+	/**
+	 * Returns a bit from a big-endian address
+	 */
+	private static boolean getBit(byte[] address, int bit)
+	{
+		return (address[bit >> 3] & (0x80 >> (bit & 7))) != 0;
+	}
+
+	/**
+	 * Converts IPv4 mapped IPv6 addresses (::ffff:a.b.c.d) into IPv4 addresses
+	 */
+	private static byte[] unmapIPv4(byte[] address)
+	{
+		if(address.length == 16 && isMappedIPv4(address, 96))
+		{
+			return new byte[] { address[12], address[13], address[14], address[15] };
+		}
+
+		return address;
+	}
+
+	/**
+	 * Returns true if the first bits of an IPv6 address are the same as the IPv4 mapped prefix
+	 *
+	 * @param address IPv6 address
+	 * @param bits number of bits to check (at most 96)
+	 */
+	private static boolean isMappedIPv4(byte[] address, int bits)
+	{
+		for(int bit = 0; bit < bits; bit++)
+		{
+			//The first 80 bits are 0 and the next 16 are 1
+			if(getBit(address, bit) != (bit >= 80))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Parses an IPv4 wildcard mask made of whole octets followed by .*
+	 *
+	 * @return the address (with 0s in the wildcard octets) or null if the mask is not in this form
+	 */
+	private static byte[] parseIPv4Wildcard(String mask)
+	{
+		if(!mask.endsWith(".*"))
+		{
+			return null;
+		}
+
+		//Pad the literal part with zeros
+		String literal = mask.substring(0, mask.length() - 2);
+		int dots = literal.length() - literal.replace(".", "").length();
+
+		if(dots > 2)
+		{
+			return null;
+		}
+
+		for(int i = dots; i < 3; i++)
+		{
+			literal += ".0";
+		}
+
+		return parseIPv4(literal);
+	}
+
+	/**
+	 * Parses an IPv4 or IPv6 address literal
+	 *
+	 * <p>This never performs DNS lookups. IPv6 scope ids (after a %) are ignored.
+	 *
+	 * @param address address to parse
+	 * @return the address bytes (4 or 16 bytes) or null if the address is invalid
+	 */
+	public static byte[] parseAddress(String address)
+	{
+		if(address.indexOf(':') == -1)
+		{
+			return parseIPv4(address);
+		}
+		else
+		{
+			return parseIPv6(address);
+		}
+	}
+
+	/**
+	 * Parses a dotted quad IPv4 address
+	 */
+	private static byte[] parseIPv4(String address)
+	{
+		byte[] result = new byte[4];
+		int part = 0;
+		int value = -1;
+
+		for(int i = 0; i < address.length(); i++)
+		{
+			char c = address.charAt(i);
+
+			if(c >= '0' && c <= '9')
+			{
+				value = (value == -1 ? 0 : value * 10) + (c - '0');
+
+				if(value > 255)
+				{
+					return null;
+				}
+			}
+			else if(c == '.' && value != -1 && part < 3)
+			{
+				result[part++] = (byte) value;
+				value = -1;
+			}
+			else
+			{
+				return null;
+			}
+		}
+
+		if(value == -1 || part != 3)
+		{
+			return null;
+		}
+
+		result[3] = (byte) value;
+		return result;
+	}
+
+	/**
+	 * Parses an IPv6 address (with optional :: and trailing IPv4 part)
+	 */
+	private static byte[] parseIPv6(String address)
+	{
+		//Strip scope id
+		int percent = address.indexOf('%');
+		if(percent != -1)
+		{
+			address = address.substring(0, percent);
+		}
+
+		//Split around ::
+		String head, tail;
+		int doubleColon = address.indexOf("::");
+
+		if(doubleColon == -1)
+		{
+			head = address;
+			tail = null;
+		}
+		else
+		{
+			if(address.indexOf("::", doubleColon + 1) != -1)
+			{
+				return null;
+			}
+
+			head = address.substring(0, doubleColon);
+			tail = address.substring(doubleColon + 2);
+		}
+
+		//Parse both sides
+		byte[] headBytes = parseIPv6Groups(head, tail == null);
+		byte[] tailBytes = (tail == null) ? new byte[0] : parseIPv6Groups(tail, true);
+
+		if(headBytes == null || tailBytes == null)
+		{
+			return null;
+		}
+
+		if(tail == null)
+		{
+			//Must be a complete address
+			return headBytes.length == 16 ? headBytes : null;
+		}
+		else if(headBytes.length + tailBytes.length > 14)
+		{
+			//:: must replace at least one group
+			return null;
+		}
+
+		byte[] result = new byte[16];
+		System.arraycopy(headBytes, 0, result, 0, headBytes.length);
+		System.arraycopy(tailBytes, 0, result, 16 - tailBytes.length, tailBytes.length);
+		return result;
+	}
+
+	/**
+	 * Parses a list of IPv6 groups separated by colons
+	 *
+	 * @param groups groups to parse (may be empty)
+	 * @param allowIPv4 true if the last group may be an IPv4 address
+	 * @return the bytes or null on error
+	 */
+	private static byte[] parseIPv6Groups(String groups, boolean allowIPv4)
+	{
+		if(groups.isEmpty())
+		{
+			return new byte[0];
+		}
+
+		String[] parts = groups.split(":", -1);
+		byte[] result = new byte[16];
+		int length = 0;
+
+		for(int i = 0; i < parts.length; i++)
+		{
+			String part = parts[i];
+
+			if(allowIPv4 && i == parts.length - 1 && part.indexOf('.') != -1)
+			{
+				//Trailing IPv4 address
+				byte[] ipv4 = parseIPv4(part);
+
+				if(ipv4 == null || length > 12)
+				{
+					return null;
+				}
+
+				System.arraycopy(ipv4, 0, result, length, 4);
+				length += 4;
+				break;
+			}
+
+			if(part.isEmpty() || part.length() > 4 || length > 14)
+			{
+				return null;
+			}
+
+			int value = 0;
+			for(int j = 0; j < part.length(); j++)
+			{
+				int digit = Character.digit(part.charAt(j), 16);
+
+				if(digit == -1)
+				{
+					return null;
+				}
+
+				value = value * 16 + digit;
+			}
+
+			result[length++] = (byte) (value >> 8);
+			result[length++] = (byte) value;
+		}
+
+		byte[] trimmed = new byte[length];
+		System.arraycopy(result, 0, trimmed, 0, length);
+		return trimmed;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import java.io.PrintWriter;
+
+/**
+ * A histogram of non-negative values with a fixed relative precision
+ *
+ * <p>Values are counted in buckets whose width grows with the value (like an HDR histogram),
+ *  so recording is a few shifts and an array increment. Values below 32 have their own
+ *  buckets and larger buckets are at most 1/16 of their lower bound wide, so percentiles are
+ *  accurate to within 6.25% at any magnitude.
+ *  The exact count, total and maximum are also kept.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @author James
+ */
+public final class LatencyHistogram
+{
+	/**
+	 * Number of bits of each value kept in the bucket index
+	 */
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+
+	/**
+	 * Bucket counts
+	 */
+	private final long[] counts = new long[(64 - SUB_BITS) * HALF_COUNT + HALF_COUNT];
+
+	private long count;
+	private long total;
+	private long max;
+
+	/**
+	 * Creates an empty histogram
+	 */
+	public LatencyHistogram()
+	{
+	}
+
+	/**
+	 * Creates a copy of another histogram
+	 *
+	 * @param other histogram to copy
+	 */
+	public LatencyHistogram(LatencyHistogram other)
+	{
+		System.arraycopy(other.counts, 0, counts, 0, counts.length);
+		count = other.count;
+		total = other.total;
+		max = other.max;
+	}
+
+	/**
+	 * Records a value
+	 *
+	 * @param value value to record (negative values are recorded as 0)
+	 */
+	public void record(long value)
+	{
+		if(value < 0)
+		{
+			value = 0;
+		}
+
+		counts[bucketIndex(value)]++;
+		count++;
+		total += value;
+
+		if(value > max)
+		{
+			max = value;
+		}
+	}
+
+	/**
+	 * Removes all recorded values
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < counts.length; i++)
+		{
+			counts[i] = 0;
+		}
+
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	/**
+	 * Returns the number of values recorded
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns the sum of all the values recorded
+	 */
+	public long getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * Returns the largest value recorded (or 0 if nothing has been recorded)
+	 */
+	public long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Returns the mean of the values recorded (or 0 if nothing has been recorded)
+	 */
+	public double getMean()
+	{
+		return (count == 0) ? 0 : (double) total / count;
+	}
+
+	/**
+	 * Returns the value which the given percentage of recorded values are less than or equal to
+	 *
+	 * <p>The result is the upper bound of the bucket containing the value (but never more than
+	 *  the maximum value recorded)
+	 *
+	 * @param percentile percentile to find (0 to 100)
+	 * @return the value or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		if(count == 0)
+		{
+			return 0;
+		}
+
+		//Find the rank of the value
+		long rank = (long) Math.ceil(count * Math.min(percentile, 100) / 100);
+		if(rank < 1)
+		{
+			rank = 1;
+		}
+
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+
+			if(seen >= rank)
+			{
+				return Math.min(bucketUpperBound(i), max);
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * Writes every non-empty bucket of the histogram
+	 *
+	 * <p>Each line contains the lower bound, upper bound and count of a bucket
+	 *
+	 * @param writer writer to write to
+	 */
+	public void dump(PrintWriter writer)
+	{
+		for(int i = 0; i < counts.length; i++)
+		{
+			if(counts[i] != 0)
+			{
+				writer.println(bucketLowerBound(i) + "\t" + bucketUpperBound(i) + "\t" + counts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the bucket a value is counted in
+	 */
+	private static int bucketIndex(long value)
+	{
+		if(value < SUB_COUNT)
+		{
+			return (int) value;
+		}
+
+		//Keep the top SUB_BITS bits of the value
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS + 1;
+		return shift * HALF_COUNT + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the smallest value counted in a bucket
+	 */
+	private static long bucketLowerBound(int index)
+	{
+		if(index < SUB_COUNT)
+		{
+			return index;
+		}
+
+		int shift = index / HALF_COUNT - 1;
+		return (long) (index - shift * HALF_COUNT) << shift;
+	}
+
+	/**
+	 * Returns the largest value counted in a bucket
+	 */
+	private static long bucketUpperBound(int index)
+	{
+		if(index < SUB_COUNT)
+		{
+			return index;
+		}
+
+		int shift = index / HALF_COUNT - 1;
+		return ((long) (index - shift * HALF_COUNT + 1) << shift) - 1;
+	}
+}
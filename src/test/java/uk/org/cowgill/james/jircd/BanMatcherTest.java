@@ -0,0 +1,132 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+
+/**
+ * Tests the compiled ban matcher
+ *
+ * @author James
+ */
+public class BanMatcherTest
+{
+	private static IRCMask mask(String nick, String user, String host)
+	{
+		IRCMask mask = new IRCMask();
+		mask.nick = nick;
+		mask.user = user;
+		mask.host = host;
+		return mask;
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		BanMatcher matcher = new BanMatcher(Collections.<String>emptyList(), CaseMapping.RFC1459);
+		assertFalse(matcher.matches(mask("nick", "user", "host")));
+	}
+
+	@Test
+	public void testIndexedHosts()
+	{
+		BanMatcher matcher = new BanMatcher(Arrays.asList(
+				"*!*@Exact.Example.COM", "*!*@*.suffix.org", "*!*@10.0.*", "bad!*@*"),
+				CaseMapping.RFC1459);
+
+		assertTrue(matcher.matches(mask("nick", "user", "exact.example.com")));
+		assertFalse(matcher.matches(mask("nick", "user", "inexact.example.com")));
+		assertTrue(matcher.matches(mask("nick", "user", "host.SUFFIX.org")));
+		assertFalse(matcher.matches(mask("nick", "user", "suffix.org")));
+		assertTrue(matcher.matches(mask("nick", "user", "10.0.0.1")));
+		assertFalse(matcher.matches(mask("nick", "user", "10.1.0.1")));
+		assertTrue(matcher.matches(mask("BAD", "user", "anywhere")));
+	}
+
+	@Test
+	public void testExactHostFolding()
+	{
+		BanMatcher matcher = new BanMatcher(Arrays.asList("*!*@host[1]"), CaseMapping.RFC1459);
+		assertTrue(matcher.matches(mask("nick", "user", "HOST{1}")));
+
+		matcher = new BanMatcher(Arrays.asList("*!*@host[1]"), CaseMapping.ASCII);
+		assertFalse(matcher.matches(mask("nick", "user", "HOST{1}")));
+		assertTrue(matcher.matches(mask("nick", "user", "HOST[1]")));
+	}
+
+	@Test
+	public void testAgainstLinearSearch()
+	{
+		final String alphabet = "ab.*?";
+		Random random = new Random(1);
+
+		for(int i = 0; i < 2000; i++)
+		{
+			//Build a ban list
+			List<String> bans = new ArrayList<String>();
+			int count = random.nextInt(10);
+
+			for(int j = 0; j < count; j++)
+			{
+				bans.add(randomString(random, "n*?", 2) + "!*@" + randomString(random, alphabet, 1 + random.nextInt(6)));
+			}
+
+			BanMatcher matcher = new BanMatcher(bans, CaseMapping.RFC1459);
+
+			//Check some clients
+			for(int j = 0; j < 50; j++)
+			{
+				IRCMask id = mask(randomString(random, "nN", 2), "user",
+						randomString(random, "abAB.", 1 + random.nextInt(6)));
+
+				boolean expected = false;
+				for(String ban : bans)
+				{
+					expected |= IRCMask.wildcardCompare(id.toString(), ban, CaseMapping.RFC1459);
+				}
+
+				assertEquals(bans + " " + id, expected, matcher.matches(id));
+			}
+		}
+	}
+
+	/**
+	 * Creates a random string from the given characters
+	 */
+	private static String randomString(Random random, String alphabet, int length)
+	{
+		char[] chars = new char[length];
+
+		for(int i = 0; i < length; i++)
+		{
+			chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		}
+
+		return new String(chars);
+	}
+}
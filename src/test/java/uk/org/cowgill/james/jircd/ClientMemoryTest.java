@@ -0,0 +1,293 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+
+import uk.org.cowgill.james.jircd.util.ArraySet;
+
+/**
+ * Measures the memory used by idle registered clients with JOL
+ *
+ * <p>The measured sizes are logged at debug level so they can be compared between versions.
+ * This registers 100000 clients so it only runs in the slowtests profile (mvn test -Pslowtests).
+ *
+ * @author James
+ */
+public class ClientMemoryTest
+{
+	private static final Logger logger = Logger.getLogger(ClientMemoryTest.class);
+
+	private static final int CLIENTS = 100000;
+	private static final int CHANNELS = 1000;
+	private static final int CHANNELS_PER_CLIENT = 3;
+
+	/**
+	 * Client which does nothing with the data sent to it
+	 */
+	private static class IdleClient extends Client
+	{
+		IdleClient(String nick)
+		{
+			super(new IRCMask(), 0);
+
+			id.nick = nick;
+			id.user = "user";
+			id.host = "host.example.com";
+			realName = "Idle Client";
+		}
+
+		@Override
+		protected boolean changeClass(ConnectionClass clazz, boolean defaultClass)
+		{
+			return true;
+		}
+
+		@Override
+		public void restoreClass()
+		{
+		}
+
+		@Override
+		public String getIpAddress()
+		{
+			return "192.0.2.1";
+		}
+
+		@Override
+		public void send(Object data)
+		{
+		}
+
+		@Override
+		protected boolean rawClose()
+		{
+			return true;
+		}
+
+		@Override
+		public long getIdleTime()
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Server which runs the measurements instead of a network loop
+	 */
+	private static class MeasureServer extends Server
+	{
+		Throwable error;
+
+		long clientBytes, idleSetBytes, idleHashSetBytes, joinedSetBytes, joinedHashSetBytes;
+
+		MeasureServer(File configFile)
+		{
+			super(configFile);
+		}
+
+		@Override
+		protected void rehashed()
+		{
+		}
+
+		@Override
+		protected void runServer()
+		{
+			try
+			{
+				measure();
+			}
+			catch(Throwable e)
+			{
+				error = e;
+			}
+		}
+
+		private void measure()
+		{
+			//Register the clients
+			Client[] clients = new Client[CLIENTS];
+
+			for(int i = 0; i < CLIENTS; i++)
+			{
+				clients[i] = new IdleClient("idle" + i);
+				clients[i].setRegistrationFlag(RegistrationFlags.AllFlags - RegistrationFlags.RegComplete);
+				clients[i].registeredEvent();
+			}
+
+			assertEquals(CLIENTS, getClientCount());
+
+			clientBytes = GraphLayout.parseInstance((Object[]) clients).totalSize();
+			idleSetBytes = GraphLayout.parseInstance(allSets(clients)).totalSize();
+
+			//The sets the clients used to have
+			List<Object> hashSets = new ArrayList<Object>();
+
+			for(int i = 0; i < CLIENTS * 2; i++)
+			{
+				hashSets.add(new HashSet<Channel>());
+			}
+
+			idleHashSetBytes = GraphLayout.parseInstance(hashSets.toArray()).totalSize();
+
+			//Join some channels
+			Channel[] channels = new Channel[CHANNELS];
+
+			for(int i = 0; i < CHANNELS; i++)
+			{
+				channels[i] = Channel.createChannel("#channel" + i);
+			}
+
+			for(int i = 0; i < CLIENTS; i++)
+			{
+				for(int j = 0; j < CHANNELS_PER_CLIENT; j++)
+				{
+					channels[(i + j * 7) % CHANNELS].join(clients[i]);
+				}
+			}
+
+			//The channels reach every client, so the sets are copied with shared markers in
+			// place of the channels and the markers subtracted from the total
+			Object[] markers = new Object[CHANNELS];
+			Map<Channel, Object> markerMap = new HashMap<Channel, Object>();
+
+			for(int i = 0; i < CHANNELS; i++)
+			{
+				markers[i] = new Object();
+				markerMap.put(channels[i], markers[i]);
+			}
+
+			long markerBytes = GraphLayout.parseInstance(markers).totalSize();
+
+			Object[] sets = allSets(clients);
+			Object[] arrayCopies = new Object[sets.length + 1];
+			Object[] hashCopies = new Object[sets.length + 1];
+
+			for(int i = 0; i < sets.length; i++)
+			{
+				ArraySet<Object> arrayCopy = new ArraySet<Object>();
+				HashSet<Object> hashCopy = new HashSet<Object>();
+
+				@SuppressWarnings("unchecked")
+				Set<Channel> set = (Set<Channel>) sets[i];
+
+				for(Channel channel : set)
+				{
+					Object marker = markerMap.get(channel);
+					arrayCopy.add(marker);
+					hashCopy.add(marker);
+				}
+
+				arrayCopies[i] = arrayCopy;
+				hashCopies[i] = hashCopy;
+			}
+
+			arrayCopies[sets.length] = markers;
+			hashCopies[sets.length] = markers;
+
+			joinedSetBytes = GraphLayout.parseInstance(arrayCopies).totalSize() - markerBytes;
+			joinedHashSetBytes = GraphLayout.parseInstance(hashCopies).totalSize() - markerBytes;
+		}
+	}
+
+	/**
+	 * Returns the channel and invite sets of every client
+	 */
+	private static Object[] allSets(Client[] clients)
+	{
+		Object[] sets = new Object[clients.length * 2];
+
+		for(int i = 0; i < clients.length; i++)
+		{
+			sets[i * 2] = clients[i].channels;
+			sets[i * 2 + 1] = clients[i].invited;
+		}
+
+		return sets;
+	}
+
+	/**
+	 * Writes a minimal config file
+	 */
+	private static File writeConfig() throws IOException
+	{
+		File file = File.createTempFile("jircd", ".conf");
+		file.deleteOnExit();
+
+		FileWriter writer = new FileWriter(file);
+
+		try
+		{
+			writer.write("name test;\n");
+			writer.write("description \"Memory Test\";\n");
+			writer.write("listen 6667;\n");
+			writer.write("class clients { readq 2048; sendq 16000; maxlinks " + CLIENTS + "; pingfreq 90; }\n");
+			writer.write("accept { ip *; maxclones " + CLIENTS + "; class clients; }\n");
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		return file;
+	}
+
+	@Test
+	public void testIdleClients() throws Exception
+	{
+		MeasureServer server = new MeasureServer(writeConfig());
+		server.run();
+
+		if(server.error != null)
+		{
+			throw new AssertionError(server.error);
+		}
+
+		logger.debug(String.format("%d idle registered clients: %.1f bytes each",
+				CLIENTS, (double) server.clientBytes / CLIENTS));
+		logger.debug(String.format("Channel and invite sets of idle clients: %.1f bytes per client (HashSet %.1f)",
+				(double) server.idleSetBytes / CLIENTS, (double) server.idleHashSetBytes / CLIENTS));
+		logger.debug(String.format("Channel and invite sets in %d channels: %.1f bytes per client (HashSet %.1f)",
+				CHANNELS_PER_CLIENT, (double) server.joinedSetBytes / CLIENTS,
+				(double) server.joinedHashSetBytes / CLIENTS));
+
+		//Idle clients only have the two set objects (no arrays)
+		long setSize = ClassLayout.parseClass(ArraySet.class).instanceSize();
+		assertEquals(CLIENTS * 2 * setSize, server.idleSetBytes);
+
+		assertTrue(server.idleSetBytes < server.idleHashSetBytes);
+		assertTrue(server.joinedSetBytes < server.joinedHashSetBytes);
+		assertNull(Server.getServer());
+	}
+}
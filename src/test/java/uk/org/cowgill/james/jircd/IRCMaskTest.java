@@ -0,0 +1,218 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+
+/**
+ * Tests the wildcard matcher and comparisons in IRCMask
+ *
+ * @author James
+ */
+public class IRCMaskTest
+{
+	private static boolean match(String data, String mask)
+	{
+		return IRCMask.wildcardCompare(data, mask, CaseMapping.RFC1459);
+	}
+
+	/**
+	 * Creates a string of repeated characters
+	 */
+	private static String repeat(char c, int count)
+	{
+		StringBuilder builder = new StringBuilder(count);
+
+		for(int i = 0; i < count; i++)
+		{
+			builder.append(c);
+		}
+
+		return builder.toString();
+	}
+
+	@Test
+	public void testLiteral()
+	{
+		assertTrue(match("nick!user@host", "nick!user@host"));
+		assertFalse(match("nick!user@host", "nick!user@hos"));
+		assertFalse(match("nick!user@hos", "nick!user@host"));
+		assertTrue(match("", ""));
+		assertFalse(match("a", ""));
+	}
+
+	@Test
+	public void testQuestionMark()
+	{
+		assertTrue(match("abc", "a?c"));
+		assertTrue(match("abc", "???"));
+		assertFalse(match("abc", "??"));
+		assertFalse(match("abc", "????"));
+		assertFalse(match("", "?"));
+	}
+
+	@Test
+	public void testTrailingStar()
+	{
+		assertTrue(match("nick!user@host", "nick!*"));
+		assertTrue(match("nick!", "nick!*"));
+		assertTrue(match("nick!", "nick!***"));
+		assertTrue(match("", "*"));
+		assertFalse(match("nic", "nick*"));
+	}
+
+	@Test
+	public void testStars()
+	{
+		assertTrue(match("nick!user@host.example.com", "*!*@*.example.com"));
+		assertFalse(match("nick!user@host.example.org", "*!*@*.example.com"));
+		assertTrue(match("abcbcd", "a*bcd"));
+		assertTrue(match("aXbXc", "*b*c"));
+		assertFalse(match("aXbXd", "*b*c"));
+	}
+
+	@Test
+	public void testEscapes()
+	{
+		//Escaped wildcards only match themselves
+		assertTrue(match("a*b", "a\\*b"));
+		assertFalse(match("axb", "a\\*b"));
+		assertTrue(match("a?b", "a\\?b"));
+		assertFalse(match("axb", "a\\?b"));
+
+		//Escaped backslash
+		assertTrue(match("a\\b", "a\\\\b"));
+
+		//A backslash at the end of the mask is literal
+		assertTrue(match("a\\", "a\\"));
+		assertFalse(match("a", "a\\"));
+
+		//Escapes after a star
+		assertTrue(match("xx*", "*\\*"));
+		assertFalse(match("xxx", "*\\*"));
+	}
+
+	@Test
+	public void testRfc1459Folding()
+	{
+		assertTrue(match("NICK[A]", "nick{a}"));
+		assertTrue(match("a~b", "A^B"));
+		assertTrue(match("a|b", "A\\\\B"));
+		assertTrue(match("{}|^", "[]\\\\~"));
+
+		//The ASCII casemapping only folds letters
+		assertTrue(IRCMask.wildcardCompare("NICK", "nick", CaseMapping.ASCII));
+		assertFalse(IRCMask.wildcardCompare("nick[a]", "nick{a}", CaseMapping.ASCII));
+
+		//Strict RFC1459 does not fold ~
+		assertTrue(IRCMask.wildcardCompare("[]\\", "{}|", CaseMapping.STRICT_RFC1459));
+		assertFalse(IRCMask.wildcardCompare("~", "^", CaseMapping.STRICT_RFC1459));
+	}
+
+	/**
+	 * Creates a mask from its parts
+	 */
+	private static IRCMask mask(String nick, String user, String host)
+	{
+		IRCMask mask = new IRCMask();
+		mask.nick = nick;
+		mask.user = user;
+		mask.host = host;
+		return mask;
+	}
+
+	@Test
+	public void testCompareMatchesEquals()
+	{
+		//The default casemapping (rfc1459) is used when no server is running
+		IRCMask a = mask("Nick[]", "User\\", "host~");
+		IRCMask b = mask("nick{}", "user|", "HOST^");
+
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertEquals(0, a.compareTo(b));
+		assertEquals(0, b.compareTo(a));
+
+		//Ordering uses the folded characters
+		IRCMask c = mask("nick", "user", "a");
+		IRCMask d = mask("nick", "user", "B");
+
+		assertTrue(c.compareTo(d) < 0);
+		assertTrue(d.compareTo(c) > 0);
+		assertTrue(mask("a", "u", "h").compareTo(mask("ab", "u", "h")) < 0);
+		assertTrue(mask("[", "u", "h").compareTo(mask("z", "u", "h")) > 0);
+	}
+
+	@Test(timeout = 2000)
+	public void testPathologicalMasks()
+	{
+		//The recursive matcher takes exponential time on these
+		String data = repeat('a', 5000);
+
+		assertFalse(match(data, "*a*a*a*a*b"));
+		assertFalse(match(data, "*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*b"));
+		assertTrue(match(data, "*a*a*a*a*a"));
+		assertFalse(match(data + "c", repeat('*', 100) + "a*?b"));
+
+		for(int i = 0; i < 1000; i++)
+		{
+			assertFalse(match("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "*a*a*a*a*a*a*a*a*a*a*b"));
+		}
+	}
+
+	@Test
+	public void testAgainstRecursive()
+	{
+		final String alphabet = "aAb[{~^\\*?";
+		Random random = new Random(1);
+
+		for(CaseMapping mapping : CaseMapping.values())
+		{
+			for(int i = 0; i < 200000; i++)
+			{
+				String data = randomString(random, alphabet, random.nextInt(8));
+				String mask = randomString(random, alphabet, random.nextInt(8));
+
+				assertEquals(mapping + " data=" + data + " mask=" + mask,
+						RecursiveWildcard.matches(data, mask, mapping),
+						IRCMask.wildcardCompare(data, mask, mapping));
+			}
+		}
+	}
+
+	/**
+	 * Creates a random string from the given characters
+	 */
+	private static String randomString(Random random, String alphabet, int length)
+	{
+		char[] chars = new char[length];
+
+		for(int i = 0; i < length; i++)
+		{
+			chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		}
+
+		return new String(chars);
+	}
+}
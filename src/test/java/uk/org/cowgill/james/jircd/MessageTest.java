@@ -0,0 +1,341 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the UTF-8 encoder and the lazy parser in Message
+ *
+ * @author James
+ */
+public class MessageTest
+{
+	private static final Charset utf8Charset = Charset.forName("UTF-8");
+
+	/**
+	 * Strings used to build random parameters (1, 2, 3 and 4 byte characters and lone surrogates)
+	 */
+	private static final String[] PARAM_PARTS =
+		{ "a", "Z", " ", "\u00e9", "\u00ff", "\u6f22", "\uffe5", "\ud83d\ude00", "\ud800", "\udc00" };
+
+	/**
+	 * Encodes a string with String.getBytes and truncates it like Message.encode
+	 *
+	 * <p>The line is cut before the first character which does not fit in 510 bytes, then CRLF is added.
+	 */
+	private static byte[] expectedEncoding(String line)
+	{
+		byte[] out = new byte[Message.MAX_LENGTH];
+		int pos = 0;
+
+		for(int i = 0; i < line.length(); )
+		{
+			//Encode one code point (or a lone surrogate)
+			int next = i + 1;
+			if(Character.isHighSurrogate(line.charAt(i)) && next < line.length() &&
+					Character.isLowSurrogate(line.charAt(next)))
+			{
+				next++;
+			}
+
+			byte[] encoded = line.substring(i, next).getBytes(utf8Charset);
+			if(pos + encoded.length > Message.MAX_LENGTH - 2)
+			{
+				break;
+			}
+
+			System.arraycopy(encoded, 0, out, pos, encoded.length);
+			pos += encoded.length;
+			i = next;
+		}
+
+		out[pos++] = '\r';
+		out[pos++] = '\n';
+		return Arrays.copyOf(out, pos);
+	}
+
+	/**
+	 * Encodes a message with Message.encode
+	 */
+	private static byte[] encode(Object data)
+	{
+		byte[] out = new byte[Message.MAX_LENGTH];
+		int length = Message.encode(data, out);
+		return Arrays.copyOf(out, length);
+	}
+
+	/**
+	 * Checks a message encodes the same as its string form
+	 */
+	private static void assertEncodes(Message msg)
+	{
+		assertArrayEquals(msg.toString(), expectedEncoding(msg.toString()), encode(msg));
+	}
+
+	/**
+	 * Creates a string of repeated characters
+	 */
+	private static String repeat(String str, int count)
+	{
+		StringBuilder builder = new StringBuilder(str.length() * count);
+
+		for(int i = 0; i < count; i++)
+		{
+			builder.append(str);
+		}
+
+		return builder.toString();
+	}
+
+	@Test
+	public void testEncodeSimple()
+	{
+		assertEncodes(new Message("PING"));
+		assertEncodes(new Message("PRIVMSG", "nick!user@host").appendParam("#channel").appendParam("hello"));
+		assertEncodes(new Message("PRIVMSG", "nick!user@host").appendParam("#channel").appendParam("hello world"));
+		assertEncodes(new Message("NOTICE", "server").appendParam("*").appendParam("caf\u00e9 \u6f22\u5b57 \ud83d\ude00"));
+
+		assertArrayEquals("PING :x y\r\n".getBytes(utf8Charset), encode("PING :x y"));
+	}
+
+	@Test
+	public void testEncodeLoneSurrogates()
+	{
+		//Unpaired surrogates become '?' (like String.getBytes)
+		assertEncodes(new Message("PRIVMSG").appendParam("#a").appendParam("x\ud800y"));
+		assertEncodes(new Message("PRIVMSG").appendParam("#a").appendParam("x\udc00y"));
+		assertEncodes(new Message("PRIVMSG").appendParam("#a").appendParam("\udc00\ud800"));
+		assertEncodes(new Message("PRIVMSG").appendParam("#a").appendParam("end\ud800"));
+		assertEncodes(new Message("PRIVMSG", "pre\ud800fix").appendParam("#a"));
+
+		assertArrayEquals("a?b\r\n".getBytes(utf8Charset), encode("a\ud800b"));
+	}
+
+	@Test
+	public void testEncodeTruncation()
+	{
+		//Fill the line with each character width at every offset around the limit
+		String[] fillers = { "a", "\u00e9", "\u6f22", "\ud83d\ude00", "\ud800" };
+
+		for(String filler : fillers)
+		{
+			for(int padding = 0; padding < 4; padding++)
+			{
+				Message msg = new Message("PRIVMSG", "nick!user@host").appendParam("#a")
+						.appendParam(repeat("b", padding) + repeat(filler, 600));
+
+				byte[] encoded = encode(msg);
+				assertArrayEquals(expectedEncoding(msg.toString()), encoded);
+				assertEquals('\n', encoded[encoded.length - 1]);
+
+				//Less than one character of space is left unused
+				int width = filler.getBytes(utf8Charset).length;
+				assertTrue(encoded.length > Message.MAX_LENGTH - width);
+
+				assertArrayEquals(expectedEncoding(msg.toString()), encode(msg.toString()));
+			}
+		}
+
+		//Long prefixes, commands and middle parameters
+		assertEncodes(new Message("PRIVMSG", repeat("\u00e9", 300)).appendParam("#a"));
+		assertEncodes(new Message(repeat("C", 600)));
+		assertEncodes(new Message("PRIVMSG").appendParam(repeat("\u6f22", 200)).appendParam("x y"));
+
+		//Line ends exactly at the space before a parameter or the trailing ':'
+		assertEncodes(new Message(repeat("C", 510)).appendParam("x"));
+		assertEncodes(new Message(repeat("C", 509)).appendParam("x y"));
+		assertEncodes(new Message(repeat("C", 508)).appendParam("x y"));
+	}
+
+	@Test
+	public void testEncodeRandomized()
+	{
+		Random random = new Random(12345);
+
+		for(int iteration = 0; iteration < 2000; iteration++)
+		{
+			Message msg = new Message("PRIVMSG", iteration % 2 == 0 ? "nick!user@host" : null);
+			int params = 1 + random.nextInt(4);
+
+			for(int i = 0; i < params; i++)
+			{
+				StringBuilder param = new StringBuilder();
+				int parts = 1 + random.nextInt(i == params - 1 ? 300 : 50);
+
+				for(int j = 0; j < parts; j++)
+				{
+					param.append(PARAM_PARTS[random.nextInt(PARAM_PARTS.length)]);
+				}
+
+				//Only the last parameter can contain spaces
+				String str = param.toString();
+				if(i != params - 1)
+				{
+					str = str.replace(' ', '_');
+				}
+
+				msg.appendParam(str);
+			}
+
+			assertEncodes(msg);
+
+			//Parsed messages are encoded straight from their source line
+			String line = msg.toString();
+			Message parsed = Message.parse(line);
+			byte[] encoded = encode(parsed);
+			assertArrayEquals(line, expectedEncoding(parsed.toString()), encoded);
+
+			assertEquals(line.getBytes(utf8Charset).length, Message.encodedLength(line));
+		}
+	}
+
+	@Test
+	public void testParseSimple()
+	{
+		Message msg = Message.parse(":nick!user@host privmsg #channel :hello world");
+		assertEquals("nick!user@host", msg.getPrefix());
+		assertEquals("PRIVMSG", msg.getCommand());
+		assertEquals(2, msg.paramCount());
+		assertEquals("#channel", msg.getParam(0));
+		assertEquals("hello world", msg.getParam(1));
+
+		msg = Message.parse("PING");
+		assertEquals("", msg.getPrefix());
+		assertEquals("PING", msg.getCommand());
+		assertEquals(0, msg.paramCount());
+
+		//Surrounding whitespace and repeated spaces are ignored
+		msg = Message.parse("  \tMODE   #a   +o    nick \r\n");
+		assertEquals("MODE", msg.getCommand());
+		assertEquals(Arrays.asList("#a", "+o", "nick"), msg.getParamList());
+	}
+
+	@Test
+	public void testParsePrefixOnly()
+	{
+		//Lines with nothing after the prefix are invalid (blank command)
+		String[] lines = { ":prefix", ":prefix   ", "  :prefix", ":", "", "   " };
+
+		for(String line : lines)
+		{
+			Message msg = Message.parse(line);
+			assertEquals(line, "", msg.getCommand());
+			assertEquals(line, 0, msg.paramCount());
+		}
+
+		Message msg = Message.parse(":prefix CMD");
+		assertEquals("prefix", msg.getPrefix());
+		assertEquals("CMD", msg.getCommand());
+		assertEquals(0, msg.paramCount());
+	}
+
+	@Test
+	public void testParseTrailing()
+	{
+		//The trailing parameter keeps its spaces and colons
+		Message msg = Message.parse("PRIVMSG #a :  spaced : out");
+		assertEquals(Arrays.asList("#a", "  spaced : out"), msg.getParamList());
+
+		msg = Message.parse("PRIVMSG #a ::colon");
+		assertEquals(Arrays.asList("#a", ":colon"), msg.getParamList());
+
+		msg = Message.parse("PRIVMSG #a b:c");
+		assertEquals(Arrays.asList("#a", "b:c"), msg.getParamList());
+
+		//Empty trailing parameters are ignored (like appendParam)
+		msg = Message.parse("PRIVMSG #a :");
+		assertEquals(Arrays.asList("#a"), msg.getParamList());
+
+		//Trailing whitespace is trimmed from the line first
+		msg = Message.parse("PRIVMSG #a :hi  ");
+		assertEquals("hi", msg.getParam(1));
+
+		msg = Message.parse("QUIT :");
+		assertEquals(0, msg.paramCount());
+	}
+
+	@Test
+	public void testParseManyParams()
+	{
+		//More parameters than the initial bounds array holds (there is no 15 parameter limit)
+		StringBuilder line = new StringBuilder("CMD");
+
+		for(int i = 0; i < 20; i++)
+		{
+			line.append(' ').append("p").append(i);
+		}
+
+		line.append(" :last one");
+
+		Message msg = Message.parse(line.toString());
+		assertEquals(21, msg.paramCount());
+
+		//Read the parameters out of order so some are extracted lazily
+		assertEquals("last one", msg.getParam(20));
+		assertEquals("p15", msg.getParam(15));
+
+		for(int i = 0; i < 20; i++)
+		{
+			assertEquals("p" + i, msg.getParam(i));
+		}
+
+		assertEquals(line.toString(), msg.toString());
+	}
+
+	@Test
+	public void testParseLazyThenModify()
+	{
+		Message msg = Message.parse(":src CMD a b :c d");
+		assertEquals("b", msg.getParam(1));
+
+		//Appending moves the parameters into a list
+		msg.appendParam("e");
+		assertEquals(Arrays.asList("a", "b", "c d", "e"), msg.getParamList());
+
+		//Messages copied from parsed messages have their own parameters
+		Message parsed = Message.parse("CMD x :y z");
+		Message copy = new Message(parsed);
+		copy.appendParam("w");
+		assertEquals(2, parsed.paramCount());
+		assertEquals(3, copy.paramCount());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testParseBadIndex()
+	{
+		Message.parse("CMD a b").getParam(2);
+	}
+
+	@Test
+	public void testEncodedLength()
+	{
+		String[] strings = { "", "abc", "caf\u00e9", "\u6f22\u5b57", "\ud83d\ude00", "a\ud800b", "\udc00", "\ud800" };
+
+		for(String str : strings)
+		{
+			assertEquals(str, str.getBytes(utf8Charset).length, Message.encodedLength(str));
+		}
+	}
+}
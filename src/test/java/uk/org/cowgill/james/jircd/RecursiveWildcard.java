@@ -0,0 +1,126 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd;
+
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+
+/**
+ * The original recursive wildcard matcher, kept to check the iterative one against
+ *
+ * <p>This takes exponential time on masks with many *s so it must only be given short masks
+ *
+ * @author James
+ */
+public final class RecursiveWildcard
+{
+	private RecursiveWildcard()
+	{
+	}
+
+	/**
+	 * Performs a wildcard comparison between data and a mask
+	 *
+	 * @param data The data to be checked
+	 * @param mask The mask to check against
+	 * @param mapping The casemapping used to compare characters
+	 * @return True if the data matches the mask
+	 */
+	public static boolean matches(String data, String mask, CaseMapping mapping)
+	{
+		return matches(data, mask, 0, 0, mapping);
+	}
+
+	private static boolean matches(String data, String mask, int strPos, int wildPos, CaseMapping mapping)
+	{
+		char c;
+
+		for (; wildPos < mask.length(); )
+		{
+			c = mask.charAt(wildPos++);		//Increases wildPos as well
+
+			switch (c)
+			{
+				case '?':
+					if (strPos == data.length())
+					{
+						return false;
+					}
+
+					++strPos;
+					break;
+
+				case '*':
+					if (wildPos == mask.length())
+					{
+						//If * is the last character, accept rest of string
+						return true;
+					}
+
+					//Collapse *s
+					while (mask.charAt(wildPos) == '*')
+					{
+						//Increase for next part of loop
+						++wildPos;
+
+						if (wildPos == mask.length())
+						{
+							//If * is the last character, accept rest of string
+							return true;
+						}
+					}
+
+					//wildPos now points to the character after the *s
+
+					while (strPos < data.length())
+					{
+						if (matches(data, mask, strPos, wildPos, mapping))
+						{
+							return true;
+						}
+
+						++strPos;
+					}
+
+					//End of string
+					return false;
+
+				case '\\':
+					if (wildPos != mask.length())
+					{
+						//Skip the \ character, fallthough to
+						// treating the next character as normal (whatever it is)
+						c = mask.charAt(wildPos);
+						++wildPos;
+					}
+
+					//Otherwise c = the \ character
+
+				default:
+					if (strPos == data.length() ||
+							mapping.toLower(c) != mapping.toLower(data.charAt(strPos)))
+					{
+						return false;
+					}
+
+					++strPos;
+					break;
+			}
+		}
+
+		//End of wild string reached
+		return strPos == data.length();
+	}
+}
@@ -0,0 +1,101 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.org.cowgill.james.jircd.EncodedMessage;
+import uk.org.cowgill.james.jircd.Message;
+
+/**
+ * Compares sending one message to many clients by encoding it for every recipient
+ *  (the old NetworkClient.send path) with encoding it once (Client.sendTo)
+ *
+ * <p>Run with: java -cp target/test-classes:target/classes:(test classpath) org.openjdk.jmh.Main FanOut
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark
+{
+	private static final ByteBuffer CRLF = ByteBuffer.wrap(new byte[] { '\r', '\n' }).asReadOnlyBuffer();
+
+	@Param({ "1", "100", "5000" })
+	public int recipients;
+
+	private Message message;
+	private CharsetEncoder encoder;
+
+	@Setup
+	public void setup()
+	{
+		message = new Message("PRIVMSG", "nick!user@host.example.com").
+				appendParam("#channel").
+				appendParam("hello everyone, this is a fairly typical line of chat text");
+
+		encoder = Charset.forName("UTF-8").newEncoder();
+	}
+
+	/**
+	 * Converts and encodes the message separately for every recipient
+	 */
+	@Benchmark
+	public void encodePerRecipient(Blackhole hole) throws CharacterCodingException
+	{
+		for(int i = 0; i < recipients; i++)
+		{
+			hole.consume(encoder.encode(CharBuffer.wrap(message.toString())));
+			hole.consume(CRLF.duplicate());
+		}
+	}
+
+	/**
+	 * Encodes the message once and gives every recipient a view of the same data
+	 */
+	@Benchmark
+	public void encodeOnce(Blackhole hole)
+	{
+		EncodedMessage encoded = new EncodedMessage(message);
+
+		for(int i = 0; i < recipients; i++)
+		{
+			hole.consume(encoded.getBuffer());
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.cowgill.james.jircd.Message;
+
+/**
+ * Compares encoding a message with toString and a CharsetEncoder (the old NetworkClient.send path)
+ *  with writing it straight into a byte array (Message.encode)
+ *
+ * <p>Run with: java -cp target/test-classes:target/classes:(test classpath) org.openjdk.jmh.Main MessageEncode
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncodeBenchmark
+{
+	private static final ByteBuffer CRLF = ByteBuffer.wrap(new byte[] { '\r', '\n' }).asReadOnlyBuffer();
+
+	/**
+	 * Text of the trailing parameter
+	 */
+	@Param({ "ascii", "latin", "cjk", "long" })
+	public String text;
+
+	private Message message;
+	private CharsetEncoder encoder;
+	private byte[] out;
+
+	@Setup
+	public void setup()
+	{
+		String trailing;
+
+		if(text.equals("ascii"))
+		{
+			trailing = "hello everyone, this is a fairly typical line of chat text";
+		}
+		else if(text.equals("latin"))
+		{
+			trailing = "h\u00E9llo \u00E9veryone, \u00E7a va? voil\u00E0 une ligne de texte tr\u00E8s normale";
+		}
+		else if(text.equals("cjk"))
+		{
+			trailing = "\u4F60\u597D\uFF0C\u8FD9\u662F\u4E00\u884C\u666E\u901A\u7684\u804A\u5929\u6587\u5B57 \uD83D\uDE00";
+		}
+		else
+		{
+			//Truncated to 512 bytes
+			StringBuilder builder = new StringBuilder();
+
+			while(builder.length() < 1000)
+			{
+				builder.append("a long line which is truncated ");
+			}
+
+			trailing = builder.toString();
+		}
+
+		message = new Message("PRIVMSG", "nick!user@host.example.com").
+				appendParam("#channel").
+				appendParam(trailing);
+
+		encoder = Charset.forName("UTF-8").newEncoder();
+		out = new byte[Message.MAX_LENGTH];
+	}
+
+	/**
+	 * Converts the message to a string and encodes it with a CharsetEncoder
+	 */
+	@Benchmark
+	public ByteBuffer toStringAndEncoder() throws CharacterCodingException
+	{
+		ByteBuffer encoded = encoder.encode(CharBuffer.wrap(message.toString()));
+		ByteBuffer line = ByteBuffer.allocate(encoded.remaining() + 2);
+
+		line.put(encoded);
+		line.put(CRLF.duplicate());
+		line.flip();
+		return line;
+	}
+
+	/**
+	 * Writes the message straight into a byte array
+	 */
+	@Benchmark
+	public int encode()
+	{
+		return message.encode(out);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.cowgill.james.jircd.IRCMask;
+import uk.org.cowgill.james.jircd.RecursiveWildcard;
+import uk.org.cowgill.james.jircd.util.CaseMapping;
+
+/**
+ * Compares the iterative wildcard matcher with the original recursive one
+ *  (which lower cased both strings before every comparison)
+ *
+ * <p>Run with: java -cp target/test-classes:target/classes:(test classpath) org.openjdk.jmh.Main Wildcard
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WildcardBenchmark
+{
+	/**
+	 * Data and mask pairs (separated by a space)
+	 */
+	@Param({
+		"Nick!User@host.example.com *!*@*.example.com",
+		"Nick!User@host.example.com *!*@*.example.org",
+		"aaaaaaaaaaaaaaaaaaaaaaaa *a*a*a*a*b",
+	})
+	public String input;
+
+	private String data;
+	private String mask;
+
+	@Setup
+	public void setup()
+	{
+		int space = input.indexOf(' ');
+
+		data = input.substring(0, space);
+		mask = input.substring(space + 1);
+	}
+
+	@Benchmark
+	public boolean recursive()
+	{
+		return RecursiveWildcard.matches(data.toLowerCase(), mask.toLowerCase(), CaseMapping.ASCII);
+	}
+
+	@Benchmark
+	public boolean iterative()
+	{
+		return IRCMask.wildcardCompare(data, mask, CaseMapping.RFC1459);
+	}
+}
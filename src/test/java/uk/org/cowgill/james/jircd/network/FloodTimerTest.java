@@ -0,0 +1,395 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.org.cowgill.james.jircd.Config;
+import uk.org.cowgill.james.jircd.ConnectionClass;
+import uk.org.cowgill.james.jircd.Message;
+import uk.org.cowgill.james.jircd.Server;
+
+/**
+ * Tests the flood limiter token bucket
+ *
+ * @author James
+ */
+public class FloodTimerTest
+{
+	private static final long START = 1000000000L;
+
+	private static final Message PRIVMSG = new Message("PRIVMSG").appendParam("#a").appendParam("hello");
+
+	/**
+	 * Client which records when it is woken from the flood queue
+	 */
+	private static class FloodClient extends NetworkClient
+	{
+		final SocketChannel socket;
+		final FloodTimer timer = new FloodTimer(this);
+		int wakeCount;
+
+		FloodClient(SocketChannel socket, ConnectionClass clazz)
+		{
+			super(socket, 0);
+			this.socket = socket;
+
+			assertTrue(changeClass(clazz, true));
+		}
+
+		@Override
+		void floodQueueEvent()
+		{
+			wakeCount++;
+		}
+	}
+
+	/**
+	 * Body of a test which is run inside a server
+	 */
+	private interface ServerTest
+	{
+		void run(Config config) throws Exception;
+	}
+
+	/**
+	 * Server which runs a test instead of a network loop
+	 */
+	private static class TestServer extends Server
+	{
+		private final ServerTest test;
+		boolean started;
+		Throwable error;
+
+		TestServer(File configFile, ServerTest test)
+		{
+			super(configFile);
+			this.test = test;
+		}
+
+		@Override
+		protected void rehashed()
+		{
+		}
+
+		@Override
+		protected void runServer()
+		{
+			started = true;
+
+			try
+			{
+				assertEquals(0, FloodTimer.getThrottledCount());
+				test.run(getConfig());
+			}
+			catch(Throwable e)
+			{
+				error = e;
+			}
+			finally
+			{
+				//Empty the (static) flood queue for the next test
+				FloodTimer.processFloodQueue(Long.MAX_VALUE);
+			}
+		}
+	}
+
+	/**
+	 * Runs a test in a server with the given extra config
+	 */
+	private static void runTest(String extraConfig, ServerTest test) throws Exception
+	{
+		File file = File.createTempFile("jircd", ".conf");
+		file.deleteOnExit();
+
+		FileWriter writer = new FileWriter(file);
+
+		try
+		{
+			writer.write("name test;\n");
+			writer.write("description \"Flood Test\";\n");
+			writer.write("listen 6667;\n");
+			writer.write("class clients { readq 2048; sendq 16000; maxlinks 100; pingfreq 90; }\n");
+			writer.write("class tight { readq 2048; sendq 16000; maxlinks 100; pingfreq 90; " +
+					"floodburst 2; floodrefill 500; }\n");
+			writer.write("accept { ip *; class clients; }\n");
+			writer.write(extraConfig);
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		TestServer server = new TestServer(file, test);
+		server.run();
+		assertTrue("server did not start", server.started);
+
+		if(server.error != null)
+		{
+			throw new AssertionError(server.error);
+		}
+	}
+
+	/**
+	 * Creates a client in the given class
+	 */
+	private static FloodClient newClient(Config config, String className) throws IOException
+	{
+		return new FloodClient(SocketChannel.open(), config.classes.get(className));
+	}
+
+	/**
+	 * Processes as many messages as the flood limit allows at the given time
+	 *
+	 * @return number of messages processed
+	 */
+	private static int processAll(FloodTimer timer, long now)
+	{
+		int count = 0;
+
+		while(timer.checkTimer(now))
+		{
+			timer.processMessage(PRIVMSG, now);
+			count++;
+
+			assertTrue("flood limit not applied", count < 1000);
+		}
+
+		return count;
+	}
+
+	/**
+	 * The flood timer used before the token bucket (10 second window with a 2 second penalty)
+	 */
+	private static class OldFloodTimer
+	{
+		long timer;
+
+		int processAll(long now)
+		{
+			int count = 0;
+
+			while(timer < now + 10000)
+			{
+				if(timer < now)
+				{
+					timer = now;
+				}
+
+				timer += 2000;
+				count++;
+			}
+
+			return count;
+		}
+	}
+
+	@Test
+	public void testDefaultsMatchOldWindow() throws Exception
+	{
+		runTest("", new ServerTest()
+			{
+				@Override
+				public void run(Config config) throws Exception
+				{
+					FloodClient client = newClient(config, "clients");
+					ConnectionClass clazz = client.getConnectionClass();
+					assertEquals(5, clazz.floodBurst);
+					assertEquals(2000, clazz.floodRefill);
+
+					//Burst of 5 messages, then the first token is back 1ms later
+					assertEquals(5, processAll(client.timer, START));
+					assertEquals(1, processAll(client.timer, START + 1));
+					assertEquals(0, processAll(client.timer, START + 2000));
+					assertEquals(1, processAll(client.timer, START + 2001));
+
+					//Both timers allow the same messages at any time
+					Random random = new Random(987);
+					OldFloodTimer oldTimer = new OldFloodTimer();
+					FloodClient other = newClient(config, "clients");
+					long now = START;
+
+					oldTimer.processAll(now);
+					processAll(other.timer, now);
+
+					for(int i = 0; i < 5000; i++)
+					{
+						now += random.nextInt(i % 100 == 0 ? 20000 : 2500);
+						FloodTimer.processFloodQueue(now);
+
+						assertEquals("at " + (now - START), oldTimer.processAll(now),
+								processAll(other.timer, now));
+					}
+
+					client.socket.close();
+					other.socket.close();
+				}
+			});
+	}
+
+	@Test
+	public void testFreeCommands() throws Exception
+	{
+		runTest("floodcost { privmsg 2; }\n", new ServerTest()
+			{
+				@Override
+				public void run(Config config) throws Exception
+				{
+					FloodClient client = newClient(config, "clients");
+
+					//PING is free by default and PRIVMSG costs 2 tokens
+					for(int i = 0; i < 100; i++)
+					{
+						assertTrue(client.timer.checkTimer(START));
+						client.timer.processMessage(new Message("PING"), START);
+					}
+
+					assertEquals(3, processAll(client.timer, START));
+
+					client.socket.close();
+				}
+			});
+	}
+
+	@Test
+	public void testFanOut() throws Exception
+	{
+		runTest("floodcost { fanout 10; }\n", new ServerTest()
+			{
+				@Override
+				public void run(Config config) throws Exception
+				{
+					assertEquals(10, config.floodFanOut);
+
+					//Less than one fanout of recipients is free
+					FloodClient client = newClient(config, "clients");
+					client.timer.chargeFanOut(9, START);
+					assertEquals(5, processAll(client.timer, START));
+
+					//25 recipients costs 2 tokens
+					FloodClient client2 = newClient(config, "clients");
+					client2.timer.chargeFanOut(25, START);
+					assertEquals(3, processAll(client2.timer, START));
+
+					//Wake the first two clients (both are a token away)
+					FloodTimer.processFloodQueue(START + 1);
+					assertEquals(1, client.wakeCount);
+					assertEquals(1, client2.wakeCount);
+					assertEquals(0, FloodTimer.getThrottledCount());
+
+					//A large channel takes longer than a full bucket to refill
+					FloodClient client3 = newClient(config, "clients");
+					client3.timer.chargeFanOut(100, START);
+					assertFalse(client3.timer.checkTimer(START));
+					assertEquals(START + 10001, FloodTimer.nextWakeTime());
+					assertFalse(client3.timer.checkTimer(START + 10000));
+					assertTrue(client3.timer.checkTimer(START + 10001));
+
+					client.socket.close();
+					client2.socket.close();
+					client3.socket.close();
+				}
+			});
+	}
+
+	@Test
+	public void testFanOutDisabled() throws Exception
+	{
+		runTest("", new ServerTest()
+			{
+				@Override
+				public void run(Config config) throws Exception
+				{
+					assertEquals(0, config.floodFanOut);
+
+					FloodClient client = newClient(config, "clients");
+					client.timer.chargeFanOut(100000, START);
+					assertEquals(5, processAll(client.timer, START));
+
+					client.socket.close();
+				}
+			});
+	}
+
+	@Test
+	public void testWakeTime() throws Exception
+	{
+		runTest("", new ServerTest()
+			{
+				@Override
+				public void run(Config config) throws Exception
+				{
+					assertEquals(Long.MAX_VALUE, FloodTimer.nextWakeTime());
+
+					//Throttle clients in two classes at different times
+					FloodClient slow = newClient(config, "clients");
+					FloodClient fast = newClient(config, "tight");
+
+					assertEquals(5, processAll(slow.timer, START));
+					assertEquals(2, processAll(fast.timer, START + 100));
+					assertEquals(2, FloodTimer.getThrottledCount());
+
+					//Tight class bucket is empty until 1 refill after it was last charged
+					long slowWake = START + 1;
+					long fastWake = START + 100 + 1;
+					assertEquals(slowWake, FloodTimer.nextWakeTime());
+
+					//Checking again while queued does not queue twice
+					assertFalse(slow.timer.checkTimer(START));
+					assertEquals(2, FloodTimer.getThrottledCount());
+
+					//Nothing is woken early
+					FloodTimer.processFloodQueue(slowWake - 1);
+					assertEquals(0, slow.wakeCount);
+					assertFalse(slow.timer.checkTimer(slowWake - 1));
+
+					//Each client is woken exactly when it can send again
+					FloodTimer.processFloodQueue(slowWake);
+					assertEquals(1, slow.wakeCount);
+					assertEquals(0, fast.wakeCount);
+					assertTrue(slow.timer.checkTimer(slowWake));
+					assertEquals(fastWake, FloodTimer.nextWakeTime());
+
+					assertFalse(fast.timer.checkTimer(fastWake - 1));
+					FloodTimer.processFloodQueue(fastWake);
+					assertEquals(1, fast.wakeCount);
+					assertTrue(fast.timer.checkTimer(fastWake));
+
+					assertEquals(Long.MAX_VALUE, FloodTimer.nextWakeTime());
+					assertEquals(0, FloodTimer.getThrottledCount());
+
+					//After sending one more message the next token is a full refill away
+					fast.timer.processMessage(PRIVMSG, fastWake);
+					assertFalse(fast.timer.checkTimer(fastWake));
+					assertEquals(fastWake + 500, FloodTimer.nextWakeTime());
+					assertTrue(fast.timer.checkTimer(fastWake + 500));
+
+					slow.socket.close();
+					fast.socket.close();
+				}
+			});
+	}
+}
@@ -0,0 +1,335 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.cowgill.james.jircd.Config;
+
+/**
+ * Tests the host resolver using a stub lookup
+ *
+ * @author James
+ */
+public class HostResolverTest
+{
+	/**
+	 * Lookup which uses fixed results and counts the lookups of each address
+	 */
+	private static class StubLookup implements HostLookup
+	{
+		final Map<InetAddress, String> hosts = new HashMap<InetAddress, String>();
+		final Map<String, InetAddress[]> addresses = new HashMap<String, InetAddress[]>();
+		final ConcurrentHashMap<InetAddress, AtomicInteger> lookups =
+				new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+		/**
+		 * Reverse lookups wait until this is released
+		 */
+		final CountDownLatch release = new CountDownLatch(1);
+
+		StubLookup(boolean block)
+		{
+			if(!block)
+			{
+				release.countDown();
+			}
+		}
+
+		@Override
+		public String reverseLookup(InetAddress address)
+		{
+			lookups.putIfAbsent(address, new AtomicInteger());
+			lookups.get(address).incrementAndGet();
+
+			try
+			{
+				release.await();
+			}
+			catch(InterruptedException e)
+			{
+				return null;
+			}
+
+			return hosts.get(address);
+		}
+
+		@Override
+		public InetAddress[] forwardLookup(String host) throws UnknownHostException
+		{
+			InetAddress[] result = addresses.get(host);
+
+			if(result == null)
+			{
+				throw new UnknownHostException(host);
+			}
+
+			return result;
+		}
+
+		int lookupCount(InetAddress address)
+		{
+			AtomicInteger count = lookups.get(address);
+			return count == null ? 0 : count.get();
+		}
+	}
+
+	private static final InetAddress ADDRESS_A = address(1);
+	private static final InetAddress ADDRESS_B = address(2);
+
+	private Selector selector;
+	private Config config;
+	private HostResolver resolver;
+
+	private static InetAddress address(int last)
+	{
+		try
+		{
+			return InetAddress.getByAddress(new byte[] { (byte) 192, 0, 2, (byte) last });
+		}
+		catch(UnknownHostException e)
+		{
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		selector = Selector.open();
+		config = new Config();
+		config.resolverTimeout = 1;
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		if(resolver != null)
+		{
+			resolver.shutdown();
+		}
+
+		selector.close();
+	}
+
+	private StubLookup createResolver(boolean block)
+	{
+		StubLookup lookup = new StubLookup(block);
+		lookup.hosts.put(ADDRESS_A, "a.example.com");
+		lookup.hosts.put(ADDRESS_B, "b.example.com");
+		lookup.addresses.put("a.example.com", new InetAddress[] { ADDRESS_A });
+		lookup.addresses.put("b.example.com", new InetAddress[] { ADDRESS_A });
+
+		resolver = new HostResolver(selector, config, lookup);
+		return lookup;
+	}
+
+	/**
+	 * Waits for the next finished request
+	 */
+	private HostResolverRequest next() throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+
+		while(System.currentTimeMillis() < end)
+		{
+			HostResolverRequest request = resolver.drainOneRequest();
+
+			if(request != null)
+			{
+				return request;
+			}
+
+			Thread.sleep(5);
+		}
+
+		return null;
+	}
+
+	@Test
+	public void testLookup() throws Exception
+	{
+		createResolver(false);
+
+		HostResolverRequest request = resolver.submitRequest(null, ADDRESS_A);
+		assertSame(request, next());
+		assertEquals("a.example.com", request.getHost());
+		assertNull(resolver.drainOneRequest());
+	}
+
+	@Test
+	public void testOneLookupPerAddress() throws Exception
+	{
+		StubLookup lookup = createResolver(true);
+		List<HostResolverRequest> requests = new ArrayList<HostResolverRequest>();
+
+		for(int i = 0; i < 100; i++)
+		{
+			requests.add(resolver.submitRequest(null, ADDRESS_A));
+		}
+
+		lookup.release.countDown();
+
+		for(HostResolverRequest request : requests)
+		{
+			assertSame(request, next());
+			assertEquals("a.example.com", request.getHost());
+		}
+
+		assertEquals(1, lookup.lookupCount(ADDRESS_A));
+	}
+
+	@Test
+	public void testCache() throws Exception
+	{
+		StubLookup lookup = createResolver(false);
+
+		resolver.submitRequest(null, ADDRESS_A);
+		next();
+
+		//Answered without another lookup
+		HostResolverRequest request = resolver.submitRequest(null, ADDRESS_A);
+		assertTrue(request.isHandled());
+		assertSame(request, resolver.drainOneRequest());
+		assertEquals("a.example.com", request.getHost());
+
+		assertEquals(1, lookup.lookupCount(ADDRESS_A));
+		assertEquals(1, resolver.getCacheHits());
+		assertEquals(1, resolver.getCacheMisses());
+	}
+
+	@Test
+	public void testNegativeCache() throws Exception
+	{
+		StubLookup lookup = createResolver(false);
+		lookup.hosts.remove(ADDRESS_A);
+
+		assertEquals("192.0.2.1", next(resolver.submitRequest(null, ADDRESS_A)));
+		assertEquals("192.0.2.1", next(resolver.submitRequest(null, ADDRESS_A)));
+		assertEquals(1, lookup.lookupCount(ADDRESS_A));
+	}
+
+	@Test
+	public void testCacheDisabled() throws Exception
+	{
+		config.resolverCacheSize = 0;
+		StubLookup lookup = createResolver(false);
+
+		assertEquals("a.example.com", next(resolver.submitRequest(null, ADDRESS_A)));
+		assertEquals("a.example.com", next(resolver.submitRequest(null, ADDRESS_A)));
+		assertEquals(2, lookup.lookupCount(ADDRESS_A));
+		assertEquals(0, resolver.getCacheMisses());
+	}
+
+	@Test
+	public void testForwardConfirm() throws Exception
+	{
+		config.resolverForwardConfirm = true;
+		createResolver(false);
+
+		//b.example.com resolves to address A so B fails confirmation
+		assertEquals("a.example.com", next(resolver.submitRequest(null, ADDRESS_A)));
+		assertEquals("192.0.2.2", next(resolver.submitRequest(null, ADDRESS_B)));
+	}
+
+	@Test
+	public void testTimeout() throws Exception
+	{
+		StubLookup lookup = createResolver(true);
+
+		//Times out with the ip address
+		HostResolverRequest request = resolver.submitRequest(null, ADDRESS_A);
+		assertNull(resolver.drainOneRequest());
+		assertSame(request, next());
+		assertEquals("192.0.2.1", request.getHost());
+
+		//Waits for the lookup which is still running
+		HostResolverRequest request2 = resolver.submitRequest(null, ADDRESS_A);
+		lookup.release.countDown();
+
+		assertSame(request2, next());
+		assertEquals("a.example.com", request2.getHost());
+		assertEquals(1, lookup.lookupCount(ADDRESS_A));
+		assertNull(resolver.drainOneRequest());
+	}
+
+	@Test
+	public void testTimeoutRemovesQueuedLookup() throws Exception
+	{
+		config.resolverThreads = 1;
+		StubLookup lookup = createResolver(true);
+
+		resolver.submitRequest(null, ADDRESS_A);
+		resolver.submitRequest(null, ADDRESS_B);
+
+		assertEquals("192.0.2.1", next().getHost());
+		assertEquals("192.0.2.2", next().getHost());
+
+		//The lookup of B never runs
+		lookup.release.countDown();
+		assertEquals("a.example.com", next(resolver.submitRequest(null, ADDRESS_A)));
+
+		assertEquals(0, lookup.lookupCount(ADDRESS_B));
+	}
+
+	@Test
+	public void testRejected() throws Exception
+	{
+		config.resolverThreads = 1;
+		config.resolverQueue = 0;
+		StubLookup lookup = createResolver(true);
+
+		HostResolverRequest request = resolver.submitRequest(null, ADDRESS_A);
+
+		//No room for a lookup of B
+		HostResolverRequest rejected = resolver.submitRequest(null, ADDRESS_B);
+		assertTrue(rejected.isHandled());
+		assertEquals("192.0.2.2", rejected.getHost());
+		assertSame(rejected, resolver.drainOneRequest());
+
+		lookup.release.countDown();
+		assertSame(request, next());
+		assertEquals("a.example.com", request.getHost());
+		assertEquals(0, lookup.lookupCount(ADDRESS_B));
+	}
+
+	/**
+	 * Waits for a request to be returned and gets its host
+	 */
+	private String next(HostResolverRequest request) throws InterruptedException
+	{
+		assertSame(request, next());
+		return request.getHost();
+	}
+}
@@ -0,0 +1,335 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the timing wheel
+ *
+ * @author James
+ */
+public class TimingWheelTest
+{
+	private static final long TICK = 1000;
+	private static final int SLOTS = 512;
+
+	/**
+	 * Timer which records the times it expired at
+	 */
+	private static class RecordingTimer extends TimingWheel.Timer
+	{
+		final List<Long> fired = new ArrayList<Long>();
+
+		@Override
+		void expired(long now)
+		{
+			fired.add(now);
+		}
+	}
+
+	@Test
+	public void testExpiresOnTickAfterDeadline()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		RecordingTimer timer = new RecordingTimer();
+
+		wheel.schedule(timer, 2500);
+		assertTrue(timer.isScheduled());
+
+		wheel.advance(2999);
+		assertTrue(timer.fired.isEmpty());
+
+		wheel.advance(3000);
+		assertEquals(1, timer.fired.size());
+		assertEquals(3000L, (long) timer.fired.get(0));
+		assertFalse(timer.isScheduled());
+
+		//Deadlines in the past expire on the next tick
+		wheel.schedule(timer, 0);
+		wheel.advance(3999);
+		assertEquals(1, timer.fired.size());
+		wheel.advance(4000);
+		assertEquals(2, timer.fired.size());
+	}
+
+	@Test
+	public void testMoreThanOneTurnAhead()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		RecordingTimer far = new RecordingTimer();
+		RecordingTimer near = new RecordingTimer();
+
+		//Both timers share a slot but the far one is 2 turns later
+		long farDeadline = (2 * SLOTS + 10) * TICK;
+		wheel.schedule(far, farDeadline);
+		wheel.schedule(near, 10 * TICK);
+
+		//Advance one tick at a time so every slot is visited each turn
+		for(long now = TICK; now < farDeadline; now += TICK)
+		{
+			wheel.advance(now);
+		}
+
+		assertEquals(1, near.fired.size());
+		assertTrue(far.fired.isEmpty());
+		assertTrue(far.isScheduled());
+
+		wheel.advance(farDeadline);
+		assertEquals(1, far.fired.size());
+		assertEquals(farDeadline, (long) far.fired.get(0));
+	}
+
+	@Test
+	public void testCancel()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		RecordingTimer timer = new RecordingTimer();
+		RecordingTimer other = new RecordingTimer();
+
+		wheel.schedule(timer, 5 * TICK);
+		wheel.schedule(other, 5 * TICK);
+		wheel.cancel(timer);
+		assertFalse(timer.isScheduled());
+
+		wheel.advance(10 * TICK);
+		assertTrue(timer.fired.isEmpty());
+		assertEquals(1, other.fired.size());
+
+		//Cancelling a timer which has fired (or was never scheduled) does nothing
+		wheel.cancel(other);
+		wheel.cancel(timer);
+		wheel.cancel(new RecordingTimer());
+
+		wheel.schedule(other, 12 * TICK);
+		wheel.advance(12 * TICK);
+		assertEquals(2, other.fired.size());
+	}
+
+	@Test
+	public void testCancelInAnotherWheel()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		TimingWheel otherWheel = new TimingWheel(TICK, SLOTS, 0);
+		RecordingTimer timer = new RecordingTimer();
+
+		//Cancelling through the wrong wheel leaves the timer alone
+		wheel.schedule(timer, 5 * TICK);
+		otherWheel.cancel(timer);
+		assertTrue(timer.isScheduled());
+
+		wheel.advance(5 * TICK);
+		assertEquals(1, timer.fired.size());
+	}
+
+	@Test
+	public void testReschedule()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		RecordingTimer timer = new RecordingTimer();
+
+		//Scheduling again moves the timer
+		wheel.schedule(timer, 5 * TICK);
+		wheel.schedule(timer, 20 * TICK);
+
+		wheel.advance(10 * TICK);
+		assertTrue(timer.fired.isEmpty());
+
+		wheel.advance(20 * TICK);
+		assertEquals(1, timer.fired.size());
+	}
+
+	@Test
+	public void testRescheduleFromExpired()
+	{
+		final TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+
+		//Timer which fires every 3 ticks
+		RecordingTimer timer = new RecordingTimer()
+			{
+				@Override
+				void expired(long now)
+				{
+					super.expired(now);
+					wheel.schedule(this, now + 3 * TICK);
+				}
+			};
+
+		wheel.schedule(timer, 3 * TICK);
+
+		for(long now = TICK; now <= 30 * TICK; now += TICK)
+		{
+			wheel.advance(now);
+		}
+
+		assertEquals(10, timer.fired.size());
+		for(int i = 0; i < 10; i++)
+		{
+			assertEquals((i + 1) * 3 * TICK, (long) timer.fired.get(i));
+		}
+
+		assertTrue(timer.isScheduled());
+	}
+
+	@Test
+	public void testRescheduleOtherExpiredTimer()
+	{
+		final TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		final List<RecordingTimer> timers = new ArrayList<RecordingTimer>();
+
+		//The first timer to run pushes back the others which expire on the same tick
+		for(int i = 0; i < 3; i++)
+		{
+			timers.add(new RecordingTimer()
+				{
+					@Override
+					void expired(long now)
+					{
+						super.expired(now);
+
+						if(now == 2 * TICK)
+						{
+							for(RecordingTimer other : timers)
+							{
+								if(other != this)
+								{
+									wheel.schedule(other, now + 5 * TICK);
+								}
+							}
+						}
+					}
+				});
+		}
+
+		for(RecordingTimer timer : timers)
+		{
+			wheel.schedule(timer, 2 * TICK);
+		}
+
+		wheel.advance(2 * TICK);
+
+		//Only the first timer to run fires now
+		int firedNow = 0;
+		for(RecordingTimer timer : timers)
+		{
+			firedNow += timer.fired.size();
+		}
+
+		assertEquals(1, firedNow);
+
+		wheel.advance(7 * TICK);
+
+		for(RecordingTimer timer : timers)
+		{
+			assertEquals(1, timer.fired.size());
+		}
+	}
+
+	@Test
+	public void testCancelOtherExpiredTimer()
+	{
+		final TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		final RecordingTimer[] timers = new RecordingTimer[2];
+
+		for(int i = 0; i < timers.length; i++)
+		{
+			timers[i] = new RecordingTimer()
+				{
+					@Override
+					void expired(long now)
+					{
+						super.expired(now);
+
+						for(RecordingTimer other : timers)
+						{
+							wheel.cancel(other);
+						}
+					}
+				};
+
+			wheel.schedule(timers[i], 2 * TICK);
+		}
+
+		//Only the first timer runs since it cancels the second
+		wheel.advance(2 * TICK);
+		assertEquals(1, timers[0].fired.size());
+		assertTrue(timers[1].fired.isEmpty());
+		assertFalse(timers[1].isScheduled());
+
+		wheel.advance(10 * TICK);
+		assertTrue(timers[1].fired.isEmpty());
+	}
+
+	@Test
+	public void testStall()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+		RecordingTimer[] timers = new RecordingTimer[4];
+
+		long[] deadlines = { 5 * TICK, 600 * TICK, 5000 * TICK, 5001 * TICK };
+
+		for(int i = 0; i < timers.length; i++)
+		{
+			timers[i] = new RecordingTimer();
+			wheel.schedule(timers[i], deadlines[i]);
+		}
+
+		//Jump almost 10 turns in one go
+		wheel.advance(5000 * TICK);
+
+		assertEquals(1, timers[0].fired.size());
+		assertEquals(1, timers[1].fired.size());
+		assertEquals(1, timers[2].fired.size());
+		assertTrue(timers[3].fired.isEmpty());
+
+		//Timers scheduled after the stall still work
+		RecordingTimer late = new RecordingTimer();
+		wheel.schedule(late, 5002 * TICK);
+
+		wheel.advance(5001 * TICK);
+		assertEquals(1, timers[3].fired.size());
+		assertTrue(late.fired.isEmpty());
+
+		wheel.advance(5002 * TICK);
+		assertEquals(1, late.fired.size());
+	}
+
+	@Test
+	public void testStallFromNonZeroStart()
+	{
+		long start = 1234567890L * TICK;
+		TimingWheel wheel = new TimingWheel(TICK, SLOTS, start);
+		RecordingTimer timer = new RecordingTimer();
+
+		wheel.schedule(timer, start + 100 * TICK);
+		wheel.advance(start + 100000 * TICK);
+		assertEquals(1, timer.fired.size());
+		assertEquals(start + 100000 * TICK, (long) timer.fired.get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSlotCountPowerOfTwo()
+	{
+		new TimingWheel(TICK, 500, 0);
+	}
+}
@@ -0,0 +1,250 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the array set against the Set contract
+ *
+ * @author James
+ */
+public class ArraySetTest
+{
+	@Test
+	public void testAddRemoveContains()
+	{
+		Set<String> set = new ArraySet<String>();
+
+		assertTrue(set.isEmpty());
+		assertTrue(set.add("a"));
+		assertTrue(set.add("b"));
+		assertFalse(set.add("a"));
+		assertEquals(2, set.size());
+
+		assertTrue(set.contains("a"));
+		assertTrue(set.contains(new String("b")));
+		assertFalse(set.contains("c"));
+		assertFalse(set.contains(null));
+
+		assertTrue(set.remove("a"));
+		assertFalse(set.remove("a"));
+		assertFalse(set.contains("a"));
+		assertEquals(1, set.size());
+
+		set.clear();
+		assertTrue(set.isEmpty());
+		assertFalse(set.iterator().hasNext());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testAddNull()
+	{
+		new ArraySet<String>().add(null);
+	}
+
+	@Test
+	public void testGrowAndShrink()
+	{
+		Set<Integer> set = new ArraySet<Integer>();
+
+		//Grows past the initial capacity several times
+		for(int i = 0; i < 100; i++)
+		{
+			assertTrue(set.add(i));
+			assertEquals(i + 1, set.size());
+		}
+
+		for(int i = 0; i < 100; i++)
+		{
+			assertTrue(set.contains(i));
+		}
+
+		//Empty it and use it again
+		for(int i = 0; i < 100; i++)
+		{
+			assertTrue(set.remove(i));
+			assertFalse(set.contains(i));
+		}
+
+		assertTrue(set.isEmpty());
+		assertTrue(set.add(5));
+		assertEquals(1, set.size());
+		assertTrue(set.contains(5));
+	}
+
+	@Test
+	public void testEqualsAndHashCode()
+	{
+		Set<String> set = new ArraySet<String>();
+		Set<String> expected = new HashSet<String>();
+
+		for(String str : new String[] { "x", "y", "z" })
+		{
+			set.add(str);
+			expected.add(str);
+		}
+
+		assertEquals(expected, set);
+		assertEquals(set, expected);
+		assertEquals(expected.hashCode(), set.hashCode());
+	}
+
+	@Test
+	public void testIteratorRemove()
+	{
+		Set<Integer> set = new ArraySet<Integer>();
+
+		for(int i = 0; i < 10; i++)
+		{
+			set.add(i);
+		}
+
+		//Remove the even numbers while iterating (the last element moves into the gap)
+		Set<Integer> seen = new HashSet<Integer>();
+		Iterator<Integer> iter = set.iterator();
+
+		while(iter.hasNext())
+		{
+			int value = iter.next();
+			assertTrue(seen.add(value));
+
+			if(value % 2 == 0)
+			{
+				iter.remove();
+			}
+		}
+
+		assertEquals(10, seen.size());
+		assertEquals(5, set.size());
+
+		for(int i = 0; i < 10; i++)
+		{
+			assertEquals(i % 2 == 1, set.contains(i));
+		}
+
+		//Remove everything
+		iter = set.iterator();
+
+		while(iter.hasNext())
+		{
+			iter.next();
+			iter.remove();
+		}
+
+		assertTrue(set.isEmpty());
+	}
+
+	@Test
+	public void testIteratorErrors()
+	{
+		Set<String> set = new ArraySet<String>();
+		set.add("a");
+
+		Iterator<String> iter = set.iterator();
+
+		try
+		{
+			iter.remove();
+			fail("remove before next");
+		}
+		catch(IllegalStateException e)
+		{
+		}
+
+		iter.next();
+		iter.remove();
+
+		try
+		{
+			iter.remove();
+			fail("remove twice");
+		}
+		catch(IllegalStateException e)
+		{
+		}
+
+		try
+		{
+			iter.next();
+			fail("next past the end");
+		}
+		catch(NoSuchElementException e)
+		{
+		}
+
+		//Modification outside the iterator
+		set.add("b");
+		set.add("c");
+		iter = set.iterator();
+		iter.next();
+		set.add("d");
+
+		try
+		{
+			iter.next();
+			fail("concurrent modification");
+		}
+		catch(ConcurrentModificationException e)
+		{
+		}
+	}
+
+	@Test
+	public void testRandomized()
+	{
+		Random random = new Random(1);
+		Set<Integer> set = new ArraySet<Integer>();
+		Set<Integer> expected = new HashSet<Integer>();
+
+		for(int i = 0; i < 100000; i++)
+		{
+			Integer value = random.nextInt(20);
+
+			switch(random.nextInt(4))
+			{
+				case 0:
+				case 1:
+					assertEquals(expected.add(value), set.add(value));
+					break;
+
+				case 2:
+					assertEquals(expected.remove(value), set.remove(value));
+					break;
+
+				default:
+					assertEquals(expected.contains(value), set.contains(value));
+					break;
+			}
+
+			assertEquals(expected.size(), set.size());
+		}
+
+		assertEquals(expected, new HashSet<Integer>(set));
+	}
+}
@@ -0,0 +1,188 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the case mapped map against a HashMap of folded keys
+ *
+ * @author James
+ */
+public class CaseMappedMapTest
+{
+	/**
+	 * Characters used in random keys (including all the characters folded by rfc1459)
+	 */
+	private static final String KEY_CHARS = "aAbBzZ[]{}\\|~^";
+
+	/**
+	 * Folds a key using a casemapping
+	 */
+	private static String fold(CaseMapping mapping, String key)
+	{
+		StringBuilder builder = new StringBuilder(key.length());
+
+		for(int i = 0; i < key.length(); i++)
+		{
+			builder.append(mapping.toLower(key.charAt(i)));
+		}
+
+		return builder.toString();
+	}
+
+	@Test
+	public void testCaseMapping()
+	{
+		CaseMappedMap<String> map = new CaseMappedMap<String>(CaseMapping.RFC1459);
+
+		assertNull(map.put("Nick[]", "a"));
+		assertEquals("a", map.get("nick{}"));
+		assertEquals("a", map.put("NICK{]", "b"));
+		assertEquals(1, map.size());
+
+		CaseMappedMap<String> ascii = new CaseMappedMap<String>(CaseMapping.ASCII);
+		ascii.put("Nick[]", "a");
+		assertNull(ascii.get("nick{}"));
+		assertEquals("a", ascii.get("NICK[]"));
+
+		CaseMappedMap<String> strict = new CaseMappedMap<String>(CaseMapping.STRICT_RFC1459);
+		strict.put("a[~", "a");
+		assertEquals("a", strict.get("A{~"));
+		assertNull(strict.get("A{^"));
+	}
+
+	@Test
+	public void testRemove()
+	{
+		CaseMappedMap<Integer> map = new CaseMappedMap<Integer>(CaseMapping.RFC1459);
+
+		for(int i = 0; i < 100; i++)
+		{
+			map.put("key" + i, i);
+		}
+
+		for(int i = 0; i < 100; i += 2)
+		{
+			assertEquals(Integer.valueOf(i), map.remove("KEY" + i));
+		}
+
+		assertNull(map.remove("key0"));
+		assertEquals(50, map.size());
+
+		for(int i = 0; i < 100; i++)
+		{
+			assertEquals(i % 2 == 1, map.containsKey("Key" + i));
+		}
+	}
+
+	@Test
+	public void testRandomized()
+	{
+		for(CaseMapping mapping : CaseMapping.values())
+		{
+			testRandomized(mapping, new Random(mapping.ordinal()));
+		}
+	}
+
+	/**
+	 * Applies random operations to a CaseMappedMap and a HashMap and checks they match
+	 *
+	 * <p>The keys are short so there are lots of collisions, and the number of entries
+	 *  grows and shrinks so removals happen in full tables.
+	 */
+	private static void testRandomized(CaseMapping mapping, Random random)
+	{
+		CaseMappedMap<Integer> map = new CaseMappedMap<Integer>(mapping);
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+
+		for(int i = 0; i < 200000; i++)
+		{
+			//Random key of 1 to 3 characters
+			int length = 1 + random.nextInt(3);
+			StringBuilder builder = new StringBuilder(length);
+
+			for(int j = 0; j < length; j++)
+			{
+				builder.append(KEY_CHARS.charAt(random.nextInt(KEY_CHARS.length())));
+			}
+
+			String key = builder.toString();
+			String folded = fold(mapping, key);
+
+			//Remove more often than adding in some phases
+			boolean shrinking = (i / 20000) % 2 == 1;
+			int operation = random.nextInt(10);
+
+			if(operation < (shrinking ? 3 : 6))
+			{
+				assertEquals(expected.put(folded, i), map.put(key, i));
+			}
+			else if(operation < 9)
+			{
+				assertEquals(expected.remove(folded), map.remove(key));
+			}
+			else
+			{
+				assertEquals(expected.get(folded), map.get(key));
+				assertEquals(expected.containsKey(folded), map.containsKey(key));
+			}
+
+			assertEquals(expected.size(), map.size());
+
+			if(i % 1000 == 0)
+			{
+				checkContents(mapping, map, expected);
+			}
+		}
+
+		checkContents(mapping, map, expected);
+	}
+
+	/**
+	 * Checks every key in the expected map can be found and the values are the same
+	 */
+	private static void checkContents(CaseMapping mapping, CaseMappedMap<Integer> map,
+			Map<String, Integer> expected)
+	{
+		for(Map.Entry<String, Integer> entry : expected.entrySet())
+		{
+			assertEquals(entry.getValue(), map.get(entry.getKey().toUpperCase()));
+		}
+
+		List<Integer> values = new ArrayList<Integer>(map.values());
+		List<Integer> expectedValues = new ArrayList<Integer>(expected.values());
+		Collections.sort(values);
+		Collections.sort(expectedValues);
+
+		assertEquals(expectedValues, values);
+		assertEquals(expected.isEmpty(), map.isEmpty());
+		assertFalse(map.containsKey("not in the map"));
+		assertTrue(map.getCaseMapping() == mapping);
+	}
+}
@@ -0,0 +1,233 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the CIDR trie used for ip bans and accept lines
+ *
+ * @author James
+ */
+public class CidrTrieTest
+{
+	/**
+	 * Creates a trie from masks which map to themselves
+	 */
+	private static CidrTrie<String> trie(String... masks)
+	{
+		CidrTrie<String> trie = new CidrTrie<String>();
+
+		for(String mask : masks)
+		{
+			trie.add(mask, mask);
+		}
+
+		return trie;
+	}
+
+	@Test
+	public void testIPv4()
+	{
+		CidrTrie<String> trie = trie("10.0.0.0/8", "192.168.1.5", "172.16.0.0/12");
+
+		assertEquals("10.0.0.0/8", trie.lookup("10.200.3.4"));
+		assertEquals("192.168.1.5", trie.lookup("192.168.1.5"));
+		assertNull(trie.lookup("192.168.1.6"));
+		assertEquals("172.16.0.0/12", trie.lookup("172.31.255.255"));
+		assertNull(trie.lookup("172.32.0.0"));
+		assertNull(trie.lookup("11.0.0.0"));
+	}
+
+	@Test
+	public void testIPv6()
+	{
+		CidrTrie<String> trie = trie("2001:db8::/32", "fe80::1");
+
+		assertEquals("2001:db8::/32", trie.lookup("2001:db8:ffff::1"));
+		assertEquals("2001:db8::/32", trie.lookup("2001:0db8:0:0:0:0:0:0"));
+		assertNull(trie.lookup("2001:db9::1"));
+		assertEquals("fe80::1", trie.lookup("fe80:0:0:0:0:0:0:1%1"));
+		assertNull(trie.lookup("10.0.0.1"));
+	}
+
+	@Test
+	public void testMappedAddresses()
+	{
+		//Mapped client addresses are looked up as IPv4
+		CidrTrie<String> trie = trie("10.0.0.0/8");
+		assertEquals("10.0.0.0/8", trie.lookup("::ffff:10.1.2.3"));
+
+		//Mapped masks must match both forms
+		trie = trie("::ffff:10.0.0.0/104", "::ffff:192.168.1.1");
+		assertEquals("::ffff:10.0.0.0/104", trie.lookup("10.1.2.3"));
+		assertEquals("::ffff:10.0.0.0/104", trie.lookup("::ffff:10.1.2.3"));
+		assertEquals("::ffff:192.168.1.1", trie.lookup("192.168.1.1"));
+		assertNull(trie.lookup("11.0.0.1"));
+		assertNull(trie.lookup("::10.1.2.3"));
+
+		//Short prefixes covering the mapped range match every IPv4 address
+		trie = trie("::/0");
+		assertEquals("::/0", trie.lookup("1.2.3.4"));
+		assertEquals("::/0", trie.lookup("2001:db8::1"));
+
+		trie = trie("::ffff:0:0/96");
+		assertEquals("::ffff:0:0/96", trie.lookup("1.2.3.4"));
+		assertNull(trie.lookup("2001:db8::1"));
+
+		trie = trie("2001:db8::/32");
+		assertNull(trie.lookup("1.2.3.4"));
+	}
+
+	@Test
+	public void testWildcards()
+	{
+		CidrTrie<String> trie = trie("192.168.*", "10.*.*.5", "*");
+
+		assertEquals("192.168.*", trie.lookup("192.168.44.1"));
+		assertEquals("10.*.*.5", trie.lookup("10.1.2.5"));
+		assertEquals("*", trie.lookup("10.1.2.6"));
+		assertEquals("*", trie.lookup("::1"));
+	}
+
+	@Test
+	public void testFirstAddedWins()
+	{
+		CidrTrie<String> trie = trie("10.1.0.0/16", "10.0.0.0/8", "10.*");
+
+		assertEquals("10.1.0.0/16", trie.lookup("10.1.2.3"));
+		assertEquals("10.0.0.0/8", trie.lookup("10.2.2.3"));
+
+		trie = trie("10.*.*.3", "10.0.0.0/8");
+		assertEquals("10.*.*.3", trie.lookup("10.1.2.3"));
+		assertEquals("10.0.0.0/8", trie.lookup("10.1.2.4"));
+	}
+
+	@Test
+	public void testInvalidMasks()
+	{
+		//Invalid CIDR masks are only compared as wildcards
+		CidrTrie<String> trie = trie("10.0.0.0/33", "10.0.0.0/x", "", "  ");
+
+		assertNull(trie.lookup("10.0.0.0"));
+		assertEquals("10.0.0.0/33", trie.lookup("10.0.0.0/33"));
+	}
+
+	@Test
+	public void testParseAddress() throws Exception
+	{
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, CidrTrie.parseAddress("1.2.3.4"));
+		assertNull(CidrTrie.parseAddress("1.2.3"));
+		assertNull(CidrTrie.parseAddress("1.2.3.256"));
+		assertNull(CidrTrie.parseAddress("1..3.4"));
+		assertNull(CidrTrie.parseAddress("1:2::3::4"));
+		assertNull(CidrTrie.parseAddress("host.example.com"));
+
+		String[] v6 = { "::", "::1", "2001:db8::ff00:42:8329", "fe80::1:2:3:4:5", "1:2:3:4:5:6:7:8",
+				"::ffff:1.2.3.4", "1::" };
+
+		for(String address : v6)
+		{
+			assertArrayEquals(address, InetAddress.getByName(address).getAddress().length == 4 ?
+					mapped(InetAddress.getByName(address).getAddress()) :
+					InetAddress.getByName(address).getAddress(),
+					CidrTrie.parseAddress(address));
+		}
+	}
+
+	/**
+	 * Converts an IPv4 address to an IPv4 mapped IPv6 address
+	 */
+	private static byte[] mapped(byte[] address)
+	{
+		byte[] result = new byte[16];
+		result[10] = (byte) 0xFF;
+		result[11] = (byte) 0xFF;
+		System.arraycopy(address, 0, result, 12, 4);
+		return result;
+	}
+
+	@Test
+	public void testAgainstLinearSearch()
+	{
+		Random random = new Random(1);
+
+		for(int i = 0; i < 200; i++)
+		{
+			//Create random masks in a small range so they overlap
+			List<String> masks = new ArrayList<String>();
+			CidrTrie<String> trie = new CidrTrie<String>();
+
+			for(int j = 0; j < 50; j++)
+			{
+				String mask = "10." + random.nextInt(4) + "." + random.nextInt(4) + ".0/" + (8 + random.nextInt(25));
+				masks.add(mask);
+				trie.add(mask, mask);
+			}
+
+			for(int j = 0; j < 200; j++)
+			{
+				String address = "10." + random.nextInt(4) + "." + random.nextInt(4) + "." + random.nextInt(256);
+				String expected = null;
+
+				for(String mask : masks)
+				{
+					if(inRange(address, mask))
+					{
+						expected = mask;
+						break;
+					}
+				}
+
+				assertEquals(address, expected, trie.lookup(address));
+			}
+		}
+	}
+
+	/**
+	 * Checks if an IPv4 address is in a CIDR range
+	 */
+	private static boolean inRange(String address, String mask)
+	{
+		int slash = mask.indexOf('/');
+		int prefix = Integer.parseInt(mask.substring(slash + 1));
+		long bits = 0xFFFFFFFFL << (32 - prefix);
+
+		return (toInt(address) & bits) == (toInt(mask.substring(0, slash)) & bits);
+	}
+
+	private static long toInt(String address)
+	{
+		byte[] bytes = CidrTrie.parseAddress(address);
+		long result = 0;
+
+		for(byte b : bytes)
+		{
+			result = (result << 8) | (b & 0xFF);
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+   Copyright 2011 James Cowgill
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.org.cowgill.james.jircd.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the buckets and percentiles of LatencyHistogram
+ *
+ * @author James
+ */
+public class LatencyHistogramTest
+{
+	/**
+	 * Checks a percentile is the upper bound of the bucket containing the exact value
+	 *
+	 * <p>Values below 32 are exact and buckets are at most 1/16 of their lower bound wide
+	 */
+	private static void assertWithinBucket(long exact, long actual)
+	{
+		String message = "exact " + exact + " actual " + actual;
+
+		assertTrue(message, actual >= exact);
+
+		if(exact < 32)
+		{
+			assertEquals(message, exact, actual);
+		}
+		else
+		{
+			assertTrue(message, (actual - exact) * 16 < exact);
+		}
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0.0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testSmallValuesExact()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for(int i = 1; i <= 32; i++)
+		{
+			histogram.record(i);
+		}
+
+		//Rank of percentile p is ceil(32 * p / 100)
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		assertEquals(1, histogram.getValueAtPercentile(1));
+		assertEquals(16, histogram.getValueAtPercentile(50));
+		assertEquals(31, histogram.getValueAtPercentile(96));
+		assertEquals(32, histogram.getValueAtPercentile(100));
+		assertEquals(32, histogram.getValueAtPercentile(150));
+
+		assertEquals(32, histogram.getCount());
+		assertEquals(528, histogram.getTotal());
+		assertEquals(32, histogram.getMax());
+		assertEquals(16.5, histogram.getMean(), 0);
+	}
+
+	@Test
+	public void testBucketBounds()
+	{
+		//Each value on its own below a larger value so the bucket's upper bound is returned
+		long[] values = { 31, 32, 33, 47, 63, 64, 65, 100, 1000, 1023, 1024, 1025,
+				123456789, (1L << 40) - 1, 1L << 40, (1L << 40) + 1 };
+
+		for(long value : values)
+		{
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(value);
+			histogram.record(Long.MAX_VALUE);
+
+			assertWithinBucket(value, histogram.getValueAtPercentile(50));
+		}
+
+		//Upper bounds of buckets
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(64);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(67, histogram.getValueAtPercentile(50));
+
+		histogram.reset();
+		histogram.record(1023);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(1023, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testPercentileNeverAboveMax()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+
+		//1000 is in the bucket 992 - 1023
+		assertEquals(1000, histogram.getValueAtPercentile(50));
+		assertEquals(1000, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testExtremes()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(0);
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(3, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+	}
+
+	@Test
+	public void testRandomized()
+	{
+		Random random = new Random(4321);
+		double[] percentiles = { 0, 10, 50, 90, 99, 99.9, 100 };
+
+		for(int iteration = 0; iteration < 50; iteration++)
+		{
+			LatencyHistogram histogram = new LatencyHistogram();
+			long[] values = new long[1 + random.nextInt(2000)];
+
+			//Values spread over many magnitudes
+			for(int i = 0; i < values.length; i++)
+			{
+				values[i] = (long) Math.pow(2, random.nextDouble() * 40);
+				histogram.record(values[i]);
+			}
+
+			Arrays.sort(values);
+
+			for(double percentile : percentiles)
+			{
+				int rank = (int) Math.ceil(values.length * percentile / 100);
+				long exact = values[Math.max(rank, 1) - 1];
+
+				assertWithinBucket(exact, histogram.getValueAtPercentile(percentile));
+			}
+
+			assertEquals(values[values.length - 1], histogram.getMax());
+		}
+	}
+
+	@Test
+	public void testResetAndDump()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5);
+		histogram.record(5);
+		histogram.record(100);
+
+		StringWriter out = new StringWriter();
+		histogram.dump(new PrintWriter(out, true));
+		assertEquals("5\t5\t2\n100\t103\t1\n", out.toString().replace("\r\n", "\n"));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getTotal());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(100));
+
+		out = new StringWriter();
+		histogram.dump(new PrintWriter(out, true));
+		assertEquals("", out.toString());
+	}
+}